@@ -0,0 +1,115 @@
+package org.neo4j.elasticsearch;
+
+import io.searchbox.client.JestResult;
+import io.searchbox.client.config.HttpClientConfig;
+import io.searchbox.client.http.JestHttpClient;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures sending bulk requests through the {@link HttpTransport} to a {@link StubElasticSearch}
+ * on localhost, with and without compression.
+ *
+ * Besides the requests per second, {@code wireBytes} and {@code bodyBytes} report the bytes that
+ * went over the connection and the bytes of the bodies before compression, per request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BulkTransportBenchmark {
+    @Param({"100", "1000"})
+    public int bulkSize;
+
+    @Param({"true", "false"})
+    public boolean compression;
+
+    private StubElasticSearch server;
+    private JestHttpClient client;
+    private String body;
+
+    @State(Scope.Thread)
+    @AuxCounters
+    public static class Bytes {
+        public long wireBytes, bodyBytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new StubElasticSearch().start();
+
+        client = (JestHttpClient) new HttpTransport(new HttpClientConfig
+                .Builder(Collections.singletonList(server.url()))
+                .multiThreaded(true)
+                .defaultMaxTotalConnectionPerRoute(4)
+                .maxTotalConnection(4)
+                .connTimeout(5000)
+                .readTimeout(60000)
+                .build(),
+                60000, compression ? 1024 : HttpTransport.NO_GZIP, new ElasticSearchMetrics()).getObject();
+        body = body(bulkSize);
+    }
+
+    /**
+     * Index actions of person documents, as the event handler renders them.
+     */
+    private static String body(int documents) {
+        BulkWriter writer = new BulkWriter();
+        byte[] action = BulkWriter.encodeAction("index", "people", "Person");
+        for (int i = 0; i < documents; i++) {
+            String id = String.valueOf(i);
+            writer.action(action, "people", id, System.currentTimeMillis() * 1000 + i);
+            writer.startObject()
+                    .field("id", id)
+                    .field("labels", new String[]{"Person"})
+                    .field("name", "Person " + i)
+                    .field("email", "person" + i + "@example.com")
+                    .field("age", (Object) (20 + i % 50))
+                    .endObject()
+                    .endEntry();
+        }
+        return writer.toString();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.shutdownClient();
+        server.stop();
+    }
+
+    @Benchmark
+    public JestResult send(Bytes bytes) throws Exception {
+        long before = server.receivedBytes.get();
+        JestResult result = client.execute(new RawBulk(body));
+        bytes.wireBytes += server.receivedBytes.get() - before;
+        bytes.bodyBytes += body.length();
+        return result;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(BulkTransportBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,249 @@
+package org.neo4j.elasticsearch;
+
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseBuilder;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.graphdb.factory.GraphDatabaseFactoryState;
+import org.neo4j.helpers.Service;
+import org.neo4j.helpers.Settings;
+import org.neo4j.io.fs.FileUtils;
+import org.neo4j.kernel.extension.KernelExtensionFactory;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives concurrent writes through an embedded database with the extension loaded, replicating to a
+ * {@link StubElasticSearch}, and reports what it costs the commits and how far the index lags behind.
+ *
+ * A baseline phase first runs the same workload without the extension. The loaded phase then
+ * reports the commit latency, the lag from commit to the stub accepting the document, the heap
+ * used after a full collection and what the stub saw, every {@code load.reportInterval}. Run it
+ * for hours to see the heap and lag stay flat. The workload and the stub are configured by
+ * {@code load.*} system properties, the extension by {@code elasticsearch.*} system properties.
+ */
+public class LoadTest {
+    private static final Label PERSON = DynamicLabel.label("Person");
+    private static final String INDEX_SPEC = "people:Person(name,age,email),analytics:Person(age,city)";
+    private static final String[] CITIES = {"Berlin", "London", "Malmö", "San Francisco", "Seoul"};
+
+    private final int threads = Integer.getInteger("load.threads", 4);
+    private final int txSize = Integer.getInteger("load.txSize", 10);
+    private final long duration = seconds("load.duration", 60);
+    private final long baseline = seconds("load.baseline", 20);
+    private final long reportInterval = seconds("load.reportInterval", 10);
+    private final double updateRatio = Double.parseDouble(System.getProperty("load.updateRatio", "0.5"));
+
+    /** Commit time of the nodes written but not yet accepted by the stub, by node id. */
+    private final ConcurrentMap<Long, Long> unindexed = new ConcurrentHashMap<>();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final List<File> stores = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        new LoadTest().run();
+    }
+
+    private void run() throws Exception {
+        Histogram bare = new Histogram();
+        if (baseline > 0) {
+            System.out.printf("baseline: %d threads, %d writes per transaction, %ds%n", threads, txSize, baseline / 1000);
+            GraphDatabaseService db = withoutExtension().newEmbeddedDatabase(temporaryStore().getPath());
+            try {
+                drive(db, baseline, bare, new Histogram(), null);
+            } finally {
+                shutdown(db);
+                unindexed.clear();
+            }
+            System.out.printf("baseline commits: %s%n", millis(bare));
+        }
+
+        StubElasticSearch stub = new StubElasticSearch();
+        stub.latencyMillis = Long.getLong("load.latencyMillis", 5);
+        stub.rejectRate = Double.parseDouble(System.getProperty("load.rejectRate", "0"));
+        stub.itemRejectRate = Double.parseDouble(System.getProperty("load.itemRejectRate", "0.01"));
+        stub.itemFailureRate = Double.parseDouble(System.getProperty("load.itemFailureRate", "0.001"));
+        final Histogram lag = new Histogram();
+        stub.listener = new StubElasticSearch.Listener() {
+            @Override
+            public void accepted(String action, String indexName, String id, long nanos) {
+                if (!indexName.equals("people")) return;
+                Long committed = unindexed.remove(Long.valueOf(id));
+                if (committed != null) lag.record(nanos - committed);
+            }
+        };
+        stub.start();
+
+        System.out.printf("loaded: %s, stub latency %dms, rejecting %.3f of requests, %.3f of items, failing %.3f of items%n",
+                INDEX_SPEC, stub.latencyMillis, stub.rejectRate, stub.itemRejectRate, stub.itemFailureRate);
+        File store = temporaryStore();
+        GraphDatabaseService db = configure(new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(store.getPath()), stub)
+                .newGraphDatabase();
+        Histogram commits = new Histogram();
+        long heapBefore = heapUsed();
+        try {
+            drive(db, duration, commits, lag, stub);
+            long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+            while (!unindexed.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+        } finally {
+            shutdown(db);
+            stub.stop();
+        }
+
+        System.out.println();
+        System.out.printf("commits:   %s%n", millis(commits));
+        if (bare.count() > 0) {
+            System.out.printf("overhead:  mean %+.3fms, p99 %+.3fms%n",
+                    (commits.mean() - bare.mean()) / 1e6,
+                    (commits.percentile(99) - bare.percentile(99)) / 1e6);
+        }
+        System.out.printf("lag:       %s%n", millis(lag));
+        System.out.printf("unindexed: %d nodes never accepted (failed items end up in the dead letters)%n", unindexed.size());
+        System.out.printf("heap:      %dMB before, %dMB after%n", heapBefore >> 20, heapUsed() >> 20);
+        System.out.printf("stub:      %d requests, %d rejected, %d items, %d rejected, %d failed, %dMB received%n",
+                stub.requests.get(), stub.rejectedRequests.get(), stub.items.get(),
+                stub.rejectedItems.get(), stub.failedItems.get(), stub.receivedBytes.get() >> 20);
+    }
+
+    /**
+     * Runs the workload on {@code threads} threads for the given time, reporting every {@code reportInterval}.
+     */
+    private void drive(final GraphDatabaseService db, long millis, final Histogram commits, Histogram lag,
+                       StubElasticSearch stub) throws InterruptedException {
+        final long end = System.currentTimeMillis() + millis;
+        final AtomicLong failed = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        List<Long> nodes = new ArrayList<>();
+                        while (System.currentTimeMillis() < end) {
+                            if (!transaction(db, nodes, commits)) failed.incrementAndGet();
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "load-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        long start = System.currentTimeMillis();
+        while (!done.await(reportInterval, TimeUnit.MILLISECONDS)) {
+            System.out.printf("%6ds  commits %s  lag %s  unindexed %d  heap %dMB%s%n",
+                    (System.currentTimeMillis() - start) / 1000, millis(commits), millis(lag), unindexed.size(),
+                    heapUsed() >> 20, stub == null ? "" : String.format("  stub requests %d items %d",
+                            stub.requests.get(), stub.items.get()));
+        }
+        if (failed.get() > 0) System.out.printf("%d transactions failed%n", failed.get());
+    }
+
+    /**
+     * Commits one transaction of {@code txSize} writes, each creating a person or updating one this thread created.
+     */
+    private boolean transaction(GraphDatabaseService db, List<Long> nodes, Histogram commits) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<Long> written = new ArrayList<>(txSize), created = new ArrayList<>();
+        long start = System.nanoTime();
+        boolean committed = false;
+        Transaction tx = db.beginTx();
+        try {
+            for (int i = 0; i < txSize; i++) {
+                Node node;
+                if (!nodes.isEmpty() && random.nextDouble() < updateRatio) {
+                    node = db.getNodeById(nodes.get(random.nextInt(nodes.size())));
+                } else {
+                    node = db.createNode(PERSON);
+                    node.setProperty("name", "Person " + node.getId());
+                    node.setProperty("email", "person" + node.getId() + "@example.com");
+                    created.add(node.getId());
+                }
+                node.setProperty("age", 18 + random.nextInt(80));
+                node.setProperty("city", CITIES[random.nextInt(CITIES.length)]);
+                written.add(node.getId());
+            }
+            tx.success();
+            // recorded before the commit, the stub may accept the documents before close returns
+            long now = System.nanoTime();
+            for (Long id : written) unindexed.putIfAbsent(id, now);
+            tx.close();
+            committed = true;
+        } catch (RuntimeException e) {
+            tx.close();
+        } finally {
+            if (committed) {
+                commits.record(System.nanoTime() - start);
+                nodes.addAll(created);
+            } else {
+                for (Long id : written) unindexed.remove(id);
+            }
+        }
+        return committed;
+    }
+
+    private GraphDatabaseBuilder configure(GraphDatabaseBuilder builder, StubElasticSearch stub) {
+        builder.setConfig(ElasticSearchKernelExtensionFactory.ElasticSearchSettings.hostName, stub.url());
+        builder.setConfig(ElasticSearchKernelExtensionFactory.ElasticSearchSettings.indexSpec, INDEX_SPEC);
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("elasticsearch.")) {
+                builder.setConfig(Settings.setting(name, Settings.STRING, Settings.NO_DEFAULT), System.getProperty(name));
+            }
+        }
+        return builder;
+    }
+
+    private static GraphDatabaseFactory withoutExtension() {
+        List<KernelExtensionFactory<?>> extensions = new ArrayList<>();
+        for (KernelExtensionFactory<?> extension : Service.load(KernelExtensionFactory.class)) {
+            if (!(extension instanceof ElasticSearchKernelExtensionFactory)) extensions.add(extension);
+        }
+        GraphDatabaseFactoryState state = new GraphDatabaseFactoryState();
+        state.setKernelExtensions(extensions);
+        return new GraphDatabaseFactory(state) {
+        };
+    }
+
+    private File temporaryStore() throws Exception {
+        File store = Files.createTempDirectory("neo4j-elasticsearch-load").toFile();
+        stores.add(store);
+        return store;
+    }
+
+    private void shutdown(GraphDatabaseService db) throws Exception {
+        db.shutdown();
+        for (File store : stores) FileUtils.deleteRecursively(store);
+        stores.clear();
+    }
+
+    private long heapUsed() {
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static long seconds(String property, long defaultSeconds) {
+        return TimeUnit.SECONDS.toMillis(Long.getLong(property, defaultSeconds));
+    }
+
+    private static String millis(Histogram histogram) {
+        return String.format("n=%d p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms", histogram.count(),
+                histogram.percentile(50) / 1e6, histogram.percentile(99) / 1e6,
+                histogram.percentile(99.9) / 1e6, histogram.max() / 1e6);
+    }
+}
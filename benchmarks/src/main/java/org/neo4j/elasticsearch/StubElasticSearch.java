@@ -0,0 +1,177 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An in-process HTTP server answering the {@code _bulk} endpoint like ElasticSearch, without storing anything.
+ *
+ * Each bulk request is answered after {@code latencyMillis}. A share of requests is rejected as a
+ * whole with 429, a share of items is rejected with 429 and a share fails with 400, as an
+ * overloaded cluster or a mapping conflict would. Accepted items are reported to the
+ * {@link Listener}. Node discovery is answered with the stub itself, other requests with 200.
+ */
+class StubElasticSearch implements HttpHandler {
+    private static final byte[] ACKNOWLEDGED = "{\"acknowledged\":true}".getBytes(BulkEntry.UTF_8);
+    private static final byte[] REJECTED = ("{\"error\":\"EsRejectedExecutionException[rejected execution (queue capacity 50)]\","
+            + "\"status\":429}").getBytes(BulkEntry.UTF_8);
+
+    /**
+     * Told about every accepted item.
+     */
+    interface Listener {
+        void accepted(String action, String indexName, String id, long nanos);
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    volatile long latencyMillis;
+    volatile double rejectRate, itemRejectRate, itemFailureRate;
+    volatile Listener listener;
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong rejectedRequests = new AtomicLong();
+    final AtomicLong items = new AtomicLong();
+    final AtomicLong rejectedItems = new AtomicLong();
+    final AtomicLong failedItems = new AtomicLong();
+    final AtomicLong receivedBytes = new AtomicLong();
+
+    StubElasticSearch() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this);
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "stub-elasticsearch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+    }
+
+    StubElasticSearch start() {
+        server.start();
+        return this;
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    String url() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = read(exchange);
+            String path = exchange.getRequestURI().getPath();
+            if (path.endsWith("/_bulk")) {
+                bulk(exchange, body);
+            } else if (path.startsWith("/_nodes")) {
+                respond(exchange, 200, nodes());
+            } else {
+                respond(exchange, 200, ACKNOWLEDGED);
+            }
+        } catch (InterruptedException e) {
+            exchange.close();
+        }
+    }
+
+    private void bulk(HttpExchange exchange, byte[] body) throws IOException, InterruptedException {
+        requests.incrementAndGet();
+        if (latencyMillis > 0) Thread.sleep(latencyMillis);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < rejectRate) {
+            rejectedRequests.incrementAndGet();
+            respond(exchange, 429, REJECTED);
+            return;
+        }
+        StringBuilder response = new StringBuilder("{\"took\":").append(latencyMillis).append(",\"errors\":");
+        int errorsAt = response.length();
+        response.append("false,\"items\":[");
+        boolean errors = false, first = true;
+        String[] lines = new String(body, BulkEntry.UTF_8).split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].isEmpty()) continue;
+            Map.Entry<String, JsonElement> action =
+                    new JsonParser().parse(lines[i]).getAsJsonObject().entrySet().iterator().next();
+            // every action but delete is followed by its source
+            if (!action.getKey().equals("delete")) i++;
+            JsonObject meta = action.getValue().getAsJsonObject();
+            String index = meta.get("_index").getAsString(), id = meta.get("_id").getAsString();
+            String type = meta.has("_type") ? meta.get("_type").getAsString() : "_doc";
+            items.incrementAndGet();
+            if (!first) response.append(',');
+            first = false;
+            response.append("{\"").append(action.getKey()).append("\":{\"_index\":\"").append(index)
+                    .append("\",\"_type\":\"").append(type).append("\",\"_id\":\"").append(id).append("\",");
+            double dice = random.nextDouble();
+            if (dice < itemRejectRate) {
+                rejectedItems.incrementAndGet();
+                errors = true;
+                response.append("\"status\":429,\"error\":\"EsRejectedExecutionException[rejected execution]\"}}");
+            } else if (dice < itemRejectRate + itemFailureRate) {
+                failedItems.incrementAndGet();
+                errors = true;
+                response.append("\"status\":400,\"error\":\"MapperParsingException[failed to parse]\"}}");
+            } else {
+                response.append("\"_version\":1,\"status\":").append(action.getKey().equals("index") ? 201 : 200).append("}}");
+                Listener listener = this.listener;
+                if (listener != null) listener.accepted(action.getKey(), index, id, System.nanoTime());
+            }
+        }
+        response.append("]}");
+        if (errors) response.replace(errorsAt, errorsAt + "false".length(), "true");
+        respond(exchange, 200, response.toString().getBytes(BulkEntry.UTF_8));
+    }
+
+    private byte[] nodes() {
+        InetSocketAddress address = server.getAddress();
+        return ("{\"cluster_name\":\"stub\",\"nodes\":{\"stub\":{\"name\":\"stub\",\"http_address\":\"inet[/127.0.0.1:"
+                + address.getPort() + "]\"}}}").getBytes(BulkEntry.UTF_8);
+    }
+
+    private byte[] read(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = exchange.getRequestBody()) {
+            for (int read; (read = in.read(buffer)) > 0; ) out.write(buffer, 0, read);
+        }
+        receivedBytes.addAndGet(out.size());
+        if (!"gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) return out.toByteArray();
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            for (int read; (read = in.read(buffer)) > 0; ) decompressed.write(buffer, 0, read);
+        }
+        return decompressed.toByteArray();
+    }
+
+    private void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
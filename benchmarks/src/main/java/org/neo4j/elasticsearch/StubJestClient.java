@@ -0,0 +1,45 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accepts every request without sending it anywhere, only counting the bulk bytes it was handed.
+ */
+class StubJestClient implements JestClient {
+    private static final String RESPONSE = "{\"took\":1,\"errors\":false,\"items\":[]}";
+
+    private final Gson gson = new Gson();
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+
+    @Override
+    public <T extends JestResult> T execute(Action<T> action) throws Exception {
+        requests.incrementAndGet();
+        bytes.addAndGet(String.valueOf(action.getData(gson)).length());
+        return action.createNewElasticSearchResult(RESPONSE, 200, "OK", gson);
+    }
+
+    @Override
+    public <T extends JestResult> void executeAsync(Action<T> action, JestResultHandler<T> handler) {
+        try {
+            handler.completed(execute(action));
+        } catch (Exception e) {
+            handler.failed(e);
+        }
+    }
+
+    @Override
+    public void shutdownClient() {
+    }
+
+    @Override
+    public void setServers(Set<String> servers) {
+    }
+}
@@ -0,0 +1,162 @@
+package org.neo4j.elasticsearch;
+
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.impl.util.StringLogger;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what the {@link ElasticSearchEventHandler} adds to a commit, from collecting the changes
+ * in {@code beforeCommit} to handing the bulk to a {@link StubJestClient} in {@code afterCommit}.
+ *
+ * Each benchmark commits one transaction of {@code txSize} nodes against an impermanent database.
+ * Running with {@code extension=false} gives the cost of the bare commit to compare with.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TransactionBenchmark {
+
+    @Param({"1", "100", "1000"})
+    public int txSize;
+
+    @Param({"1", "3"})
+    public int labelsPerNode;
+
+    @Param({"1", "2"})
+    public int specsPerLabel;
+
+    @Param({"2", "10"})
+    public int propertyCount;
+
+    @Param({"true", "false"})
+    public boolean extension;
+
+    private GraphDatabaseService db;
+    private ElasticSearchEventHandler handler;
+    private StubJestClient client;
+    private Label[] labels;
+    private String[] properties;
+    private long[] nodeIds;
+    private long round;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        labels = new Label[labelsPerNode];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = DynamicLabel.label("Label" + i);
+        }
+        properties = new String[propertyCount];
+        for (int i = 0; i < properties.length; i++) {
+            properties[i] = "property" + i;
+        }
+        nodeIds = new long[txSize];
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < nodeIds.length; i++) {
+                nodeIds[i] = createNode().getId();
+            }
+            tx.success();
+        }
+        if (extension) {
+            client = new StubJestClient();
+            handler = new ElasticSearchEventHandler(client, indexSpec(), StringLogger.DEV_NULL, db);
+            handler.setUseAsyncJest(false);
+            db.registerTransactionEventHandler(handler);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (handler != null) db.unregisterTransactionEventHandler(handler);
+        db.shutdown();
+    }
+
+    /**
+     * Every label is indexed into {@code specsPerLabel} indices, each taking all properties.
+     */
+    private Map<Label, List<ElasticSearchIndexSpec>> indexSpec() {
+        Set<String> indexed = new LinkedHashSet<>(Arrays.asList(properties));
+        Map<Label, List<ElasticSearchIndexSpec>> spec = new LinkedHashMap<>();
+        for (Label label : labels) {
+            List<ElasticSearchIndexSpec> specs = new ArrayList<>();
+            for (int i = 0; i < specsPerLabel; i++) {
+                specs.add(new ElasticSearchIndexSpec(label.name().toLowerCase() + "-" + i, indexed));
+            }
+            spec.put(label, specs);
+        }
+        return spec;
+    }
+
+    private Node createNode() {
+        Node node = db.createNode(labels);
+        for (int i = 0; i < properties.length; i++) {
+            node.setProperty(properties[i], "value" + i);
+        }
+        return node;
+    }
+
+    @Benchmark
+    public void createNodes() {
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < txSize; i++) {
+                createNode();
+            }
+            tx.success();
+        }
+    }
+
+    @Benchmark
+    public void updateProperties() {
+        long value = ++round;
+        try (Transaction tx = db.beginTx()) {
+            for (long id : nodeIds) {
+                Node node = db.getNodeById(id);
+                for (String property : properties) {
+                    node.setProperty(property, value);
+                }
+            }
+            tx.success();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(TransactionBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,106 @@
+package org.neo4j.elasticsearch;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects bulk entries of many transactions into a single bulk request.
+ *
+ * A later entry for the same {@link IndexId} replaces the earlier one, so a document
+ * changed repeatedly while the batch is open is only sent once, in its latest state.
+ * A partial update can't stand in for the entry before it, it is sent after that one.
+ */
+class BulkBatch {
+    private final Map<IndexId, BulkEntry> entries = new LinkedHashMap<>();
+    private long bytes;
+    private long openedAt;
+
+    void add(BulkEntry entry) {
+        if (entries.isEmpty()) openedAt = System.currentTimeMillis();
+        IndexId id = new IndexId(entry.indexName, entry.id);
+        BulkEntry previous = entries.get(id);
+        if (previous != null) {
+            bytes -= previous.lines.length;
+            if (entry.isUpdate()) entry = previous.followedBy(entry);
+        }
+        entries.put(id, entry);
+        bytes += entry.lines.length;
+    }
+
+    void addAll(Collection<BulkEntry> entries) {
+        for (BulkEntry entry : entries) {
+            add(entry);
+        }
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return milliseconds since the first entry was added
+     */
+    long age() {
+        return isEmpty() ? 0 : System.currentTimeMillis() - openedAt;
+    }
+
+    boolean isFull(int maxActions, long maxBytes) {
+        return entries.size() >= maxActions || bytes >= maxBytes;
+    }
+
+    /**
+     * @return the lowest queue offset of the entries, {@code Long.MAX_VALUE} if there are none
+     */
+    long minOffset() {
+        long min = Long.MAX_VALUE;
+        for (BulkEntry entry : entries.values()) {
+            min = Math.min(min, entry.offset);
+        }
+        return min;
+    }
+
+    String body() {
+        StringBuilder body = new StringBuilder((int) Math.min(bytes, Integer.MAX_VALUE));
+        for (BulkEntry entry : entries.values()) {
+            body.append(new String(entry.lines, BulkEntry.UTF_8));
+        }
+        return body.toString();
+    }
+
+    /**
+     * Removes the entries ElasticSearch accepted or refused for good, keeping those the retrier sends again.
+     */
+    void retain(BulkResponse response, BulkRetrier retrier) throws IOException {
+        int item = 0;
+        for (Iterator<Map.Entry<IndexId, BulkEntry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<IndexId, BulkEntry> next = it.next();
+            BulkEntry entry = next.getValue();
+            entry.attempts++;
+            boolean retry = false;
+            for (int start = 0; start < entry.lines.length; item++) {
+                int end = BulkEntry.actionEnd(entry.lines, start);
+                retry |= retrier.retry(response, item, next.getKey(), entry.attempts, entry.lines, start, end);
+                start = end;
+            }
+            if (retry) continue;
+            it.remove();
+            bytes -= entry.lines.length;
+        }
+    }
+
+    void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+}
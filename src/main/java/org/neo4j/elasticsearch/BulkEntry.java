@@ -0,0 +1,126 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A single bulk action in its wire form: the NDJSON action/meta line and the
+ * optional source line, tagged with the index and document id it targets.
+ */
+class BulkEntry {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] UPDATE = "{\"update\":".getBytes(UTF_8);
+    private static final byte[] DELETE = "{\"delete\":".getBytes(UTF_8);
+
+    /** not part of the wire form, counts how often the entry was sent without being accepted */
+    int attempts;
+    /** not part of the wire form, the queue offset of the record the entry was read from */
+    long offset;
+
+    final String indexName, id;
+    final byte[] lines;
+
+    BulkEntry(String indexName, String id, byte[] lines) {
+        this.indexName = indexName;
+        this.id = id;
+        this.lines = lines;
+    }
+
+    /**
+     * @return true if this is a partial update, which only makes sense on top of the document sent before
+     */
+    boolean isUpdate() {
+        return startsWith(lines, 0, UPDATE);
+    }
+
+    /**
+     * @return the end of the action starting at {@code start} in NDJSON bulk lines: its action line,
+     * followed by its source line unless it is a delete
+     */
+    static int actionEnd(byte[] lines, int start) {
+        int end = lineEnd(lines, start);
+        return startsWith(lines, start, DELETE) ? end : lineEnd(lines, end);
+    }
+
+    /**
+     * @return the index and document id of the action line starting at {@code start}, null if it has none
+     */
+    static IndexId actionId(byte[] lines, int start) {
+        JsonElement line = new JsonParser().parse(new String(lines, start, lineEnd(lines, start) - start, UTF_8));
+        JsonObject meta = line.getAsJsonObject().entrySet().iterator().next().getValue().getAsJsonObject();
+        if (!meta.has("_index") || !meta.has("_id")) return null;
+        return new IndexId(meta.get("_index").getAsString(), meta.get("_id").getAsString());
+    }
+
+    private static int lineEnd(byte[] lines, int start) {
+        for (int i = start; i < lines.length; i++) {
+            if (lines[i] == '\n') return i + 1;
+        }
+        return lines.length;
+    }
+
+    private static boolean startsWith(byte[] lines, int start, byte[] prefix) {
+        if (lines.length - start < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (lines[start + i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return an entry sending this entry's actions followed by the given entry's
+     */
+    BulkEntry followedBy(BulkEntry entry) {
+        byte[] both = Arrays.copyOf(lines, lines.length + entry.lines.length);
+        System.arraycopy(entry.lines, 0, both, lines.length, entry.lines.length);
+        BulkEntry followed = new BulkEntry(indexName, id, both);
+        followed.offset = offset;
+        return followed;
+    }
+
+    /**
+     * Encodes the entries rendered by the writer for the queue, without copying them into entries first.
+     */
+    static byte[] encode(BulkWriter writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(writer.size() + 32 * writer.entryCount() + 4);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(writer.entryCount());
+        for (int i = 0; i < writer.entryCount(); i++) {
+            IndexId id = writer.id(i);
+            int start = writer.entryStart(i), end = writer.entryEnd(i);
+            out.writeUTF(id.indexName);
+            out.writeUTF(id.id);
+            out.writeInt(end - start);
+            out.write(writer.buffer(), start, end - start);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static List<BulkEntry> decode(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<BulkEntry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String indexName = in.readUTF(), id = in.readUTF();
+            byte[] lines = new byte[in.readInt()];
+            in.readFully(lines);
+            entries.add(new BulkEntry(indexName, id, lines));
+        }
+        return entries;
+    }
+
+    @Override
+    public String toString() {
+        return "BulkEntry [indexName=" + indexName + ", id=" + id + "]";
+    }
+}
@@ -0,0 +1,183 @@
+package org.neo4j.elasticsearch;
+
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One of the parallel senders of the {@link ElasticSearchQueueDrainer}.
+ *
+ * Entries are assigned to a lane by the hash of their {@link IndexId}, so all changes of a
+ * document go through the same lane in commit order while different documents are sent in
+ * parallel. A lane has a bounded inbox, its own {@link BulkBatch} and sends one bulk request
+ * at a time over its own connection, as large as the shared {@link BulkSizer} currently allows. A failed request is sent again with exponential backoff,
+ * rejected items stay in the batch as in the single sender before.
+ *
+ * The lane reports the queue offset below which all its entries are settled, the drainer
+ * acknowledges the lowest offset of all lanes.
+ */
+class BulkLane implements Runnable {
+    private static final long IDLE_WAIT_MILLIS = 100;
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    private final int number;
+    private final BlockingQueue<BulkEntry> inbox;
+    private final JestClient client;
+    private final StringLogger logger;
+    private final BulkSizer sizer;
+    private final long lingerMillis;
+    private final ElasticSearchMetrics metrics;
+    private final BulkRetrier retrier;
+    private volatile long dispatched;
+    private volatile long settled;
+    private volatile boolean running;
+    private Thread thread;
+
+    BulkLane(int number, int queueDepth, JestClient client, StringLogger logger, BulkSizer sizer,
+             long lingerMillis, ElasticSearchMetrics metrics, BulkRetrier retrier) {
+        this.number = number;
+        this.inbox = new ArrayBlockingQueue<>(queueDepth);
+        this.client = client;
+        this.logger = logger;
+        this.sizer = sizer;
+        this.lingerMillis = lingerMillis;
+        this.metrics = metrics;
+        this.retrier = retrier;
+    }
+
+    /**
+     * @return the lane an entry of the document goes to
+     */
+    static int of(BulkEntry entry, int lanes) {
+        return (new IndexId(entry.indexName, entry.id).hashCode() & Integer.MAX_VALUE) % lanes;
+    }
+
+    synchronized void start(long offset) {
+        if (running) return;
+        dispatched = settled = offset;
+        running = true;
+        thread = new Thread(this, "neo4j.ElasticSearch-lane-" + number);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void stop() throws InterruptedException {
+        if (!running) return;
+        running = false;
+        thread.interrupt();
+        thread.join();
+        thread = null;
+        inbox.clear();
+    }
+
+    /**
+     * Hands an entry to the lane, waits while its inbox is full.
+     */
+    void put(BulkEntry entry) throws InterruptedException {
+        inbox.put(entry);
+    }
+
+    /**
+     * Tells the lane that all entries of records before the offset have been handed to it.
+     */
+    void dispatched(long offset) {
+        dispatched = offset;
+    }
+
+    /**
+     * @return the queue offset before which ElasticSearch accepted or refused all entries of this lane
+     */
+    long settled() {
+        return settled;
+    }
+
+    @Override
+    public void run() {
+        long backoff = MIN_BACKOFF_MILLIS;
+        int rejections = 0;
+        BulkBatch batch = new BulkBatch();
+        try {
+            while (running) {
+                // read before draining the inbox, everything dispatched up to here is in the batch afterwards
+                long dispatched = this.dispatched;
+                int maxActions = sizer.actions();
+                long maxBytes = sizer.bytes();
+                fill(batch, maxActions, maxBytes);
+                if (batch.isEmpty()) {
+                    settled = dispatched;
+                    await(batch, IDLE_WAIT_MILLIS);
+                    continue;
+                }
+                settled = Math.min(dispatched, batch.minOffset());
+                long age = batch.age();
+                if (!batch.isFull(maxActions, maxBytes) && age < lingerMillis) {
+                    await(batch, lingerMillis - age);
+                    continue;
+                }
+                JestResult result = ship(batch);
+                if (result == null) {
+                    metrics.retry();
+                    Thread.sleep(backoff);
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                    continue;
+                }
+                backoff = MIN_BACKOFF_MILLIS;
+                BulkResponse response = BulkResponse.hasErrors(result) ? BulkResponse.of(result) : null;
+                if (response == null) {
+                    batch.clear();
+                } else {
+                    batch.retain(response, retrier);
+                }
+                if (batch.isEmpty()) {
+                    rejections = 0;
+                } else {
+                    // the rejected items are sent along with the next batch
+                    metrics.retry();
+                    Thread.sleep(BulkRetrier.backoff(++rejections));
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (IOException e) {
+            logger.error("ElasticSearch sender lane " + number + " stopped", e);
+        }
+    }
+
+    private void fill(BulkBatch batch, int maxActions, long maxBytes) {
+        BulkEntry entry;
+        while (!batch.isFull(maxActions, maxBytes) && (entry = inbox.poll()) != null) {
+            batch.add(entry);
+        }
+    }
+
+    private void await(BulkBatch batch, long millis) throws InterruptedException {
+        BulkEntry entry = inbox.poll(millis, TimeUnit.MILLISECONDS);
+        if (entry != null) batch.add(entry);
+    }
+
+    /**
+     * @return the response if ElasticSearch accepted the request, null if it has to be sent again
+     */
+    private JestResult ship(BulkBatch batch) {
+        long start = System.nanoTime();
+        try {
+            metrics.bulk(batch.bytes());
+            JestResult result = client.execute(new RawBulk(batch.body()));
+            metrics.completed(start, result);
+            sizer.completed(batch.size(), batch.bytes(), result);
+            if (result.isSucceeded()) return result;
+            logger.warn("ElasticSearch Update Failed: " + result.getErrorMessage());
+        } catch (Exception e) {
+            metrics.failed(start);
+            sizer.failed();
+            logger.warn("Error updating ElasticSearch ", e);
+        }
+        return null;
+    }
+}
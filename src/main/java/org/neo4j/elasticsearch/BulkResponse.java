@@ -0,0 +1,96 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.searchbox.client.JestResult;
+
+import java.util.Map;
+
+/**
+ * The per-item outcome of a bulk request, item {@code i} belonging to the {@code i}-th action of the request.
+ */
+class BulkResponse {
+    static final int CONFLICT = 409, TOO_MANY_REQUESTS = 429, SERVICE_UNAVAILABLE = 503;
+
+    private final JsonObject[] items;
+
+    private BulkResponse(JsonObject[] items) {
+        this.items = items;
+    }
+
+    /**
+     * @return the items of the response, null if it carries none
+     */
+    static BulkResponse of(JestResult result) {
+        JsonObject json = result.getJsonObject();
+        if (json == null || !json.has("items") || !json.get("items").isJsonArray()) return null;
+        JsonArray array = json.getAsJsonArray("items");
+        JsonObject[] items = new JsonObject[array.size()];
+        for (int i = 0; i < items.length; i++) {
+            // {"index":{"_index":..,"_id":..,"status":..,"error":..}}
+            for (Map.Entry<String, JsonElement> action : array.get(i).getAsJsonObject().entrySet()) {
+                items[i] = action.getValue().getAsJsonObject();
+            }
+        }
+        return new BulkResponse(items);
+    }
+
+    /**
+     * @return true if the response reports any failed item
+     */
+    static boolean hasErrors(JestResult result) {
+        JsonObject json = result.getJsonObject();
+        JsonElement errors = json == null ? null : json.get("errors");
+        return errors != null && errors.isJsonPrimitive() && errors.getAsBoolean();
+    }
+
+    int size() {
+        return items.length;
+    }
+
+    String indexName(int item) {
+        return string(item, "_index");
+    }
+
+    String id(int item) {
+        return string(item, "_id");
+    }
+
+    int status(int item) {
+        JsonObject status = items[item];
+        return status != null && status.has("status") ? status.get("status").getAsInt() : 0;
+    }
+
+    String error(int item) {
+        JsonObject status = items[item];
+        if (status == null || !status.has("error")) return null;
+        JsonElement error = status.get("error");
+        return error.isJsonPrimitive() ? error.getAsString() : error.toString();
+    }
+
+    /**
+     * @return true if the item failed, an action whose external version lost against the stored document
+     * did not fail, it is merely outdated
+     */
+    boolean isFailed(int item) {
+        return error(item) != null && !isOutdated(item);
+    }
+
+    boolean isOutdated(int item) {
+        return status(item) == CONFLICT;
+    }
+
+    /**
+     * @return true if ElasticSearch rejected the item for lack of resources, so that sending it again later may succeed
+     */
+    boolean isRetriable(int item) {
+        int status = status(item);
+        return isFailed(item) && (status == TOO_MANY_REQUESTS || status == SERVICE_UNAVAILABLE);
+    }
+
+    private String string(int item, String field) {
+        JsonObject status = items[item];
+        return status != null && status.has(field) ? status.get(field).getAsString() : null;
+    }
+}
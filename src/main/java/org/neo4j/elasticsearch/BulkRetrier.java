@@ -0,0 +1,195 @@
+package org.neo4j.elasticsearch;
+
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deals with the items of a bulk response that ElasticSearch did not accept.
+ *
+ * Items rejected for lack of resources (429, 503) are sent again after an exponential backoff
+ * with jitter, until {@code maxAttempts} sends; items that failed otherwise or too often are
+ * written to the {@link DeadLetterFile}. The bulk requests sent directly from the commit path are
+ * retried on a scheduler thread here, the queue drainer and the reindexer retry on their own thread.
+ */
+class BulkRetrier {
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    private final JestClient client;
+    private final DeadLetterFile deadLetters;
+    private final int maxAttempts;
+    private final ElasticSearchMetrics metrics;
+    private final StringLogger logger;
+    private ScheduledExecutorService scheduler;
+    private DocumentCache documentCache;
+    private InFlightLimiter limiter;
+
+    BulkRetrier(JestClient client, DeadLetterFile deadLetters, int maxAttempts, ElasticSearchMetrics metrics, StringLogger logger) {
+        this.client = client;
+        this.deadLetters = deadLetters;
+        this.maxAttempts = maxAttempts;
+        this.metrics = metrics;
+        this.logger = logger;
+    }
+
+    /**
+     * Takes dead letters out of the cache, so that they are sent again when they are rendered next.
+     */
+    void setDocumentCache(DocumentCache documentCache) {
+        this.documentCache = documentCache;
+    }
+
+    /**
+     * Counts the requests sent again from the commit path towards the requests in flight. While all
+     * permits are taken a request waits for its next turn, without that counting as an attempt.
+     */
+    void setInFlightLimiter(InFlightLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * @return the milliseconds to wait before the given attempt, between half and all of an exponentially growing backoff
+     */
+    static long backoff(int attempt) {
+        long backoff = Math.min(MIN_BACKOFF_MILLIS << Math.min(attempt, 20), MAX_BACKOFF_MILLIS);
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    /**
+     * Decides about one action of a bulk request after ElasticSearch answered it.
+     *
+     * @param attempt how often the action has been sent
+     * @return true if the action should be sent again, a failed action that isn't retried is written to the
+     * dead letters, like one the response has no item for
+     */
+    boolean retry(BulkResponse response, int item, IndexId id, int attempt, byte[] lines, int start, int end) throws IOException {
+        boolean missing = item >= response.size();
+        if (!missing && !response.isFailed(item)) return false;
+        if ((missing || response.isRetriable(item)) && attempt < maxAttempts) return true;
+        if (missing) {
+            deadLetters.write(id, 0, "no item in the bulk response", lines, start, end);
+        } else {
+            deadLetters.write(id, response.status(item), response.error(item), lines, start, end);
+        }
+        metrics.deadLetter();
+        if (documentCache != null) documentCache.invalidate(id);
+        return false;
+    }
+
+    /**
+     * Writes the failed items of the response to the dead letters.
+     *
+     * @return the actions of the request that should be sent again, null if there are none
+     */
+    String retriable(String body, JestResult result, int attempt) throws IOException {
+        if (!BulkResponse.hasErrors(result)) return null;
+        BulkResponse response = BulkResponse.of(result);
+        if (response == null) return null;
+        byte[] lines = body.getBytes(BulkEntry.UTF_8);
+        ByteArrayOutputStream retry = new ByteArrayOutputStream();
+        for (int start = 0, item = 0; start < lines.length; item++) {
+            int end = BulkEntry.actionEnd(lines, start);
+            IndexId id = item < response.size()
+                    ? new IndexId(response.indexName(item), response.id(item)) : BulkEntry.actionId(lines, start);
+            if (retry(response, item, id, attempt, lines, start, end)) retry.write(lines, start, end - start);
+            start = end;
+        }
+        return retry.size() == 0 ? null : new String(retry.toByteArray(), BulkEntry.UTF_8);
+    }
+
+    /**
+     * Takes the documents of a request ElasticSearch did not accept out of the cache, so that they
+     * are sent again when they are rendered next.
+     */
+    void forget(String body) {
+        if (documentCache == null) return;
+        byte[] lines = body.getBytes(BulkEntry.UTF_8);
+        for (int start = 0; start < lines.length; start = BulkEntry.actionEnd(lines, start)) {
+            IndexId id = BulkEntry.actionId(lines, start);
+            if (id != null) documentCache.invalidate(id);
+        }
+    }
+
+    /**
+     * Wraps the handler of a request sent from the commit path, so that its failed items are dealt with.
+     */
+    JestResultHandler<JestResult> handling(final String body, final JestResultHandler<JestResult> handler) {
+        return handling(body, 1, handler);
+    }
+
+    private JestResultHandler<JestResult> handling(final String body, final int attempt, final JestResultHandler<JestResult> handler) {
+        return new JestResultHandler<JestResult>() {
+            @Override
+            public void completed(JestResult result) {
+                handler.completed(result);
+                try {
+                    String retry = result.isSucceeded() ? retriable(body, result, attempt) : body;
+                    if (retry != null) schedule(retry, attempt, handler);
+                } catch (IOException e) {
+                    logger.warn("ElasticSearch Integration: Could not write dead letters to " + deadLetters.file(), e);
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                handler.failed(e);
+                schedule(body, attempt, handler);
+            }
+        };
+    }
+
+    private void schedule(final String body, final int attempt, final JestResultHandler<JestResult> handler) {
+        if (attempt >= maxAttempts) {
+            logger.warn("ElasticSearch Integration: Giving up on bulk request after " + attempt + " attempts");
+            forget(body);
+            return;
+        }
+        metrics.retry();
+        scheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (limiter != null && !limiter.tryAcquire()) {
+                    scheduler().schedule(this, backoff(attempt), TimeUnit.MILLISECONDS);
+                    return;
+                }
+                try {
+                    JestResultHandler<JestResult> next = metrics.timing(handling(body, attempt + 1, handler));
+                    client.executeAsync(new RawBulk(body), limiter == null ? next : limiter.releasing(next));
+                } catch (Exception e) {
+                    if (limiter != null) limiter.release();
+                    forget(body);
+                    handler.failed(e);
+                }
+            }
+        }, backoff(attempt), TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "neo4j.ElasticSearch-retry");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    synchronized void shutdown() {
+        if (scheduler != null) scheduler.shutdownNow();
+        scheduler = null;
+    }
+}
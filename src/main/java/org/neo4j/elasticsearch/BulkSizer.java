@@ -0,0 +1,101 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.searchbox.client.JestResult;
+
+/**
+ * Decides how large the bulk requests of the sender lanes get, from how ElasticSearch coped with the last ones.
+ *
+ * The target grows additively, by a tenth of the range between the bounds, after each full bulk
+ * ElasticSearch handled within {@code targetTookMillis} without rejecting anything, and halves
+ * after a bulk that took longer, had items rejected for lack of resources (429, 503) or failed
+ * as a whole. Bulks that weren't full tell nothing about the target and leave it. All lanes share
+ * one sizer, they talk to the same cluster. With equal bounds the size is fixed.
+ */
+class BulkSizer {
+    private static final int STEPS = 10;
+    private static final double DECREASE = 0.5;
+
+    private final int minActions, maxActions;
+    private final long minBytes, maxBytes;
+    private final long targetTookMillis;
+    private final ElasticSearchMetrics metrics;
+    private double fraction;
+
+    BulkSizer(int minActions, int maxActions, long minBytes, long maxBytes, long targetTookMillis, ElasticSearchMetrics metrics) {
+        this.minActions = Math.min(minActions, maxActions);
+        this.maxActions = maxActions;
+        this.minBytes = Math.min(minBytes, maxBytes);
+        this.maxBytes = maxBytes;
+        this.targetTookMillis = targetTookMillis;
+        this.metrics = metrics;
+        // start at the bottom, the first full bulks show how much more ElasticSearch takes
+        this.fraction = minActions >= maxActions && minBytes >= maxBytes ? 1 : 0;
+        report();
+    }
+
+    /**
+     * A sizer that always returns the given size.
+     */
+    static BulkSizer fixed(int actions, long bytes, ElasticSearchMetrics metrics) {
+        return new BulkSizer(actions, actions, bytes, bytes, Long.MAX_VALUE, metrics);
+    }
+
+    synchronized int actions() {
+        return minActions + (int) Math.round((maxActions - minActions) * fraction);
+    }
+
+    synchronized long bytes() {
+        return minBytes + Math.round((maxBytes - minBytes) * fraction);
+    }
+
+    /**
+     * Adjusts the target after ElasticSearch answered a bulk of the given size.
+     */
+    void completed(int actions, long bytes, JestResult result) {
+        boolean full = actions >= actions() || bytes >= bytes();
+        if (!result.isSucceeded() || isRejecting(result) || took(result) > targetTookMillis) {
+            decrease();
+        } else if (full) {
+            increase();
+        }
+    }
+
+    /**
+     * Shrinks the target after a bulk that got no answer.
+     */
+    void failed() {
+        decrease();
+    }
+
+    private synchronized void increase() {
+        fraction = Math.min(1, fraction + 1.0 / STEPS);
+        report();
+    }
+
+    private synchronized void decrease() {
+        fraction *= DECREASE;
+        report();
+    }
+
+    private void report() {
+        metrics.bulkTarget(actions(), bytes());
+    }
+
+    private static boolean isRejecting(JestResult result) {
+        if (!BulkResponse.hasErrors(result)) return false;
+        BulkResponse response = BulkResponse.of(result);
+        if (response == null) return false;
+        for (int item = 0; item < response.size(); item++) {
+            if (response.isRetriable(item)) return true;
+        }
+        return false;
+    }
+
+    private static long took(JestResult result) {
+        JsonObject json = result.getJsonObject();
+        JsonElement took = json == null ? null : json.get("took");
+        return took != null && took.isJsonPrimitive() ? took.getAsLong() : 0;
+    }
+}
@@ -0,0 +1,431 @@
+package org.neo4j.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Renders bulk actions as NDJSON straight into a reusable byte buffer.
+ *
+ * Each action is one entry: the action/meta line followed by an optional source line.
+ * Entry boundaries and their {@link IndexId}s are tracked, so the buffer can be sent as a
+ * whole or split into {@link BulkEntry}s for the queue. Property values, including arrays
+ * of primitives, are written directly without going through an intermediate Map or boxing.
+ *
+ * Writers are pooled per thread via {@link #acquire()} and must be handed back with
+ * {@link #release()} once their content has been shipped.
+ */
+class BulkWriter {
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+    private static final int POOLED_CAPACITY_LIMIT = 1024 * 1024;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(BulkEntry.UTF_8);
+    private static final ThreadLocal<BulkWriter> POOL = new ThreadLocal<>();
+    private static final byte[] VERSION = ",\"_version\":".getBytes(BulkEntry.UTF_8);
+    private static final byte[] VERSION_TYPE_EXTERNAL = ",\"_version_type\":\"external\"".getBytes(BulkEntry.UTF_8);
+    /** version of actions that leave versioning to ElasticSearch */
+    static final long NO_VERSION = -1;
+    /** version of actions of a transaction not committed yet, filled in by {@link #commitVersion} */
+    static final long COMMIT_VERSION = -2;
+    private static final int VERSION_WIDTH = 19;
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int size;
+    private final List<IndexId> ids = new ArrayList<>();
+    private int[] ends = new int[16];
+    private int entryStart;
+    private int[] versions = new int[16];
+    private int versionCount;
+    private boolean first;
+    private boolean inUse;
+
+    /**
+     * @return the writer pooled for this thread, or a fresh one if that is already in use
+     */
+    static BulkWriter acquire() {
+        BulkWriter writer = POOL.get();
+        if (writer == null) {
+            writer = new BulkWriter();
+            POOL.set(writer);
+        } else if (writer.inUse) {
+            writer = new BulkWriter();
+        }
+        writer.inUse = true;
+        return writer;
+    }
+
+    void release() {
+        reset();
+        if (buffer.length > POOLED_CAPACITY_LIMIT) buffer = new byte[INITIAL_CAPACITY];
+        inUse = false;
+    }
+
+    void reset() {
+        size = 0;
+        entryStart = 0;
+        versionCount = 0;
+        ids.clear();
+    }
+
+    /**
+     * Starts an action from a line pre-encoded with {@link #encodeAction}, only the id is written.
+     */
+    BulkWriter action(byte[] encodedAction, String indexName, String id) {
+        entryStart = size;
+        ids.add(new IndexId(indexName, id));
+        raw(encodedAction);
+        return actionSuffix(id);
+    }
+
+    /**
+     * Starts an action from a pre-encoded line, with an external version ElasticSearch only applies
+     * if it is higher than the one of the stored document, unless it is {@link #NO_VERSION}.
+     * {@link #COMMIT_VERSION} leaves room for the version, which is filled in by {@link #commitVersion}.
+     */
+    BulkWriter action(byte[] encodedAction, String indexName, String id, long version) {
+        if (version == NO_VERSION) return action(encodedAction, indexName, id);
+        entryStart = size;
+        ids.add(new IndexId(indexName, id));
+        raw(encodedAction);
+        string(id);
+        raw(VERSION);
+        if (version == COMMIT_VERSION) {
+            if (versionCount == versions.length) versions = Arrays.copyOf(versions, versionCount * 2);
+            versions[versionCount++] = size;
+            ensureCapacity(VERSION_WIDTH);
+            buffer[size] = '0';
+            Arrays.fill(buffer, size + 1, size + VERSION_WIDTH, (byte) ' ');
+            size += VERSION_WIDTH;
+        } else {
+            number(version);
+        }
+        raw(VERSION_TYPE_EXTERNAL);
+        return endAction();
+    }
+
+    /**
+     * Fills in the version of the actions started with {@link #COMMIT_VERSION}, padded with
+     * whitespace to the room left for it.
+     */
+    void commitVersion(long version) {
+        byte[] digits = String.valueOf(version).getBytes(BulkEntry.UTF_8);
+        for (int i = 0; i < versionCount; i++) {
+            System.arraycopy(digits, 0, buffer, versions[i], digits.length);
+            Arrays.fill(buffer, versions[i] + digits.length, versions[i] + VERSION_WIDTH, (byte) ' ');
+        }
+        versionCount = 0;
+    }
+
+    /**
+     * @return the action line up to the document id, e.g. {@code {"index":{"_index":"people","_type":"Person","_id":}
+     */
+    static byte[] encodeAction(String action, String indexName, String type) {
+        BulkWriter writer = new BulkWriter();
+        writer.actionPrefix(action, indexName, type);
+        return Arrays.copyOf(writer.buffer, writer.size);
+    }
+
+    /**
+     * @return the field name with its colon, to be written with {@link #field(byte[], Object)}
+     */
+    static byte[] encodeName(String name) {
+        BulkWriter writer = new BulkWriter();
+        writer.string(name);
+        writer.writeByte(':');
+        return Arrays.copyOf(writer.buffer, writer.size);
+    }
+
+    private void actionPrefix(String action, String indexName, String type) {
+        writeByte('{');
+        string(action);
+        writeByte(':');
+        writeByte('{');
+        first = true;
+        field("_index", indexName);
+        if (type != null) field("_type", type);
+        name("_id");
+    }
+
+    private BulkWriter actionSuffix(String id) {
+        string(id);
+        return endAction();
+    }
+
+    private BulkWriter endAction() {
+        writeByte('}');
+        writeByte('}');
+        writeByte('\n');
+        return this;
+    }
+
+    /**
+     * Starts the source line of the current action.
+     */
+    BulkWriter startObject() {
+        writeByte('{');
+        first = true;
+        return this;
+    }
+
+    /**
+     * Starts a nested object as value of the given field, e.g. the {@code doc} of an update.
+     */
+    BulkWriter startObject(String name) {
+        name(name);
+        return startObject();
+    }
+
+    BulkWriter endObject() {
+        writeByte('}');
+        first = false;
+        return this;
+    }
+
+    /**
+     * Terminates the source line and with it the current entry.
+     */
+    BulkWriter endEntry() {
+        if (size > entryStart && buffer[size - 1] != '\n') writeByte('\n');
+        if (ids.size() > ends.length) ends = Arrays.copyOf(ends, ends.length * 2);
+        ends[ids.size() - 1] = size;
+        return this;
+    }
+
+    BulkWriter field(String name, String value) {
+        name(name);
+        string(value);
+        return this;
+    }
+
+    BulkWriter field(String name, String[] values) {
+        name(name);
+        writeByte('[');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) writeByte(',');
+            string(values[i]);
+        }
+        writeByte(']');
+        return this;
+    }
+
+    BulkWriter field(String name, Object value) {
+        name(name);
+        value(value);
+        return this;
+    }
+
+    BulkWriter field(byte[] encodedName, Object value) {
+        if (!first) writeByte(',');
+        first = false;
+        raw(encodedName);
+        value(value);
+        return this;
+    }
+
+    /**
+     * Appends an entry of another writer as it is.
+     */
+    BulkWriter copy(BulkWriter from, int entry) {
+        int start = from.entryStart(entry), length = from.entryEnd(entry) - start;
+        entryStart = size;
+        ids.add(from.id(entry));
+        ensureCapacity(length);
+        System.arraycopy(from.buffer, start, buffer, size, length);
+        size += length;
+        return endEntry();
+    }
+
+    /**
+     * Drops the entries after the first {@code entries}, including one that was started but not ended.
+     */
+    void truncate(int entries) {
+        size = entries == 0 ? 0 : ends[entries - 1];
+        entryStart = size;
+        while (versionCount > 0 && versions[versionCount - 1] >= size) versionCount--;
+        while (ids.size() > entries) ids.remove(ids.size() - 1);
+    }
+
+    int entryCount() {
+        return ids.size();
+    }
+
+    IndexId id(int entry) {
+        return ids.get(entry);
+    }
+
+    int entryStart(int entry) {
+        return entry == 0 ? 0 : ends[entry - 1];
+    }
+
+    int entryEnd(int entry) {
+        return ends[entry];
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return ids.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, size, BulkEntry.UTF_8);
+    }
+
+    private void name(String name) {
+        if (!first) writeByte(',');
+        first = false;
+        string(name);
+        writeByte(':');
+    }
+
+    private void value(Object value) {
+        if (value == null) {
+            ascii("null");
+        } else if (value instanceof String) {
+            string((String) value);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            number(((Number) value).longValue());
+        } else if (value instanceof Double) {
+            number(((Double) value).doubleValue());
+        } else if (value instanceof Float) {
+            number(((Float) value).floatValue());
+        } else if (value instanceof Boolean) {
+            ascii(((Boolean) value) ? "true" : "false");
+        } else if (value instanceof Character) {
+            string(String.valueOf(value));
+        } else if (value.getClass().isArray()) {
+            array(value);
+        } else {
+            string(value.toString());
+        }
+    }
+
+    private void array(Object value) {
+        writeByte('[');
+        if (value instanceof long[]) {
+            long[] a = (long[]) value;
+            for (int i = 0; i < a.length; i++) { if (i > 0) writeByte(','); number(a[i]); }
+        } else if (value instanceof int[]) {
+            int[] a = (int[]) value;
+            for (int i = 0; i < a.length; i++) { if (i > 0) writeByte(','); number(a[i]); }
+        } else if (value instanceof short[]) {
+            short[] a = (short[]) value;
+            for (int i = 0; i < a.length; i++) { if (i > 0) writeByte(','); number(a[i]); }
+        } else if (value instanceof byte[]) {
+            byte[] a = (byte[]) value;
+            for (int i = 0; i < a.length; i++) { if (i > 0) writeByte(','); number(a[i]); }
+        } else if (value instanceof double[]) {
+            double[] a = (double[]) value;
+            for (int i = 0; i < a.length; i++) { if (i > 0) writeByte(','); number(a[i]); }
+        } else if (value instanceof float[]) {
+            float[] a = (float[]) value;
+            for (int i = 0; i < a.length; i++) { if (i > 0) writeByte(','); number(a[i]); }
+        } else if (value instanceof boolean[]) {
+            boolean[] a = (boolean[]) value;
+            for (int i = 0; i < a.length; i++) { if (i > 0) writeByte(','); ascii(a[i] ? "true" : "false"); }
+        } else if (value instanceof char[]) {
+            char[] a = (char[]) value;
+            for (int i = 0; i < a.length; i++) { if (i > 0) writeByte(','); string(String.valueOf(a[i])); }
+        } else {
+            Object[] a = (Object[]) value;
+            for (int i = 0; i < a.length; i++) { if (i > 0) writeByte(','); value(a[i]); }
+        }
+        writeByte(']');
+    }
+
+    private void number(long value) {
+        if (value == Long.MIN_VALUE) {
+            ascii("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            writeByte('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) digits++;
+        ensureCapacity(digits);
+        for (int i = size + digits - 1; i >= size; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+    }
+
+    private void number(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) ascii("null");
+        else ascii(Double.toString(value));
+    }
+
+    private void number(float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) ascii("null");
+        else ascii(Float.toString(value));
+    }
+
+    private void string(String value) {
+        ensureCapacity(value.length() + 2);
+        buffer[size++] = '"';
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                writeByte('\\');
+                writeByte(c);
+            } else if (c < 0x20) {
+                switch (c) {
+                    case '\n': writeByte('\\'); writeByte('n'); break;
+                    case '\r': writeByte('\\'); writeByte('r'); break;
+                    case '\t': writeByte('\\'); writeByte('t'); break;
+                    default:
+                        writeByte('\\'); writeByte('u'); writeByte('0'); writeByte('0');
+                        writeByte(HEX[c >> 4]); writeByte(HEX[c & 0xF]);
+                }
+            } else if (c < 0x80) {
+                writeByte(c);
+            } else if (c < 0x800) {
+                writeByte(0xC0 | (c >> 6));
+                writeByte(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                writeByte(0xF0 | (codePoint >> 18));
+                writeByte(0x80 | ((codePoint >> 12) & 0x3F));
+                writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+                writeByte(0x80 | (codePoint & 0x3F));
+            } else {
+                writeByte(0xE0 | (c >> 12));
+                writeByte(0x80 | ((c >> 6) & 0x3F));
+                writeByte(0x80 | (c & 0x3F));
+            }
+        }
+        writeByte('"');
+    }
+
+    private void ascii(String value) {
+        ensureCapacity(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer[size++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void raw(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    private void writeByte(int b) {
+        if (size == buffer.length) ensureCapacity(1);
+        buffer[size++] = (byte) b;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (size + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + additional));
+        }
+    }
+}
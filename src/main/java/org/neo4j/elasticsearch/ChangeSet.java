@@ -0,0 +1,229 @@
+package org.neo4j.elasticsearch;
+
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongObjectMap;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
+import org.neo4j.elasticsearch.IndexPlan.IndexTarget;
+import org.neo4j.elasticsearch.IndexPlan.LabelPlan;
+import org.neo4j.graphdb.PropertyContainer;
+
+import java.util.Arrays;
+
+/**
+ * The documents changed by a transaction, each at most once, in the order they were first changed.
+ *
+ * A document is keyed by the ordinal of its index, which is the same in every {@link IndexPlan},
+ * and the id of its node or relationship, no {@link IndexId} is created before the bulk is rendered. Changes are kept in
+ * parallel arrays found through an open addressing table, and a set is reused per thread, so
+ * collecting the changes of a transaction allocates nothing once the arrays have grown.
+ */
+class ChangeSet {
+    static final int INDEX = 0, DELETE = 1, UPDATE = 2;
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int POOLED_CAPACITY_LIMIT = 64 * 1024;
+    private static final ThreadLocal<ChangeSet> POOL = new ThreadLocal<>();
+
+    /** the indexed labels of the nodes looked at, reused like the changes */
+    final PrimitiveLongObjectMap<LabelPlan[]> nodeLabels = Primitive.longObjectMap();
+    final PrimitiveLongSet deletedRelationships = Primitive.longSet();
+    /** the properties of the node rendered last */
+    final NodeProperties nodeProperties = new NodeProperties();
+
+    private int size;
+    private byte[] kinds;
+    private long[] ids;
+    private int[] indices;
+    private IndexTarget[] targets;
+    private PropertyContainer[] entities;
+    /** the properties of an update, bit i for the i-th property of the target */
+    private long[] changed;
+    /** position + 1 of the change in each slot, 0 if free */
+    private int[] table;
+    /** the slot of each change, to clear just the used slots */
+    private int[] slots;
+    private boolean inUse;
+
+    ChangeSet() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @return the change set pooled for this thread, or a fresh one if that is already in use
+     */
+    static ChangeSet acquire() {
+        ChangeSet changes = POOL.get();
+        if (changes == null) {
+            changes = new ChangeSet();
+            POOL.set(changes);
+        } else if (changes.inUse) {
+            changes = new ChangeSet();
+        }
+        changes.inUse = true;
+        return changes;
+    }
+
+    void release() {
+        clear();
+        if (kinds.length > POOLED_CAPACITY_LIMIT) allocate(INITIAL_CAPACITY);
+        inUse = false;
+    }
+
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            table[slots[i]] = 0;
+        }
+        Arrays.fill(entities, 0, size, null);
+        Arrays.fill(targets, 0, size, null);
+        size = 0;
+        nodeLabels.clear();
+        deletedRelationships.clear();
+        nodeProperties.clear();
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int kind(int i) {
+        return kinds[i];
+    }
+
+    long id(int i) {
+        return ids[i];
+    }
+
+    IndexTarget target(int i) {
+        return targets[i];
+    }
+
+    PropertyContainer entity(int i) {
+        return entities[i];
+    }
+
+    long changed(int i) {
+        return changed[i];
+    }
+
+    /**
+     * Replaces any change of the document, keeping its position.
+     */
+    void put(int kind, PropertyContainer entity, long id, IndexTarget target) {
+        set(positionOf(target.index, id), kind, entity, target);
+    }
+
+    /**
+     * Adds the property to the partial update of the document, unless it is indexed or deleted anyway.
+     * Targets with more properties than bits in a long are indexed as a whole instead, as are
+     * updates of a target whose properties changed with the index spec.
+     */
+    void update(PropertyContainer entity, long id, IndexTarget target, int property) {
+        boolean known = table[slot(target.index, id)] != 0;
+        int i = positionOf(target.index, id);
+        if (!known) set(i, UPDATE, entity, target);
+        if (kinds[i] != UPDATE) return;
+        if (targets[i].properties != target.properties) {
+            set(i, INDEX, entity, target);
+            return;
+        }
+        if (property < Long.SIZE) {
+            changed[i] |= 1L << property;
+        } else {
+            kinds[i] = INDEX;
+        }
+    }
+
+    /**
+     * Merges the changes of a later transaction: its indexes and deletes replace earlier changes,
+     * its updates add to earlier updates.
+     */
+    void addAll(ChangeSet later) {
+        for (int i = 0; i < later.size; i++) {
+            if (later.kinds[i] != UPDATE) {
+                put(later.kinds[i], later.entities[i], later.ids[i], later.targets[i]);
+                continue;
+            }
+            for (long bits = later.changed[i]; bits != 0; bits &= bits - 1) {
+                update(later.entities[i], later.ids[i], later.targets[i], Long.numberOfTrailingZeros(bits));
+            }
+        }
+    }
+
+    private void set(int i, int kind, PropertyContainer entity, IndexTarget target) {
+        kinds[i] = (byte) kind;
+        entities[i] = entity;
+        targets[i] = target;
+        changed[i] = 0;
+    }
+
+    /**
+     * @return the position of the document's change, a new one at the end if it has none yet
+     */
+    private int positionOf(int index, long id) {
+        int slot = slot(index, id);
+        if (table[slot] != 0) return table[slot] - 1;
+        if (size == kinds.length) {
+            grow();
+            slot = slot(index, id);
+        }
+        int i = size++;
+        ids[i] = id;
+        indices[i] = index;
+        table[slot] = i + 1;
+        slots[i] = slot;
+        return i;
+    }
+
+    /**
+     * @return the slot holding the document, or the free slot it goes to
+     */
+    private int slot(int index, long id) {
+        int mask = table.length - 1;
+        int slot = hash(index, id) & mask;
+        while (true) {
+            int position = table[slot];
+            if (position == 0) return slot;
+            if (ids[position - 1] == id && indices[position - 1] == index) return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static int hash(int index, long id) {
+        long h = (id ^ ((long) index << 40)) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32);
+    }
+
+    private void grow() {
+        int capacity = kinds.length * 2;
+        kinds = Arrays.copyOf(kinds, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        indices = Arrays.copyOf(indices, capacity);
+        targets = Arrays.copyOf(targets, capacity);
+        entities = Arrays.copyOf(entities, capacity);
+        changed = Arrays.copyOf(changed, capacity);
+        slots = new int[capacity];
+        table = new int[capacity * 2];
+        int mask = table.length - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = hash(indices[i], ids[i]) & mask;
+            while (table[slot] != 0) slot = (slot + 1) & mask;
+            table[slot] = i + 1;
+            slots[i] = slot;
+        }
+    }
+
+    private void allocate(int capacity) {
+        kinds = new byte[capacity];
+        ids = new long[capacity];
+        indices = new int[capacity];
+        targets = new IndexTarget[capacity];
+        entities = new PropertyContainer[capacity];
+        changed = new long[capacity];
+        slots = new int[capacity];
+        table = new int[capacity * 2];
+    }
+}
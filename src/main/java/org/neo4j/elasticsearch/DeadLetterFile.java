@@ -0,0 +1,45 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Keeps the bulk actions that ElasticSearch refused for good, so the documents that diverged can be
+ * inspected and repaired.
+ *
+ * Every action is appended as one JSON line holding the {@link IndexId} of the document, the item
+ * status and error reported by ElasticSearch, and the action lines as they were sent.
+ */
+class DeadLetterFile {
+    private final File file;
+    private long count;
+
+    DeadLetterFile(File file) {
+        this.file = file;
+    }
+
+    synchronized void write(IndexId id, int status, String error, byte[] lines, int start, int end) throws IOException {
+        JsonObject letter = new JsonObject();
+        letter.addProperty("_index", id.indexName);
+        letter.addProperty("_id", id.id);
+        letter.addProperty("status", status);
+        letter.addProperty("error", error);
+        letter.addProperty("action", new String(lines, start, end - start, BulkEntry.UTF_8));
+        try (OutputStream out = new FileOutputStream(file, true)) {
+            out.write((letter.toString() + "\n").getBytes(BulkEntry.UTF_8));
+        }
+        count++;
+    }
+
+    synchronized long count() {
+        return count;
+    }
+
+    File file() {
+        return file;
+    }
+}
@@ -0,0 +1,134 @@
+package org.neo4j.elasticsearch;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Remembers a 64 bit hash of the document last sent per index and id, so that a node rewritten
+ * with the values it already had isn't indexed again.
+ *
+ * The entries live off-heap in a direct buffer of fixed size, in buckets of {@link #WAYS} entries
+ * that a document's key maps to. When a bucket is full, an entry not hit since the last sweep of
+ * the bucket is evicted, the clock algorithm within the bucket. Buckets are locked in stripes.
+ */
+class DocumentCache {
+    static final int ENTRY_BYTES = 24;
+    static final int WAYS = 8;
+    private static final int BUCKET_BYTES = ENTRY_BYTES * WAYS;
+    private static final int STRIPES = 64;
+    // entry layout: id, document hash, index name hash, flags
+    private static final int ID = 0, HASH = 8, INDEX = 16, FLAGS = 20;
+    private static final int USED = 1, REFERENCED = 2;
+
+    private final ByteBuffer entries;
+    private final int buckets;
+    private final Object[] locks = new Object[STRIPES];
+    private final ElasticSearchMetrics metrics;
+
+    /**
+     * @param bytes the off-heap memory to take, at least one bucket of {@link #WAYS} entries
+     */
+    DocumentCache(long bytes, ElasticSearchMetrics metrics) {
+        this.buckets = (int) Math.max(1, Math.min(bytes / BUCKET_BYTES, Integer.MAX_VALUE / BUCKET_BYTES));
+        this.entries = ByteBuffer.allocateDirect(buckets * BUCKET_BYTES);
+        this.metrics = metrics;
+        for (int i = 0; i < STRIPES; i++) locks[i] = new Object();
+    }
+
+    /**
+     * Records the hash of the document being sent.
+     *
+     * @return true if the document was last sent with the same hash
+     */
+    boolean update(String indexName, long id, long hash) {
+        int index = indexName.hashCode();
+        int bucket = bucket(index, id);
+        synchronized (locks[bucket % STRIPES]) {
+            int base = bucket * BUCKET_BYTES, free = -1;
+            for (int way = 0; way < WAYS; way++) {
+                int entry = base + way * ENTRY_BYTES;
+                int flags = entries.getInt(entry + FLAGS);
+                if ((flags & USED) == 0) {
+                    if (free < 0) free = entry;
+                    continue;
+                }
+                if (entries.getLong(entry + ID) != id || entries.getInt(entry + INDEX) != index) continue;
+                entries.putInt(entry + FLAGS, USED | REFERENCED);
+                if (entries.getLong(entry + HASH) == hash) {
+                    metrics.documentCacheHit();
+                    return true;
+                }
+                entries.putLong(entry + HASH, hash);
+                metrics.documentCacheMiss();
+                return false;
+            }
+            metrics.documentCacheMiss();
+            if (free < 0) {
+                free = victim(base);
+                metrics.documentCacheEviction();
+            }
+            entries.putLong(free + ID, id);
+            entries.putLong(free + HASH, hash);
+            entries.putInt(free + INDEX, index);
+            entries.putInt(free + FLAGS, USED);
+            return false;
+        }
+    }
+
+    /**
+     * Forgets the document, the next time it is rendered it is sent whatever it looks like.
+     */
+    void invalidate(String indexName, long id) {
+        int index = indexName.hashCode();
+        int bucket = bucket(index, id);
+        synchronized (locks[bucket % STRIPES]) {
+            int base = bucket * BUCKET_BYTES;
+            for (int way = 0; way < WAYS; way++) {
+                int entry = base + way * ENTRY_BYTES;
+                if ((entries.getInt(entry + FLAGS) & USED) != 0
+                        && entries.getLong(entry + ID) == id && entries.getInt(entry + INDEX) == index) {
+                    entries.putInt(entry + FLAGS, 0);
+                    return;
+                }
+            }
+        }
+    }
+
+    void invalidate(IndexId id) {
+        try {
+            invalidate(id.indexName, Long.parseLong(id.id));
+        } catch (NumberFormatException e) {
+            // not a document of ours
+        }
+    }
+
+    /**
+     * Gives the entries referenced since the last sweep a second chance, the first one that wasn't is evicted.
+     */
+    private int victim(int base) {
+        while (true) {
+            for (int way = 0; way < WAYS; way++) {
+                int entry = base + way * ENTRY_BYTES;
+                int flags = entries.getInt(entry + FLAGS);
+                if ((flags & REFERENCED) == 0) return entry;
+                entries.putInt(entry + FLAGS, flags & ~REFERENCED);
+            }
+        }
+    }
+
+    private int bucket(int index, long id) {
+        long h = (id ^ ((long) index << 32)) * 0x9E3779B97F4A7C15L;
+        return (int) ((h >>> 32) % buckets);
+    }
+
+    /**
+     * @return a 64 bit FNV-1a hash of the bytes, starting from the given seed
+     */
+    static long hash(long seed, byte[] bytes, int start, int end) {
+        long h = 0xcbf29ce484222325L ^ seed;
+        for (int i = start; i < end; i++) {
+            h ^= bytes[i] & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+}
@@ -1,227 +1,819 @@
 package org.neo4j.elasticsearch;
 
-import io.searchbox.action.BulkableAction;
 import io.searchbox.client.JestClient;
 import io.searchbox.client.JestResult;
 import io.searchbox.client.JestResultHandler;
-import io.searchbox.core.Bulk;
-import io.searchbox.core.Delete;
-import io.searchbox.core.Index;
-import io.searchbox.core.Update;
 
+import org.neo4j.collection.primitive.PrimitiveIntIterator;
+import org.neo4j.collection.primitive.PrimitiveLongIterator;
+import org.neo4j.collection.primitive.PrimitiveLongObjectMap;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
+import org.neo4j.elasticsearch.IndexPlan.IndexTarget;
+import org.neo4j.elasticsearch.IndexPlan.LabelPlan;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.event.LabelEntry;
 import org.neo4j.graphdb.event.PropertyEntry;
 import org.neo4j.graphdb.event.TransactionData;
 import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.api.ReadOperations;
+import org.neo4j.kernel.api.Statement;
+import org.neo4j.kernel.api.StatementConstants;
+import org.neo4j.kernel.api.exceptions.EntityNotFoundException;
+import org.neo4j.kernel.api.exceptions.LabelNotFoundKernelException;
+import org.neo4j.kernel.api.exceptions.PropertyKeyIdNotFoundKernelException;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.impl.store.NeoStore;
+import org.neo4j.kernel.impl.transaction.log.TransactionIdStore;
+import org.neo4j.kernel.impl.transaction.state.NeoStoreProvider;
 import org.neo4j.kernel.impl.util.StringLogger;
 
 
 
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
 * @author mh
 * @since 25.04.15
 */
-class ElasticSearchEventHandler implements TransactionEventHandler<Collection<BulkableAction>>, JestResultHandler<JestResult> {
+class ElasticSearchEventHandler implements TransactionEventHandler<Object>, JestResultHandler<JestResult> {
+    private static final byte[] ID = BulkWriter.encodeName("id"), LABELS = BulkWriter.encodeName("labels"),
+            TYPE = BulkWriter.encodeName("type"), START = BulkWriter.encodeName("start"), END = BulkWriter.encodeName("end"),
+            START_LABELS = BulkWriter.encodeName("start_labels"), END_LABELS = BulkWriter.encodeName("end_labels"),
+            CHECKSUM = BulkWriter.encodeName(ElasticSearchReconciler.CHECKSUM);
+    private static final IndexTarget[] NO_TARGETS = new IndexTarget[0];
+    private static final long QUEUE_FULL_WAIT_MILLIS = 100;
+
     private final JestClient client;
     private final StringLogger logger;
     private final GraphDatabaseService gds;
-    private final Map<Label, List<ElasticSearchIndexSpec>> indexSpecs;
-    private final Set<Label> indexLabels;
+    private final AtomicReference<IndexPlan> plan = new AtomicReference<>();
+    private ThreadToStatementContextBridge bridge;
     private boolean useAsyncJest = true;
+    private ElasticSearchQueue queue;
+    private InFlightLimiter limiter;
+    private ElasticSearchQueue spillQueue;
+    private ElasticSearchMetrics metrics = new ElasticSearchMetrics();
+    private BulkRetrier retrier;
+    private ElasticSearchRenderer renderer;
+    private int deferMinChanges;
+    private int chunkActions = Integer.MAX_VALUE;
+    private long chunkBytes = Long.MAX_VALUE;
+    private DocumentCache documentCache;
+    private boolean externalVersioning;
+    private boolean checksums;
+    private TransactionIdStore txIdStore;
+    private NeoStoreProvider neoStore;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong lost = new AtomicLong();
+    private volatile boolean stopping;
 
     public ElasticSearchEventHandler(JestClient client, Map<Label, List<ElasticSearchIndexSpec>> indexSpec, StringLogger logger, GraphDatabaseService gds) {
+        this(client, indexSpec, Collections.<String, List<ElasticSearchIndexSpec>>emptyMap(), logger, gds);
+    }
+
+    public ElasticSearchEventHandler(JestClient client, Map<Label, List<ElasticSearchIndexSpec>> indexSpec,
+                                     Map<String, List<ElasticSearchIndexSpec>> relationshipIndexSpec,
+                                     StringLogger logger, GraphDatabaseService gds) {
         this.client = client;
-        this.indexSpecs = indexSpec;
-        this.indexLabels = indexSpec.keySet();
+        this.plan.set(IndexPlan.compile(indexSpec, relationshipIndexSpec));
         this.logger = logger;
         this.gds = gds;
     }
 
+    /**
+     * Collects the changed documents in a pooled {@link ChangeSet}, then renders them straight
+     * into a pooled {@link BulkWriter} while the transaction state is still readable.
+     * The indexed labels of each changed node are looked up once per transaction.
+     * With an {@link ElasticSearchRenderer} only the changes are collected, rendering them is
+     * left to the renderer after the commit, for all transactions or for large ones only. While the
+     * renderer has changes it didn't hand on yet, small transactions go through it as well, so that
+     * they can't overtake the changes of an earlier large one to the same documents.
+     *
+     * Property changes only touch the documents that index the property and are sent as partial
+     * updates of the changed fields, unless the whole document is sent anyway because the node
+     * or its label is new. Assigning a property its previous value is no change.
+     * Relationships are handled alike, by the indices of their type.
+     *
+     * @return the rendered {@link BulkWriter}, or the {@link ChangeSet} if rendering is deferred
+     */
     @Override
-    public Collection<BulkableAction> beforeCommit(TransactionData transactionData) throws Exception {
-        //List<BulkableAction> actions = new ArrayList<>(1000);
-        Map<IndexId, BulkableAction> actions = new HashMap<>(1000);
+    public Object beforeCommit(TransactionData transactionData) throws Exception {
+        long start = System.nanoTime();
+        pending.incrementAndGet();
+        ChangeSet changes = ChangeSet.acquire();
+        try (Statement statement = statement()) {
+            ReadOperations read = statement.readOperations();
+            collect(transactionData, plan(read), read, changes);
+            if (changes.isEmpty() || (renderer != null && (changes.size() >= deferMinChanges || renderer.backlog() > 0))) {
+                metrics.beforeCommit(start, changes.size());
+                if (!changes.isEmpty()) return changes;
+                changes.release();
+                return null;
+            }
+            BulkWriter writer = BulkWriter.acquire();
+            try {
+                render(changes, read, writer, externalVersioning ? BulkWriter.COMMIT_VERSION : BulkWriter.NO_VERSION, true);
+            } catch (Exception e) {
+                writer.release();
+                throw e;
+            }
+            changes.release();
+            metrics.beforeCommit(start, writer.entryCount());
+            if (!writer.isEmpty()) return writer;
+            writer.release();
+            return null;
+        } catch (Exception e) {
+            changes.release();
+            // Neo4j calls neither afterCommit nor afterRollback on a handler whose beforeCommit failed
+            pending.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private void collect(TransactionData transactionData, IndexPlan plan, ReadOperations read, ChangeSet changes) {
+        PrimitiveLongObjectMap<LabelPlan[]> nodeLabels = changes.nodeLabels;
         for (Node node : transactionData.createdNodes()) {
-            if (hasLabel(node)) actions.putAll(indexRequests(node));
+            indexRequests(node, labels(node, plan, read, nodeLabels), changes);
         }
         for (Node node : transactionData.deletedNodes()) {
-            if (hasLabel(node)) actions.putAll(deleteRequests(node));
+            deleteRequests(node, labels(node, plan, read, nodeLabels), changes);
         }
         for (LabelEntry labelEntry : transactionData.assignedLabels()) {
-            if (hasLabel(labelEntry)) actions.putAll(indexRequests(labelEntry.node()));
+            if (plan.get(labelEntry.label()) != null)
+                indexRequests(labelEntry.node(), labels(labelEntry.node(), plan, read, nodeLabels), changes);
         }
         for (LabelEntry labelEntry : transactionData.removedLabels()) {
-            if (hasLabel(labelEntry)) actions.putAll(deleteRequests(labelEntry.node(), labelEntry.label()));
+            LabelPlan label = plan.get(labelEntry.label());
+            if (label != null) deleteRequests(labelEntry.node(), label, changes);
         }
         for (PropertyEntry<Node> propEntry : transactionData.assignedNodeProperties()) {
-            if (hasLabel(propEntry))
-                actions.putAll(indexRequests(propEntry.entity()));
+            if (isUnchanged(propEntry)) continue;
+            updateRequests(propEntry.entity(), propEntry.key(), labels(propEntry.entity(), plan, read, nodeLabels), changes);
         }
         for (PropertyEntry<Node> propEntry : transactionData.removedNodeProperties()) {
-            if (hasLabel(propEntry))
-                actions.putAll(updateRequests(propEntry.entity()));
+            // a partial update can't remove a field, so the whole document is re-sent
+            indexRequests(propEntry.entity(), propEntry.key(), labels(propEntry.entity(), plan, read, nodeLabels), changes);
         }
 
+        PrimitiveLongSet deletedRelationships = changes.deletedRelationships;
+        for (Relationship relationship : transactionData.deletedRelationships()) {
+            deletedRelationships.add(relationship.getId());
+            deleteRequests(relationship, relationship.getId(), deletedTargets(relationship, plan), changes);
+        }
         for (Relationship relationship : transactionData.createdRelationships()) {
-            actions.putAll(indexRequests(relationship));
+            if (deletedRelationships.contains(relationship.getId())) continue;
+            indexRequests(relationship, relationship.getId(), targets(relationship, plan), changes);
+        }
+        for (PropertyEntry<Relationship> propEntry : transactionData.assignedRelationshipProperties()) {
+            Relationship relationship = propEntry.entity();
+            if (deletedRelationships.contains(relationship.getId()) || isUnchanged(propEntry)) continue;
+            updateRequests(relationship, relationship.getId(), propEntry.key(), targets(relationship, plan), changes);
+        }
+        for (PropertyEntry<Relationship> propEntry : transactionData.removedRelationshipProperties()) {
+            Relationship relationship = propEntry.entity();
+            if (deletedRelationships.contains(relationship.getId())) continue;
+            indexRequests(relationship, relationship.getId(), propEntry.key(), targets(relationship, plan), changes);
         }
-
-        return actions.isEmpty() ? Collections.<BulkableAction>emptyList() : actions.values();
     }
 
     public void setUseAsyncJest(boolean useAsyncJest) {
         this.useAsyncJest = useAsyncJest;
     }
 
+    /**
+     * Hands committed changes to the given queue instead of sending them to ElasticSearch directly.
+     */
+    public void setQueue(ElasticSearchQueue queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * Bounds the asynchronous requests in flight, the spill queue takes the changes
+     * that don't fit into the window under {@link InFlightLimiter.Policy#SPILL}.
+     */
+    public void setInFlightLimiter(InFlightLimiter limiter, ElasticSearchQueue spillQueue) {
+        this.limiter = limiter;
+        this.spillQueue = spillQueue;
+    }
+
+    /**
+     * Records timings, sizes and responses in the given metrics instead of a private instance.
+     */
+    public void setMetrics(ElasticSearchMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sends the items of directly sent bulk requests that ElasticSearch rejected again, or writes them to the dead letters.
+     */
+    public void setRetrier(BulkRetrier retrier) {
+        this.retrier = retrier;
+    }
+
+    /**
+     * Skips index actions of documents that are sent as they were sent last.
+     */
+    public void setDocumentCache(DocumentCache documentCache) {
+        this.documentCache = documentCache;
+    }
+
+    /**
+     * @return the transactions between {@link #beforeCommit} and handing their changes on in {@link #afterCommit}
+     */
+    int pendingTransactions() {
+        return pending.get() + (renderer == null ? 0 : renderer.backlog());
+    }
+
+    /**
+     * @return how often changes of committed transactions were given up without being queued or sent
+     */
+    long lostTransactions() {
+        return lost.get();
+    }
+
+    /**
+     * Records changes of a committed transaction that were given up, like those of a failed render.
+     */
+    void lost() {
+        lost.incrementAndGet();
+    }
+
+    /**
+     * Stops waiting for queue space, changes that don't fit anymore are given up.
+     */
+    void stop() {
+        stopping = true;
+    }
+
+    /**
+     * Leaves rendering the documents to the given renderer, after the commit.
+     */
+    public void setRenderer(ElasticSearchRenderer renderer) {
+        setRenderer(renderer, 0);
+    }
+
+    /**
+     * Leaves rendering the documents of transactions changing at least {@code minChanges} of them
+     * to the given renderer, so that a large transaction isn't rendered as a whole while it commits
+     * but in chunks after the commit. Smaller transactions committing while the renderer is busy
+     * are left to it too, to keep the order of the changes.
+     */
+    public void setRenderer(ElasticSearchRenderer renderer, int minChanges) {
+        this.renderer = renderer;
+        this.deferMinChanges = minChanges;
+    }
+
+    /**
+     * Ships rendered bulks in chunks of at most the given number of actions and bytes, each sent
+     * or queued on its own. A single action larger than {@code bytes} is a chunk of its own.
+     */
+    public void setChunkSize(int actions, long bytes) {
+        this.chunkActions = actions;
+        this.chunkBytes = bytes;
+    }
+
+    /**
+     * Sends every action with an external version, so that ElasticSearch ignores actions arriving
+     * after a later one for the same document, as retried, replayed or reordered ones may.
+     */
+    public void setExternalVersioning(boolean externalVersioning) {
+        this.externalVersioning = externalVersioning;
+    }
+
+    /**
+     * Adds a checksum of the rest of the document to every node document, for the
+     * {@link ElasticSearchReconciler} to compare ranges of documents by. Updates are then sent as
+     * whole documents, as a partial update would leave the checksum of the previous document.
+     */
+    public void setChecksums(boolean checksums) {
+        this.checksums = checksums;
+    }
+
+    /**
+     * @return the current plan, as far as its tokens are bound
+     */
+    IndexPlan plan() {
+        return plan.get();
+    }
+
+    /**
+     * Versions are transaction ids. The actions of a committing transaction take the id of the last
+     * committed transaction in {@link #afterCommit}, at least its own id. Transactions changing the
+     * same document hold its lock until after that, so a later one takes a higher version.
+     *
+     * @return the version of documents read from now on: the id of the last closed transaction,
+     * every transaction the documents miss commits with a higher one
+     */
+    private long readVersion() {
+        if (!externalVersioning) return BulkWriter.NO_VERSION;
+        return txIdStore().getLastClosedTransactionId();
+    }
+
+    private TransactionIdStore txIdStore() {
+        if (txIdStore == null) {
+            txIdStore = ElasticSearchExtension.dependencies(gds).resolveDependency(TransactionIdStore.class);
+        }
+        return txIdStore;
+    }
+
     @Override
-    public void afterCommit(TransactionData transactionData, Collection<BulkableAction> actions) {
-        if (actions.isEmpty()) return;
+    public void afterCommit(TransactionData transactionData, Object state) {
+        if (state == null) {
+            pending.decrementAndGet();
+            return;
+        }
+        long start = System.nanoTime();
+        if (state instanceof ChangeSet) {
+            ChangeSet changes = (ChangeSet) state;
+            try {
+                renderer.add(changes);
+            } catch (InterruptedException e) {
+                logger.warn("ElasticSearch Integration: Interrupted, dropping " + changes.size() + " changes");
+                lost.incrementAndGet();
+                Thread.currentThread().interrupt();
+            } finally {
+                changes.release();
+                pending.decrementAndGet();
+                metrics.afterCommit(start);
+            }
+            return;
+        }
+        BulkWriter writer = (BulkWriter) state;
+        try {
+            if (externalVersioning) writer.commitVersion(txIdStore().getLastCommittedTransactionId());
+            ship(writer);
+        } catch (Exception e) {
+            logger.warn("Error updating ElasticSearch ", e);
+            lost.incrementAndGet();
+        } finally {
+            writer.release();
+            pending.decrementAndGet();
+            metrics.afterCommit(start);
+        }
+    }
+
+    /**
+     * Hands the rendered bulk to the queue or sends it to ElasticSearch, in chunks if it is larger than a chunk.
+     */
+    void ship(BulkWriter writer) throws Exception {
+        if (writer.entryCount() <= chunkActions && writer.size() <= chunkBytes) {
+            shipChunk(writer);
+            return;
+        }
+        BulkWriter chunk = BulkWriter.acquire();
+        try {
+            for (int i = 0; i < writer.entryCount(); i++) {
+                int length = writer.entryEnd(i) - writer.entryStart(i);
+                if (!chunk.isEmpty() && (chunk.entryCount() >= chunkActions || chunk.size() + length > chunkBytes)) {
+                    shipChunk(chunk);
+                    chunk.reset();
+                }
+                chunk.copy(writer, i);
+            }
+            if (!chunk.isEmpty()) shipChunk(chunk);
+        } finally {
+            chunk.release();
+        }
+    }
+
+    private void shipChunk(BulkWriter writer) throws Exception {
         try {
-            Bulk bulk = new Bulk.Builder()
-                    .addAction(actions).build();
+            if (queue != null) {
+                enqueue(queue, writer);
+                return;
+            }
+            String body = writer.toString();
+            RawBulk bulk = new RawBulk(body);
             if (useAsyncJest) {
-                client.executeAsync(bulk, this);
+                executeAsync(bulk, resultHandler(body), writer);
             }
             else {
-                client.execute(bulk);
+                metrics.bulk(writer.size());
+                long sent = System.nanoTime();
+                JestResult result = client.execute(bulk);
+                metrics.completed(sent, result);
+                resultHandler(body).completed(result);
             }
         } catch (Exception e) {
-            logger.warn("Error updating ElasticSearch ", e);
+            forget(writer);
+            throw e;
         }
     }
 
-    private boolean hasLabel(Node node) {
-        for (Label l: node.getLabels()) {
-            if (indexLabels.contains(l)) return true;
+    /**
+     * Appends to the queue, waiting for the drainer to free space if it is full. Only the spill queue
+     * drops when full, the documents count as dirty then and are resynced.
+     */
+    private void enqueue(ElasticSearchQueue queue, BulkWriter writer) throws IOException {
+        byte[] payload = BulkEntry.encode(writer);
+        if (queue.append(payload)) return;
+        if (queue == spillQueue) {
+            logger.warn("ElasticSearch spill queue is full, dropping " + writer.entryCount() + " actions");
+            drop(writer);
+            limiter.markDirty(ids(writer));
+            return;
         }
-        return false;
+        logger.warn("ElasticSearch queue is full, waiting to append " + writer.entryCount() + " actions");
+        try {
+            while (!queue.append(payload)) {
+                if (stopping) {
+                    logger.warn("ElasticSearch queue is full on stop, dropping " + writer.entryCount() + " actions");
+                    drop(writer);
+                    lost.incrementAndGet();
+                    return;
+                }
+                Thread.sleep(QUEUE_FULL_WAIT_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("ElasticSearch Integration: Interrupted, dropping " + writer.entryCount() + " actions");
+            drop(writer);
+            lost.incrementAndGet();
+        }
+    }
+
+    private void drop(BulkWriter writer) {
+        metrics.queueDropped(writer.entryCount());
+        forget(writer);
+    }
+
+    private JestResultHandler<JestResult> resultHandler(String body) {
+        return retrier == null ? this : retrier.handling(body, this);
+    }
+
+    private void executeAsync(RawBulk bulk, JestResultHandler<JestResult> resultHandler, BulkWriter writer) throws Exception {
+        if (limiter == null) {
+            metrics.bulk(writer.size());
+            client.executeAsync(bulk, metrics.timing(resultHandler));
+            return;
+        }
+        if (limiter.acquire()) {
+            try {
+                metrics.bulk(writer.size());
+                client.executeAsync(bulk, limiter.releasing(metrics.timing(resultHandler)));
+            } catch (Exception e) {
+                limiter.release();
+                throw e;
+            }
+        } else if (limiter.policy() == InFlightLimiter.Policy.SPILL && spillQueue != null) {
+            enqueue(spillQueue, writer);
+        } else {
+            limiter.markDirty(ids(writer));
+            logger.warn("ElasticSearch requests in flight exceeded, dropping " + writer.entryCount() + " actions");
+            forget(writer);
+        }
+    }
+
+    /**
+     * Takes dropped documents out of the {@link DocumentCache}, so they are sent when rendered next.
+     */
+    private void forget(BulkWriter writer) {
+        if (documentCache == null) return;
+        for (int i = 0; i < writer.entryCount(); i++) {
+            documentCache.invalidate(writer.id(i));
+        }
+    }
+
+    private List<IndexId> ids(BulkWriter writer) {
+        List<IndexId> ids = new ArrayList<>(writer.entryCount());
+        for (int i = 0; i < writer.entryCount(); i++) {
+            ids.add(writer.id(i));
+        }
+        return ids;
     }
 
-    private boolean hasLabel(LabelEntry labelEntry) {
-        return indexLabels.contains(labelEntry.label());
+    private Statement statement() {
+        if (bridge == null) {
+            bridge = ElasticSearchExtension.dependencies(gds).resolveDependency(ThreadToStatementContextBridge.class);
+        }
+        return bridge.instance();
     }
 
-    private boolean hasLabel(PropertyEntry<Node> propEntry) {
-        return hasLabel(propEntry.entity());
+    /**
+     * @return the current plan, with the labels and property keys created since bound to their ids
+     */
+    private IndexPlan plan(ReadOperations read) {
+        IndexPlan current = plan.get(), resolved = current.resolve(read, tokens(read));
+        // a plan swapped in meanwhile by setIndexSpec wins
+        if (resolved != current) plan.compareAndSet(current, resolved);
+        return resolved;
     }
-    
-    private Map<IndexId, Index> indexRequests(Node node) {
-        HashMap<IndexId, Index> reqs = new HashMap<>();
 
-        for (Label l: node.getLabels()) {
-            if (!indexLabels.contains(l)) continue;
+    /**
+     * @return the high ids of the label and property key stores in one number, or
+     * {@link IndexPlan#UNKNOWN_TOKENS} while the newest token can't be looked up yet
+     */
+    private long tokens(ReadOperations read) {
+        if (neoStore == null) {
+            neoStore = ElasticSearchExtension.dependencies(gds).resolveDependency(NeoStoreProvider.class);
+        }
+        NeoStore store = neoStore.evaluate();
+        long labels = store.getLabelTokenStore().getHighId(), propertyKeys = store.getPropertyKeyTokenStore().getHighId();
+        // a token id is taken a little before the token can be looked up by name
+        try {
+            if (labels > 0) read.labelGetName((int) labels - 1);
+            if (propertyKeys > 0) read.propertyKeyGetName((int) propertyKeys - 1);
+        } catch (LabelNotFoundKernelException | PropertyKeyIdNotFoundKernelException e) {
+            return IndexPlan.UNKNOWN_TOKENS;
+        }
+        return labels << 32 | propertyKeys;
+    }
+
+    /**
+     * Swaps in a new index spec, transactions committing from now on are indexed by it.
+     */
+    public void setIndexSpec(Map<Label, List<ElasticSearchIndexSpec>> indexSpec,
+                             Map<String, List<ElasticSearchIndexSpec>> relationshipIndexSpec) {
+        plan.set(IndexPlan.compile(indexSpec, relationshipIndexSpec));
+    }
 
-            for (ElasticSearchIndexSpec spec: indexSpecs.get(l)) {
-                System.out.println("aaa: " + spec.getProperties());
-                String id = id(node), indexName = spec.getIndexName();
-                reqs.put(new IndexId(indexName, id), new Index.Builder(nodeToJson(node, spec.getProperties()))
-                .type(l.name())
-                .index(indexName)
-                .id(id)
-                .build());
+    private LabelPlan[] labels(Node node, IndexPlan plan, ReadOperations read, PrimitiveLongObjectMap<LabelPlan[]> nodeLabels) {
+        LabelPlan[] labels = nodeLabels.get(node.getId());
+        if (labels == null) {
+            labels = labels(node.getId(), plan, read);
+            nodeLabels.put(node.getId(), labels);
+        }
+        return labels;
+    }
+
+    /**
+     * @return the indexed labels of the node, none if it was deleted
+     */
+    private LabelPlan[] labels(long nodeId, IndexPlan plan, ReadOperations read) {
+        LabelPlan[] labels = IndexPlan.NONE;
+        try {
+            PrimitiveIntIterator labelIds = read.nodeGetLabels(nodeId);
+            while (labelIds.hasNext()) {
+                LabelPlan label = plan.get(labelIds.next());
+                if (label == null) continue;
+                if (labels.length == 0) {
+                    labels = label.alone;
+                    continue;
+                }
+                labels = Arrays.copyOf(labels, labels.length + 1);
+                labels[labels.length - 1] = label;
             }
+        } catch (EntityNotFoundException e) {
+            // deleted in this transaction, its documents are deleted via the removed labels
+        }
+        return labels;
+    }
+
+    /**
+     * Renders index actions for all documents of the node into the writer.
+     */
+    void index(Node node, BulkWriter writer) throws EntityNotFoundException {
+        index(node, null, writer);
+    }
+
+    /**
+     * Renders index actions for the documents of the node the given plan asks for, all documents
+     * of the current spec if it is null.
+     */
+    void index(Node node, IndexPlan only, BulkWriter writer) throws EntityNotFoundException {
+        long version = readVersion();
+        ChangeSet changes = ChangeSet.acquire();
+        try (Statement statement = statement()) {
+            ReadOperations read = statement.readOperations();
+            IndexPlan plan = only == null ? plan(read) : only.resolve(read);
+            indexRequests(node, labels(node.getId(), plan, read), changes);
+            render(changes, read, writer, version, false);
+        } finally {
+            changes.release();
         }
-        return reqs;
-    }
-
-    private Map<IndexId, Index> indexRequests(Relationship relationship) {
-        HashMap<IndexId, Index> reqs = new HashMap<>();
-        String id = id(relationship), indexName = "relationships";
-        Set<String> properties = new HashSet<String>(Arrays.asList("where"));
-        reqs.put(new IndexId(indexName, id), new Index.Builder(relationshipToJson(relationship, properties))
-                .type("relationship")
-                .index(indexName)
-                .id(id)
-                .build());
-
-        return reqs;
-    }
-
-    private Map<IndexId, Delete> deleteRequests(Node node) {
-        HashMap<IndexId, Delete> reqs = new HashMap<>();
-
-    	for (Label l: node.getLabels()) {
-    		if (!indexLabels.contains(l)) continue;
-    		for (ElasticSearchIndexSpec spec: indexSpecs.get(l)) {
-    		    String id = id(node), indexName = spec.getIndexName();
-    			reqs.put(new IndexId(indexName, id),
-    			         new Delete.Builder(id).index(indexName).build());
-    		}
-    	}
-    	return reqs;
-    }
-    
-    private Map<IndexId, Delete> deleteRequests(Node node, Label label) {
-        HashMap<IndexId, Delete> reqs = new HashMap<>();
-
-        if (indexLabels.contains(label)) {
-            for (ElasticSearchIndexSpec spec: indexSpecs.get(label)) {
-                String id = id(node), indexName = spec.getIndexName();
-                reqs.put(new IndexId(indexName, id),
-                         new Delete.Builder(id)
-                                   .index(indexName)
-                                   .type(label.name())
-                                   .build());
+    }
+
+    /**
+     * Renders the current state of the given nodes and relationships, as of the open transaction.
+     * Their documents are indexed, and deleted from the indices of labels a node doesn't have and
+     * from all indices of nodes and relationships that don't exist anymore.
+     */
+    void replay(PrimitiveLongSet nodeIds, PrimitiveLongSet relationshipIds, BulkWriter writer) throws EntityNotFoundException {
+        long version = readVersion();
+        ChangeSet changes = ChangeSet.acquire();
+        try (Statement statement = statement()) {
+            ReadOperations read = statement.readOperations();
+            IndexPlan plan = plan(read);
+            for (PrimitiveLongIterator ids = nodeIds.iterator(); ids.hasNext(); ) {
+                long id = ids.next();
+                LabelPlan[] labels = IndexPlan.NONE;
+                Node node = null;
+                try {
+                    node = gds.getNodeById(id);
+                    labels = labels(id, plan, read);
+                } catch (NotFoundException e) {
+                    // deleted since
+                }
+                for (LabelPlan label : plan.labels()) {
+                    if (!contains(labels, label)) deleteRequests(null, id, label.targets, changes);
+                }
+                if (node != null) indexRequests(node, labels, changes);
+            }
+            for (PrimitiveLongIterator ids = relationshipIds.iterator(); ids.hasNext(); ) {
+                long id = ids.next();
+                try {
+                    Relationship relationship = gds.getRelationshipById(id);
+                    indexRequests(relationship, id, targets(relationship, plan), changes);
+                } catch (NotFoundException e) {
+                    deleteRequests(null, id, plan.relationships(), changes);
+                }
+            }
+            render(changes, read, writer, version, false);
+        } finally {
+            changes.release();
+        }
+    }
+
+    /**
+     * Renders the changes as of the open transaction, shipping every full chunk as soon as it is
+     * rendered, so that only one chunk of the documents is held at a time. The rest is left in the
+     * writer. Documents whose node or relationship is gone by now are skipped, their deletion follows.
+     */
+    void render(ChangeSet changes, BulkWriter writer) throws Exception {
+        try (Statement statement = statement()) {
+            long version = readVersion();
+            ReadOperations read = statement.readOperations();
+            changes.nodeProperties.clear();
+            for (int i = 0; i < changes.size(); i++) {
+                int entries = writer.entryCount();
+                try {
+                    render(changes, i, version, read, writer, true);
+                } catch (EntityNotFoundException | NotFoundException e) {
+                    writer.truncate(entries);
+                }
+                if (writer.entryCount() >= chunkActions || writer.size() >= chunkBytes) {
+                    ship(writer);
+                    writer.reset();
+                }
             }
         }
-        return reqs;
-        
     }
-    
-    private Map<IndexId, Update> updateRequests(Node node) {
-    	HashMap<IndexId, Update> reqs = new HashMap<>();
-    	for (Label l: node.getLabels()) {
-    		if (!indexLabels.contains(l)) continue;
 
-    		for (ElasticSearchIndexSpec spec: indexSpecs.get(l)) {
-    		    String id = id(node), indexName = spec.getIndexName();
-    			reqs.put(new IndexId(indexName, id),
-    			        new Update.Builder(nodeToJson(node, spec.getProperties()))
-                    			  .type(l.name())
-                    			  .index(spec.getIndexName())
-                    			  .id(id(node))
-                    			  .build());
-    		}
-    	}
-    	return reqs;
+    /**
+     * Renders the collected changes, all with the same version.
+     *
+     * @param skipUnchanged whether documents the {@link DocumentCache} knows as sent are skipped,
+     *                      reindexing and replaying send them anyway
+     */
+    private void render(ChangeSet changes, ReadOperations read, BulkWriter writer, long version,
+                        boolean skipUnchanged) throws EntityNotFoundException {
+        changes.nodeProperties.clear();
+        for (int i = 0; i < changes.size(); i++) {
+            render(changes, i, version, read, writer, skipUnchanged);
+        }
+    }
+
+    private static boolean contains(LabelPlan[] labels, LabelPlan label) {
+        for (LabelPlan l : labels) {
+            if (l == label) return true;
+        }
+        return false;
+    }
+
+    private void indexRequests(Node node, LabelPlan[] labels, ChangeSet changes) {
+        for (LabelPlan label : labels) {
+            indexRequests(node, node.getId(), label.targets, changes);
+        }
     }
 
+    private void indexRequests(PropertyContainer entity, long id, IndexTarget[] targets, ChangeSet changes) {
+        for (IndexTarget target : targets) {
+            changes.put(ChangeSet.INDEX, entity, id, target);
+        }
+    }
 
-    private String id(Node node) {
-        return String.valueOf(node.getId());
+    /**
+     * Re-sends the documents of the node that contain the removed property.
+     */
+    private void indexRequests(Node node, String property, LabelPlan[] labels, ChangeSet changes) {
+        for (LabelPlan label : labels) {
+            indexRequests(node, node.getId(), property, label.targets, changes);
+        }
     }
 
-    private String id(Relationship relationship) {
-        return String.valueOf(relationship.getId());
+    private void indexRequests(PropertyContainer entity, long id, String property, IndexTarget[] targets, ChangeSet changes) {
+        for (IndexTarget target : targets) {
+            if (target.indexOf(property) < 0) continue;
+            changes.put(ChangeSet.INDEX, entity, id, target);
+        }
     }
 
-    private Map nodeToJson(Node node, Set<String> properties) {
-        Map<String,Object> json = new LinkedHashMap<>();
-        json.put("id", id(node));
-        json.put("labels", labels(node));
-        for (String prop : properties) {
-            Object value = node.getProperty(prop);
-            json.put(prop, value);
+    /**
+     * Adds the property to partial updates of the documents that contain it, a pending index
+     * or delete of the same document takes precedence.
+     */
+    private void updateRequests(Node node, String property, LabelPlan[] labels, ChangeSet changes) {
+        for (LabelPlan label : labels) {
+            updateRequests(node, node.getId(), property, label.targets, changes);
         }
-        return json;
     }
 
-    private Map relationshipToJson(Relationship relationship, Set<String> properties) {
-        Map<String,Object> json = new LinkedHashMap<>();
-        json.put("id", id(relationship));
-        json.put("labels", "relationship");
-        for (String prop : properties) {
-            Object value = relationship.getProperty(prop);
-            json.put(prop, value);
+    private void updateRequests(PropertyContainer entity, long id, String property, IndexTarget[] targets, ChangeSet changes) {
+        for (IndexTarget target : targets) {
+            int index = target.indexOf(property);
+            if (index >= 0) changes.update(entity, id, target, index);
         }
-        return json;
     }
-    
+
+    private boolean isUnchanged(PropertyEntry<? extends PropertyContainer> propEntry) {
+        Object previous = propEntry.previouslyCommitedValue();
+        if (previous == null) return false;
+        if (!previous.getClass().isArray()) return previous.equals(propEntry.value());
+        return Arrays.deepEquals(new Object[]{previous}, new Object[]{propEntry.value()});
+    }
+
+    private IndexTarget[] targets(Relationship relationship, IndexPlan plan) {
+        IndexTarget[] targets = plan.get(relationship.getType());
+        return targets == null ? NO_TARGETS : targets;
+    }
+
+    /**
+     * @return the indices of the deleted relationship, all relationship indices if its type can't be read anymore
+     */
+    private IndexTarget[] deletedTargets(Relationship relationship, IndexPlan plan) {
+        try {
+            return targets(relationship, plan);
+        } catch (NotFoundException e) {
+            return plan.relationships();
+        }
+    }
+
+    private void deleteRequests(Node node, LabelPlan[] labels, ChangeSet changes) {
+        for (LabelPlan label : labels) {
+            deleteRequests(node, label, changes);
+        }
+    }
+
+    private void deleteRequests(Node node, LabelPlan label, ChangeSet changes) {
+        deleteRequests(node, node.getId(), label.targets, changes);
+    }
+
+    private void deleteRequests(PropertyContainer entity, long id, IndexTarget[] targets, ChangeSet changes) {
+        for (IndexTarget target : targets) {
+            changes.put(ChangeSet.DELETE, entity, id, target);
+        }
+    }
+
+
+    private Object property(PropertyContainer entity, int propertyKey, ReadOperations read, NodeProperties nodeProperties) throws EntityNotFoundException {
+        if (propertyKey == StatementConstants.NO_SUCH_PROPERTY_KEY) return null;
+        if (entity instanceof Node) return nodeProperties.get(((Node) entity).getId(), propertyKey, read);
+        return read.relationshipGetProperty(((Relationship) entity).getId(), propertyKey).value(null);
+    }
+
+    private void nodeToJson(Node node, IndexTarget target, ReadOperations read, NodeProperties nodeProperties, BulkWriter writer) throws EntityNotFoundException {
+        int start = writer.size();
+        writer.startObject();
+        writer.field(ID, String.valueOf(node.getId()));
+        writer.field(LABELS, labels(node));
+        propertiesToJson(node, target, read, nodeProperties, writer);
+        if (checksums) {
+            writer.field(CHECKSUM, (Object) ElasticSearchReconciler.checksum(target.type, writer.buffer(), start, writer.size()));
+        }
+        writer.endObject();
+    }
+
+    private void relationshipToJson(Relationship relationship, IndexTarget target, ReadOperations read, NodeProperties nodeProperties, BulkWriter writer) throws EntityNotFoundException {
+        writer.startObject();
+        writer.field(ID, String.valueOf(relationship.getId()));
+        writer.field(TYPE, target.type);
+        if (target.endpointIds) {
+            writer.field(START, String.valueOf(relationship.getStartNode().getId()));
+            writer.field(END, String.valueOf(relationship.getEndNode().getId()));
+        }
+        if (target.endpointLabels) {
+            writer.field(START_LABELS, labels(relationship.getStartNode()));
+            writer.field(END_LABELS, labels(relationship.getEndNode()));
+        }
+        propertiesToJson(relationship, target, read, nodeProperties, writer);
+        writer.endObject();
+    }
+
+    private void propertiesToJson(PropertyContainer entity, IndexTarget target, ReadOperations read, NodeProperties nodeProperties, BulkWriter writer) throws EntityNotFoundException {
+        for (int i = 0; i < target.propertyKeys.length; i++) {
+            Object value = property(entity, target.propertyKeys[i], read, nodeProperties);
+            if (value != null) writer.field(target.encodedProperties[i], value);
+        }
+    }
+
+    private void toUpdate(PropertyContainer entity, IndexTarget target, long changed, ReadOperations read, NodeProperties nodeProperties, BulkWriter writer) throws EntityNotFoundException {
+        writer.startObject();
+        writer.startObject("doc");
+        for (long bits = changed; bits != 0; bits &= bits - 1) {
+            int i = Long.numberOfTrailingZeros(bits);
+            if (target.propertyKeys[i] == StatementConstants.NO_SUCH_PROPERTY_KEY) continue;
+            writer.field(target.encodedProperties[i], property(entity, target.propertyKeys[i], read, nodeProperties));
+        }
+        writer.endObject();
+        writer.endObject();
+    }
+
 
     private String[] labels(Node node) {
         List<String> result=new ArrayList<>();
@@ -232,8 +824,10 @@ class ElasticSearchEventHandler implements TransactionEventHandler<Collection<Bu
     }
 
     @Override
-    public void afterRollback(TransactionData transactionData, Collection<BulkableAction> actions) {
-
+    public void afterRollback(TransactionData transactionData, Object state) {
+        if (state instanceof BulkWriter) ((BulkWriter) state).release();
+        if (state instanceof ChangeSet) ((ChangeSet) state).release();
+        pending.decrementAndGet();
     }
 
     @Override
@@ -249,61 +843,43 @@ class ElasticSearchEventHandler implements TransactionEventHandler<Collection<Bu
     public void failed(Exception e) {
         logger.warn("Problem Updating ElasticSearch ",e);
     }
-    
-    private class IndexId {
-        final String indexName, id;
-        public IndexId(String indexName, String id) {
-            this.indexName = indexName;
-            this.id = id;
-        }
-
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + getOuterType().hashCode();
-            result = prime * result + ((id == null) ? 0 : id.hashCode());
-            result = prime * result
-                    + ((indexName == null) ? 0 : indexName.hashCode());
-            return result;
-        }
-
-
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (!(obj instanceof IndexId))
-                return false;
-            IndexId other = (IndexId) obj;
-            if (!getOuterType().equals(other.getOuterType()))
-                return false;
-            if (id == null) {
-                if (other.id != null)
-                    return false;
-            } else if (!id.equals(other.id))
-                return false;
-            if (indexName == null) {
-                if (other.indexName != null)
-                    return false;
-            } else if (!indexName.equals(other.indexName))
-                return false;
-            return true;
-        }
-        
-        private ElasticSearchEventHandler getOuterType() {
-            return ElasticSearchEventHandler.this;
-        }
-
-        @Override
-        public String toString() {
-            return "IndexId [indexName=" + indexName + ", id=" + id + "]";
-        }
-        
-    }
-    
-    
-    
+
+    /**
+     * Renders the i-th change, an update as a whole document if it is versioned, as ElasticSearch
+     * only takes external versions for whole documents.
+     */
+    private void render(ChangeSet changes, int i, long version, ReadOperations read, BulkWriter writer,
+                        boolean skipUnchanged) throws EntityNotFoundException {
+        int kind = changes.kind(i);
+        IndexTarget target = changes.target(i);
+        PropertyContainer entity = changes.entity(i);
+        String id = String.valueOf(changes.id(i));
+        if (kind == ChangeSet.DELETE || (kind == ChangeSet.UPDATE && version == BulkWriter.NO_VERSION && !checksums)) {
+            if (documentCache != null) documentCache.invalidate(target.indexName, changes.id(i));
+            if (kind == ChangeSet.DELETE) {
+                writer.action(target.deleteAction, target.indexName, id, version);
+            } else {
+                writer.action(target.updateAction, target.indexName, id);
+                toUpdate(entity, target, changes.changed(i), read, changes.nodeProperties, writer);
+            }
+            writer.endEntry();
+            return;
+        }
+        int entries = writer.entryCount();
+        writer.action(target.indexAction, target.indexName, id, version);
+        int source = writer.size();
+        if (entity instanceof Node) {
+            nodeToJson((Node) entity, target, read, changes.nodeProperties, writer);
+        } else {
+            relationshipToJson((Relationship) entity, target, read, changes.nodeProperties, writer);
+        }
+        if (documentCache != null) {
+            long hash = DocumentCache.hash(target.type.hashCode(), writer.buffer(), source, writer.size());
+            if (documentCache.update(target.indexName, changes.id(i), hash) && skipUnchanged) {
+                writer.truncate(entries);
+                return;
+            }
+        }
+        writer.endEntry();
+    }
 }
@@ -1,15 +1,32 @@
 package org.neo4j.elasticsearch;
 
 import io.searchbox.client.JestClient;
-import io.searchbox.client.JestClientFactory;
 import io.searchbox.client.config.HttpClientConfig;
 
+import org.neo4j.elasticsearch.ElasticSearchKernelExtensionFactory.ElasticSearchSettings;
+import org.neo4j.graphdb.DependencyResolver;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.factory.GraphDatabaseSettings;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.configuration.Config;
 import org.neo4j.kernel.impl.util.StringLogger;
 import org.neo4j.kernel.lifecycle.Lifecycle;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -17,65 +34,297 @@ import java.util.concurrent.TimeUnit;
  * @since 25.04.15
  */
 public class ElasticSearchExtension implements Lifecycle {
+    public static final String QUEUE_DIRECTORY = "elasticsearch-queue";
+    public static final String REINDEX_CHECKPOINT = "elasticsearch-reindex.checkpoint";
+    public static final String DEAD_LETTERS = "elasticsearch-dead-letters.json";
+    public static final String REPLAY_CHECKPOINT = "elasticsearch-replay.txid";
+    public static final String BULK_LOAD_STATE = "elasticsearch-bulk-load.json";
+
     private final GraphDatabaseService gds;
     private final StringLogger logger;
+    private final Config config;
     private final String hostName;
     private boolean enabled = true;
     private ElasticSearchEventHandler handler;
     private JestClient client;
+    private ElasticSearchQueue queue;
+    private ElasticSearchQueueDrainer drainer;
+    private ElasticSearchReindexer reindexer;
+    private ElasticSearchReplayer replayer;
+    private ElasticSearchRenderer renderer;
+    private final ElasticSearchMetrics metrics = new ElasticSearchMetrics();
+    private ScheduledExecutorService metricsLog;
+    private BulkRetrier retrier;
+    private InFlightLimiter limiter;
+    private ElasticSearchReconciler reconciler;
+    private IndexAdmin indexAdmin;
     private Map indexSpec;
+    private Map relationshipIndexSpec;
+    private String indexSpecText;
+    private ElasticSearchIndexSpecManager indexSpecManager;
+    private final List<ObjectName> beans = new ArrayList<>();
 
+    /**
+     * Takes the rest of the configuration from the database, for callers predating the settings.
+     */
     public ElasticSearchExtension(GraphDatabaseService gds, StringLogger logger, String hostName, String indexSpec) {
+        this(gds, logger, config(gds, hostName, indexSpec));
+    }
+
+    public ElasticSearchExtension(GraphDatabaseService gds, StringLogger logger, Config config) {
+        String hostName = config.get(ElasticSearchSettings.hostName);
+        String indexSpec = config.get(ElasticSearchSettings.indexSpec);
+        String indexSpecFile = config.get(ElasticSearchSettings.indexSpecFile);
+        if (indexSpecFile != null) {
+            try {
+                indexSpec = ElasticSearchIndexSpecManager.readSpec(new File(indexSpecFile));
+            } catch (IOException e) {
+                logger.error("ElasticSearch Integration: Can't read index spec file " + indexSpecFile, e);
+            }
+        }
         Map iSpec;
 		try {
 			iSpec = ElasticSearchIndexSpecParser.parseIndexSpec(indexSpec);
-			if (iSpec.size() == 0) {
+			Map rSpec = ElasticSearchIndexSpecParser.parseRelationshipIndexSpec(indexSpec);
+			if (iSpec.size() == 0 && rSpec.size() == 0) {
 				logger.error("ElasticSearch Integration: syntax error in index_spec");
 				enabled = false;
 			}
 			this.indexSpec = iSpec;
+			this.relationshipIndexSpec = rSpec;
 		} catch (ParseException e) {
-            logger.error("ElasticSearch Integration: Can't define index twice");
+            logger.error("ElasticSearch Integration: " + e.getMessage());
             enabled = false;
 		}
+        if (hostName == null || hostName.trim().isEmpty()) {
+            logger.error("ElasticSearch Integration: No host_name configured");
+            enabled = false;
+        }
 		logger.info("Elasticsearch Integration: Running " + hostName + " - " + indexSpec);
+        this.indexSpecText = indexSpec;
         this.gds = gds;
         this.logger = logger;
+        this.config = config;
         this.hostName = hostName;
     }
 
     @Override
     public void init() throws Throwable {
         if (!enabled) return;
-        JestClientFactory factory = new JestClientFactory();
-        factory.setHttpClientConfig(new HttpClientConfig
-                .Builder(hostName)
+        List<String> hosts = Arrays.asList(hostName.split("\\s*,\\s*"));
+        // every sender lane and async request in flight holds its own connection
+        Integer connections = config.get(ElasticSearchSettings.httpMaxConnectionsPerRoute);
+        if (connections == null) {
+            connections = Math.max(config.get(ElasticSearchSettings.senderLanes),
+                    config.get(ElasticSearchSettings.maxInFlightPerNode));
+        }
+        long keepAlive = config.get(ElasticSearchSettings.httpKeepAlive);
+        client = new HttpTransport(new HttpClientConfig
+                .Builder(hosts)
                 .multiThreaded(true)
+                .defaultMaxTotalConnectionPerRoute(connections)
+                .maxTotalConnection(connections * hosts.size())
+                .connTimeout(config.get(ElasticSearchSettings.httpConnectTimeout).intValue())
+                .readTimeout(config.get(ElasticSearchSettings.httpReadTimeout).intValue())
+                .maxConnectionIdleTime(keepAlive, TimeUnit.MILLISECONDS)
                 .discoveryEnabled(true)
                 .discoveryFrequency(1l, TimeUnit.MINUTES)
-                .build());
-        client = factory.getObject();
+                .build(),
+                keepAlive,
+                config.get(ElasticSearchSettings.httpCompression)
+                        ? config.get(ElasticSearchSettings.httpCompressionMinSize).intValue() : HttpTransport.NO_GZIP,
+                metrics).getObject();
 
-        handler = new ElasticSearchEventHandler(client,indexSpec,logger,gds);
-        gds.registerTransactionEventHandler(handler);
+        handler = new ElasticSearchEventHandler(client,indexSpec,relationshipIndexSpec,logger,gds);
+        handler.setMetrics(metrics);
+        handler.setExternalVersioning(config.get(ElasticSearchSettings.externalVersioning));
+        handler.setChunkSize(config.get(ElasticSearchSettings.bulkMaxActions), config.get(ElasticSearchSettings.bulkMaxBytes));
+        boolean deferredRendering = config.get(ElasticSearchSettings.deferredRendering);
+        int largeTransactionChanges = config.get(ElasticSearchSettings.largeTransactionChanges);
+        if (deferredRendering || largeTransactionChanges > 0) {
+            renderer = new ElasticSearchRenderer(handler, gds, logger, config.get(ElasticSearchSettings.deferredMaxDocuments));
+            handler.setRenderer(renderer, deferredRendering ? 0 : largeTransactionChanges);
+        }
+        retrier = new BulkRetrier(client,
+                new DeadLetterFile(new File(config.get(GraphDatabaseSettings.store_dir), DEAD_LETTERS)),
+                config.get(ElasticSearchSettings.retryMaxAttempts), metrics, logger);
+        handler.setRetrier(retrier);
+        long documentCacheSize = config.get(ElasticSearchSettings.documentCacheSize);
+        if (documentCacheSize > 0) {
+            DocumentCache documentCache = new DocumentCache(documentCacheSize, metrics);
+            handler.setDocumentCache(documentCache);
+            retrier.setDocumentCache(documentCache);
+        }
+        registerBean("Metrics", metrics);
+        boolean queueEnabled = config.get(ElasticSearchSettings.queueEnabled);
+        InFlightLimiter.Policy inFlightPolicy = config.get(ElasticSearchSettings.inFlightPolicy);
+        if (queueEnabled || inFlightPolicy == InFlightLimiter.Policy.SPILL) {
+            File queueDir = new File(config.get(GraphDatabaseSettings.store_dir), QUEUE_DIRECTORY);
+            queue = new ElasticSearchQueue(queueDir,
+                    config.get(ElasticSearchSettings.queueSegmentSize).intValue(),
+                    config.get(ElasticSearchSettings.queueMaxSegments));
+            BulkSizer sizer = config.get(ElasticSearchSettings.bulkAdaptive)
+                    ? new BulkSizer(config.get(ElasticSearchSettings.bulkMinActions),
+                            config.get(ElasticSearchSettings.bulkMaxActions),
+                            config.get(ElasticSearchSettings.bulkMinBytes),
+                            config.get(ElasticSearchSettings.bulkMaxBytes),
+                            config.get(ElasticSearchSettings.bulkTargetTook), metrics)
+                    : BulkSizer.fixed(config.get(ElasticSearchSettings.bulkMaxActions),
+                            config.get(ElasticSearchSettings.bulkMaxBytes), metrics);
+            drainer = new ElasticSearchQueueDrainer(queue, client, logger, sizer,
+                    config.get(ElasticSearchSettings.bulkLinger),
+                    metrics, retrier,
+                    config.get(ElasticSearchSettings.senderLanes),
+                    config.get(ElasticSearchSettings.senderQueueDepth));
+            logger.info("ElasticSearch Integration: Queueing changes in " + queueDir);
+        }
+        if (queueEnabled) {
+            handler.setQueue(queue);
+        } else {
+            limiter = new InFlightLimiter(
+                    config.get(ElasticSearchSettings.maxInFlightPerNode) * hosts.size(), inFlightPolicy);
+            handler.setInFlightLimiter(limiter, queue);
+            retrier.setInFlightLimiter(limiter);
+            registerBean("InFlight", limiter);
+        }
+        reindexer = new ElasticSearchReindexer(gds, handler, client, logger,
+                new File(config.get(GraphDatabaseSettings.store_dir), REINDEX_CHECKPOINT),
+                config.get(ElasticSearchSettings.reindexPartitionSize),
+                config.get(ElasticSearchSettings.bulkMaxActions),
+                config.get(ElasticSearchSettings.reindexThreads),
+                metrics, retrier);
+        registerBean("Reindex", reindexer);
+        indexAdmin = new IndexAdmin(client, new File(config.get(GraphDatabaseSettings.store_dir), BULK_LOAD_STATE), logger);
+        if (config.get(ElasticSearchSettings.reindexBulkLoad)) reindexer.setBulkLoad(indexAdmin);
+        if (config.get(ElasticSearchSettings.reconcileInterval) > 0) {
+            handler.setChecksums(true);
+            reconciler = new ElasticSearchReconciler(gds, handler, client, logger,
+                    config.get(ElasticSearchSettings.reconcileRangeSize),
+                    config.get(ElasticSearchSettings.reconcileRate),
+                    metrics, retrier);
+            registerBean("Reconcile", reconciler);
+        }
+        if (queueEnabled && config.get(ElasticSearchSettings.replayTransactions)
+                && !config.get(ElasticSearchSettings.externalVersioning)) {
+            // the replayed state is read while live changes are queued, only versions keep it from overwriting them
+            logger.warn("ElasticSearch Integration: Transaction replay needs elasticsearch.external_versioning, not replaying");
+        } else if (queueEnabled && config.get(ElasticSearchSettings.replayTransactions)) {
+            replayer = new ElasticSearchReplayer(gds, handler, queue, reindexer,
+                    new File(config.get(GraphDatabaseSettings.store_dir), REPLAY_CHECKPOINT), logger);
+        }
+        String indexSpecFile = config.get(ElasticSearchSettings.indexSpecFile);
+        indexSpecManager = new ElasticSearchIndexSpecManager(handler, reindexer, indexSpecText, indexSpec,
+                indexSpecFile == null ? null : new File(indexSpecFile),
+                config.get(ElasticSearchSettings.indexSpecBackfill), logger);
+        registerBean("IndexSpec", indexSpecManager);
+        if (config.get(ElasticSearchSettings.indexBootstrap)) {
+            indexAdmin.create(handler.plan(), reconciler != null);
+        }
         logger.info("Connecting to ElasticSearch");
     }
 
     @Override
     public void start() throws Throwable {
+        if (!enabled) return;
+        // indices a crash left in bulk-load mode
+        indexAdmin.exitBulkLoad(false);
+        if (drainer != null) drainer.start();
+        if (renderer != null) renderer.start();
+        // before the replayer, which counts on committed transactions passing the handler
+        gds.registerTransactionEventHandler(handler);
+        indexSpecManager.start();
+        if (replayer != null) replayer.start();
+        if (config.get(ElasticSearchSettings.reindexOnStartup)) reindexer.start();
+        if (limiter != null && limiter.policy() != InFlightLimiter.Policy.BLOCK) {
+            reindexer.resync(limiter, config.get(ElasticSearchSettings.inFlightResyncInterval));
+        }
+        if (reconciler != null) reconciler.schedule(config.get(ElasticSearchSettings.reconcileInterval));
+        long interval = config.get(ElasticSearchSettings.metricsLogInterval);
+        if (interval > 0) {
+            metricsLog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "neo4j.ElasticSearch-metrics");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            metricsLog.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    logger.info("ElasticSearch Integration: " + metrics);
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
     }
 
     @Override
     public void stop() throws Throwable {
-
+        if (!enabled) return;
+        // so no changes arrive while the renderer and the queue drain
+        gds.unregisterTransactionEventHandler(handler);
+        if (indexSpecManager != null) indexSpecManager.stop();
+        if (metricsLog != null) {
+            metricsLog.shutdownNow();
+            metricsLog = null;
+        }
+        if (reconciler != null) reconciler.stop();
+        if (reindexer != null) reindexer.stop();
+        if (replayer != null) replayer.stop();
+        if (renderer != null) renderer.stop();
+        if (handler != null) handler.stop();
+        if (drainer != null) drainer.stop();
+        if (retrier != null) retrier.shutdown();
     }
 
     @Override
     public void shutdown() throws Throwable {
         if (!enabled) return;
-        gds.unregisterTransactionEventHandler(handler);
+        unregisterBeans();
+        if (queue != null) queue.close();
         client.shutdownClient();
         logger.info("Disconnected from ElasticSearch");
     }
 
+    private static Config config(GraphDatabaseService gds, String hostName, String indexSpec) {
+        Map<String, String> params = new HashMap<>(dependencies(gds).resolveDependency(Config.class).getParams());
+        params.remove(ElasticSearchSettings.hostName.name());
+        params.remove(ElasticSearchSettings.indexSpec.name());
+        if (hostName != null) params.put(ElasticSearchSettings.hostName.name(), hostName);
+        if (indexSpec != null) params.put(ElasticSearchSettings.indexSpec.name(), indexSpec);
+        return new Config(params, ElasticSearchSettings.class);
+    }
+
+    /**
+     * The kernel components the integration reads, like the transaction id store, are only
+     * reachable through {@link GraphDatabaseAPI}, which Neo4j 2.2 deprecates without replacement.
+     */
+    @SuppressWarnings("deprecation")
+    static DependencyResolver dependencies(GraphDatabaseService gds) {
+        return ((GraphDatabaseAPI) gds).getDependencyResolver();
+    }
+
+    private void registerBean(String name, Object bean) {
+        try {
+            ObjectName objectName = new ObjectName("org.neo4j:type=ElasticSearch,instance="
+                    + ObjectName.quote(String.valueOf(config.get(GraphDatabaseSettings.store_dir))) + ",name=" + name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, objectName);
+            beans.add(objectName);
+        } catch (JMException e) {
+            logger.warn("ElasticSearch Integration: Could not register management bean " + name, e);
+        }
+    }
+
+    private void unregisterBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName objectName : beans) {
+            try {
+                server.unregisterMBean(objectName);
+            } catch (JMException e) {
+                logger.warn("ElasticSearch Integration: Could not unregister management bean " + objectName, e);
+            }
+        }
+        beans.clear();
+    }
+
 }
@@ -7,11 +7,22 @@ class ElasticSearchIndexSpec {
 
     private String indexName;
 	private Set<String> properties = new LinkedHashSet<String>();
+    private boolean endpointIds;
+    private boolean endpointLabels;
     
     public ElasticSearchIndexSpec(String indexName, Set<String> properties) {
         this.indexName = indexName;
         this.properties = properties;
     }
+
+    /**
+     * Spec of a relationship index, whose documents can carry the ids and labels of the start and end nodes.
+     */
+    public ElasticSearchIndexSpec(String indexName, Set<String> properties, boolean endpointIds, boolean endpointLabels) {
+        this(indexName, properties);
+        this.endpointIds = endpointIds;
+        this.endpointLabels = endpointLabels;
+    }
     
     public String getIndexName() {
 		return indexName;
@@ -21,6 +32,14 @@ class ElasticSearchIndexSpec {
 		return properties;
 	}
 
+    public boolean hasEndpointIds() {
+        return endpointIds;
+    }
+
+    public boolean hasEndpointLabels() {
+        return endpointLabels;
+    }
+
 	public String toString() {
         String s = this.getClass().getSimpleName() + " " + indexName + ": (";
         for (String p: properties) {
@@ -0,0 +1,156 @@
+package org.neo4j.elasticsearch;
+
+import org.neo4j.graphdb.Label;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Swaps the index spec of the {@link ElasticSearchEventHandler} at runtime.
+ *
+ * A new spec is set through JMX or picked up from the spec file, which is checked for changes
+ * every few seconds. The handler compiles it and replaces its plan atomically, the commit path
+ * takes no lock for it. Optionally the nodes of indices that are new in the spec, or that take
+ * new properties, are backfilled by the {@link ElasticSearchReindexer}.
+ */
+class ElasticSearchIndexSpecManager implements ElasticSearchIndexSpecManagerMBean {
+    private static final long CHECK_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private final ElasticSearchEventHandler handler;
+    private final ElasticSearchReindexer reindexer;
+    private final File specFile;
+    private final boolean backfill;
+    private final StringLogger logger;
+    private String spec;
+    private Map<Label, List<ElasticSearchIndexSpec>> indexSpec;
+    private long lastModified;
+    private ScheduledExecutorService watcher;
+
+    ElasticSearchIndexSpecManager(ElasticSearchEventHandler handler, ElasticSearchReindexer reindexer, String spec,
+                                  Map<Label, List<ElasticSearchIndexSpec>> indexSpec, File specFile, boolean backfill,
+                                  StringLogger logger) {
+        this.handler = handler;
+        this.reindexer = reindexer;
+        this.spec = spec;
+        this.indexSpec = indexSpec;
+        this.specFile = specFile;
+        this.backfill = backfill;
+        this.logger = logger;
+        this.lastModified = specFile == null ? 0 : specFile.lastModified();
+    }
+
+    static String readSpec(File specFile) throws IOException {
+        return new String(Files.readAllBytes(specFile.toPath()), BulkEntry.UTF_8).trim();
+    }
+
+    synchronized void start() {
+        if (specFile == null || watcher != null) return;
+        watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "neo4j.ElasticSearch-index-spec");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        watcher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reload();
+            }
+        }, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (watcher != null) watcher.shutdownNow();
+        watcher = null;
+    }
+
+    @Override
+    public synchronized String getIndexSpec() {
+        return spec;
+    }
+
+    @Override
+    public synchronized void setIndexSpec(String spec) {
+        Map<Label, List<ElasticSearchIndexSpec>> indexSpec;
+        Map<String, List<ElasticSearchIndexSpec>> relationshipIndexSpec;
+        try {
+            indexSpec = ElasticSearchIndexSpecParser.parseIndexSpec(spec);
+            relationshipIndexSpec = ElasticSearchIndexSpecParser.parseRelationshipIndexSpec(spec);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        if (indexSpec.isEmpty() && relationshipIndexSpec.isEmpty()) {
+            throw new IllegalArgumentException("Syntax error in index spec: " + spec);
+        }
+        handler.setIndexSpec(indexSpec, relationshipIndexSpec);
+        Map<Label, List<ElasticSearchIndexSpec>> added = added(this.indexSpec, indexSpec);
+        this.spec = spec;
+        this.indexSpec = indexSpec;
+        logger.info("ElasticSearch Integration: Index spec changed to " + spec);
+        if (backfill && !added.isEmpty()) {
+            if (reindexer.backfill(IndexPlan.compile(added))) {
+                logger.info("ElasticSearch Integration: Backfilling " + added.values());
+            } else {
+                logger.warn("ElasticSearch Integration: Reindex running, not backfilling " + added.values());
+            }
+        }
+    }
+
+    @Override
+    public boolean reload() {
+        if (specFile == null) return false;
+        try {
+            synchronized (this) {
+                long modified = specFile.lastModified();
+                if (modified == lastModified) return false;
+                lastModified = modified;
+                String spec = readSpec(specFile);
+                if (spec.equals(this.spec)) return false;
+                setIndexSpec(spec);
+                return true;
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("ElasticSearch Integration: Could not reload index spec from " + specFile, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the specs of {@code after} that {@code before} has no index with all their properties for
+     */
+    static Map<Label, List<ElasticSearchIndexSpec>> added(Map<Label, List<ElasticSearchIndexSpec>> before,
+                                                          Map<Label, List<ElasticSearchIndexSpec>> after) {
+        Map<Label, List<ElasticSearchIndexSpec>> added = new LinkedHashMap<>();
+        for (Map.Entry<Label, List<ElasticSearchIndexSpec>> entry : after.entrySet()) {
+            List<ElasticSearchIndexSpec> previous = before.get(entry.getKey());
+            if (previous == null) previous = Collections.emptyList();
+            List<ElasticSearchIndexSpec> specs = new ArrayList<>();
+            for (ElasticSearchIndexSpec spec : entry.getValue()) {
+                if (!isCovered(spec, previous)) specs.add(spec);
+            }
+            if (!specs.isEmpty()) added.put(entry.getKey(), specs);
+        }
+        return added;
+    }
+
+    private static boolean isCovered(ElasticSearchIndexSpec spec, List<ElasticSearchIndexSpec> previous) {
+        for (ElasticSearchIndexSpec p : previous) {
+            if (p.getIndexName().equals(spec.getIndexName()) && p.getProperties().containsAll(spec.getProperties())) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,22 @@
+package org.neo4j.elasticsearch;
+
+/**
+ * Management view of the {@link ElasticSearchIndexSpecManager}, changes the index spec without a restart.
+ */
+public interface ElasticSearchIndexSpecManagerMBean {
+    String getIndexSpec();
+
+    /**
+     * Parses the spec and swaps it in for the transactions committing from now on.
+     *
+     * @throws IllegalArgumentException if the spec can't be parsed
+     */
+    void setIndexSpec(String spec);
+
+    /**
+     * Re-reads the spec file.
+     *
+     * @return false if there is no spec file or it didn't change
+     */
+    boolean reload();
+}
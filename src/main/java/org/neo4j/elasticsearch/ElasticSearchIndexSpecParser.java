@@ -5,6 +5,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -18,7 +19,12 @@ public class ElasticSearchIndexSpecParser {
     
     private final static Pattern INDEX_SPEC_RE = Pattern.compile("(?<indexname>[a-z][a-z_-]+):(?<label>[A-Za-z0-9]+)\\((?<props>[^\\)]+)\\)");
     private final static Pattern PROPS_SPEC_RE = Pattern.compile("((?!=,)([A-Za-z0-9]+))+");
+    private final static Pattern RELATIONSHIP_SPEC_RE = Pattern.compile("(?<indexname>[a-z][a-z_-]+):\\[(?<type>[A-Za-z0-9_]+)\\]\\((?<props>[^\\)]*)\\)(\\{(?<endpoints>[^\\}]*)\\})?");
     
+    /**
+     * Parses the node indices of the spec, e.g. {@code people:Person(name),analytics:Person(name,age)}.
+     * A label may be sent to several indices, each with its own properties, but only once to each index.
+     */
     public static Map<Label, List<ElasticSearchIndexSpec>> parseIndexSpec(String spec) throws ParseException {
         if (spec == null) {
             return new LinkedHashMap<Label, List<ElasticSearchIndexSpec>>();
@@ -34,16 +40,59 @@ public class ElasticSearchIndexSpecParser {
             }
             
             Label label = DynamicLabel.label(matcher.group("label"));
-            
-            if (map.containsKey(label)) {
-            	throw new ParseException(matcher.group(), 0);
+            String indexName = matcher.group("indexname");
+
+            List<ElasticSearchIndexSpec> specs = map.get(label);
+            if (specs == null) {
+                specs = new ArrayList<ElasticSearchIndexSpec>();
+                map.put(label, specs);
             }
-            map.put(label,
-            		new ArrayList<ElasticSearchIndexSpec>(Arrays.asList(new ElasticSearchIndexSpec(matcher.group("indexname"), props))));
+            for (ElasticSearchIndexSpec other : specs) {
+                if (other.getIndexName().equals(indexName)) {
+                    throw new ParseException("Can't define index twice: " + matcher.group(), matcher.start());
+                }
+            }
+            specs.add(new ElasticSearchIndexSpec(indexName, props));
         }
         
         return map;
     }
+
+    /**
+     * Parses the relationship indices of the spec, e.g. {@code knows:[KNOWS](since,weight){ids,labels}}:
+     * relationships of type {@code KNOWS} go to the index {@code knows} with their properties {@code since}
+     * and {@code weight}. The optional {@code ids} and {@code labels} add the ids and labels of the start
+     * and end nodes to the documents. The indices are keyed by the name of their relationship type.
+     */
+    public static Map<String, List<ElasticSearchIndexSpec>> parseRelationshipIndexSpec(String spec) throws ParseException {
+        Map<String, List<ElasticSearchIndexSpec>> map = new LinkedHashMap<String, List<ElasticSearchIndexSpec>>();
+        if (spec == null) {
+            return map;
+        }
+        Matcher matcher = RELATIONSHIP_SPEC_RE.matcher(spec);
+        while (matcher.find()) {
+            Set<String> props = properties(matcher.group("props"));
+            Set<String> endpoints = properties(matcher.group("endpoints") == null ? "" : matcher.group("endpoints"));
+
+            String type = matcher.group("type");
+
+            if (map.containsKey(type)) {
+                throw new ParseException("Can't define index twice: " + matcher.group(), matcher.start());
+            }
+            map.put(type, new ArrayList<ElasticSearchIndexSpec>(Arrays.asList(new ElasticSearchIndexSpec(matcher.group("indexname"),
+                    props, endpoints.contains("ids"), endpoints.contains("labels")))));
+        }
+        return map;
+    }
+
+    private static Set<String> properties(String spec) {
+        Matcher propsMatcher = PROPS_SPEC_RE.matcher(spec);
+        Set<String> props = new LinkedHashSet<String>();
+        while (propsMatcher.find()) {
+            props.add(propsMatcher.group());
+        }
+        return props;
+    }
     
 
 }
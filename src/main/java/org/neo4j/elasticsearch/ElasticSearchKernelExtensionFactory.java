@@ -26,6 +26,45 @@ public class ElasticSearchKernelExtensionFactory extends KernelExtensionFactory<
         public static Setting<HostnamePort> clusterAddress = Settings.setting("elasticsearch.address", HOSTNAME_PORT, ":9300");
         public static Setting<String> hostName = setting("elasticsearch.host_name", STRING, (String) null);
         public static Setting<String> indexSpec = setting("elasticsearch.index_spec", STRING, (String) null);
+        public static Setting<String> indexSpecFile = setting("elasticsearch.index_spec_file", STRING, (String) null);
+        public static Setting<Boolean> indexSpecBackfill = setting("elasticsearch.index_spec_backfill", BOOLEAN, FALSE);
+        public static Setting<Boolean> externalVersioning = setting("elasticsearch.external_versioning", BOOLEAN, FALSE);
+        public static Setting<Long> documentCacheSize = setting("elasticsearch.document_cache_size", BYTES, "0");
+        public static Setting<Boolean> deferredRendering = setting("elasticsearch.deferred_rendering", BOOLEAN, FALSE);
+        public static Setting<Integer> deferredMaxDocuments = setting("elasticsearch.deferred_max_documents", INTEGER, "100000", min(1));
+        public static Setting<Integer> largeTransactionChanges = setting("elasticsearch.large_transaction_changes", INTEGER, "100000", min(0));
+        public static Setting<Boolean> queueEnabled = setting("elasticsearch.queue_enabled", BOOLEAN, TRUE);
+        public static Setting<Boolean> replayTransactions = setting("elasticsearch.replay_transactions", BOOLEAN, FALSE);
+        public static Setting<Long> queueSegmentSize = setting("elasticsearch.queue_segment_size", BYTES, "64m", max((long) Integer.MAX_VALUE));
+        public static Setting<Integer> queueMaxSegments = setting("elasticsearch.queue_max_segments", INTEGER, "16", min(1));
+        public static Setting<Integer> bulkMaxActions = setting("elasticsearch.bulk_max_actions", INTEGER, "1000", min(1));
+        public static Setting<Long> bulkMaxBytes = setting("elasticsearch.bulk_max_bytes", BYTES, "5m");
+        public static Setting<Boolean> bulkAdaptive = setting("elasticsearch.bulk_adaptive", BOOLEAN, FALSE);
+        public static Setting<Integer> bulkMinActions = setting("elasticsearch.bulk_min_actions", INTEGER, "100", min(1));
+        public static Setting<Long> bulkMinBytes = setting("elasticsearch.bulk_min_bytes", BYTES, "512k");
+        public static Setting<Long> bulkTargetTook = setting("elasticsearch.bulk_target_took", DURATION, "1s");
+        public static Setting<Long> bulkLinger = setting("elasticsearch.bulk_linger", DURATION, "100ms");
+        public static Setting<Integer> senderLanes = setting("elasticsearch.sender_lanes", INTEGER, "4", min(1));
+        public static Setting<Integer> senderQueueDepth = setting("elasticsearch.sender_queue_depth", INTEGER, "10000", min(1));
+        public static Setting<Boolean> httpCompression = setting("elasticsearch.http_compression", BOOLEAN, FALSE);
+        public static Setting<Long> httpCompressionMinSize = setting("elasticsearch.http_compression_min_size", BYTES, "1k");
+        public static Setting<Integer> httpMaxConnectionsPerRoute = setting("elasticsearch.http_max_connections_per_route", INTEGER, (String) null);
+        public static Setting<Long> httpConnectTimeout = setting("elasticsearch.http_connect_timeout", DURATION, "5s");
+        public static Setting<Long> httpReadTimeout = setting("elasticsearch.http_read_timeout", DURATION, "60s");
+        public static Setting<Long> httpKeepAlive = setting("elasticsearch.http_keep_alive", DURATION, "60s");
+        public static Setting<Integer> maxInFlightPerNode = setting("elasticsearch.max_in_flight_per_node", INTEGER, "4", min(1));
+        public static Setting<Boolean> indexBootstrap = setting("elasticsearch.index_bootstrap", BOOLEAN, FALSE);
+        public static Setting<Boolean> reindexBulkLoad = setting("elasticsearch.reindex_bulk_load", BOOLEAN, FALSE);
+        public static Setting<Boolean> reindexOnStartup = setting("elasticsearch.reindex_on_startup", BOOLEAN, FALSE);
+        public static Setting<Integer> reindexPartitionSize = setting("elasticsearch.reindex_partition_size", INTEGER, "100000", min(1));
+        public static Setting<Integer> reindexThreads = setting("elasticsearch.reindex_threads", INTEGER, String.valueOf(Runtime.getRuntime().availableProcessors()), min(1));
+        public static Setting<InFlightLimiter.Policy> inFlightPolicy = setting("elasticsearch.in_flight_policy", options(InFlightLimiter.Policy.class), "BLOCK");
+        public static Setting<Long> inFlightResyncInterval = setting("elasticsearch.in_flight_resync_interval", DURATION, "10s");
+        public static Setting<Integer> retryMaxAttempts = setting("elasticsearch.retry_max_attempts", INTEGER, "8", min(1));
+        public static Setting<Long> reconcileInterval = setting("elasticsearch.reconcile_interval", DURATION, "0ms");
+        public static Setting<Integer> reconcileRangeSize = setting("elasticsearch.reconcile_range_size", INTEGER, "1000", min(1));
+        public static Setting<Integer> reconcileRate = setting("elasticsearch.reconcile_rate", INTEGER, "10000", min(1));
+        public static Setting<Long> metricsLogInterval = setting("elasticsearch.metrics_log_interval", DURATION, "0ms");
         // todo settings for label, property, indexName
     }
 
@@ -36,9 +75,7 @@ public class ElasticSearchKernelExtensionFactory extends KernelExtensionFactory<
     @Override
     public Lifecycle newKernelExtension(Dependencies dependencies) throws Throwable {
         Config config = dependencies.getConfig();
-        return new ElasticSearchExtension(dependencies.getGraphDatabaseService(), dependencies.getStringLogger(),
-                config.get(ElasticSearchSettings.hostName),
-                config.get(ElasticSearchSettings.indexSpec));
+        return new ElasticSearchExtension(dependencies.getGraphDatabaseService(), dependencies.getStringLogger(), config);
     }
 
     public interface Dependencies {
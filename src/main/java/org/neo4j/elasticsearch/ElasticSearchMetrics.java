@@ -0,0 +1,373 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Instrumentation of the commit path and the traffic to ElasticSearch.
+ *
+ * Times spent in {@code beforeCommit} and {@code afterCommit}, actions per transaction, bytes per
+ * bulk request, request round trips and the {@code took} reported by ElasticSearch are recorded in
+ * lock-free {@link Histogram}s; retries, failed requests, failed items per index, dead letters and
+ * the hits, misses and evictions of the {@link DocumentCache} are counted.
+ */
+class ElasticSearchMetrics implements ElasticSearchMetricsMBean {
+    private final Histogram beforeCommitNanos = new Histogram();
+    private final Histogram afterCommitNanos = new Histogram();
+    private final Histogram actionsPerTransaction = new Histogram();
+    private final Histogram bytesPerBulk = new Histogram();
+    private final Histogram requestNanos = new Histogram();
+    private final Histogram tookMillis = new Histogram();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final AtomicLong failedItems = new AtomicLong();
+    private final AtomicLong outdatedItems = new AtomicLong();
+    private final AtomicLong deadLetters = new AtomicLong();
+    private final AtomicLong queueDroppedActions = new AtomicLong();
+    private volatile int bulkTargetActions;
+    private volatile long bulkTargetBytes;
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong documentCacheHits = new AtomicLong();
+    private final AtomicLong documentCacheMisses = new AtomicLong();
+    private final AtomicLong documentCacheEvictions = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> indexErrors = new ConcurrentHashMap<>();
+
+    void beforeCommit(long startNanos, int actions) {
+        beforeCommitNanos.record(System.nanoTime() - startNanos);
+        actionsPerTransaction.record(actions);
+    }
+
+    void afterCommit(long startNanos) {
+        afterCommitNanos.record(System.nanoTime() - startNanos);
+    }
+
+    void bulk(long bytes) {
+        bytesPerBulk.record(bytes);
+    }
+
+    void retry() {
+        retries.incrementAndGet();
+    }
+
+    /**
+     * Records the round trip of a request sent at {@code startNanos} and what ElasticSearch reported about it.
+     */
+    void completed(long startNanos, JestResult result) {
+        requestNanos.record(System.nanoTime() - startNanos);
+        if (!result.isSucceeded()) failedRequests.incrementAndGet();
+        JsonObject json = result.getJsonObject();
+        if (json == null) return;
+        JsonElement took = json.get("took");
+        if (took != null && took.isJsonPrimitive()) tookMillis.record(took.getAsLong());
+        JsonElement errors = json.get("errors");
+        if (errors == null || !errors.isJsonPrimitive() || !errors.getAsBoolean()) return;
+        JsonElement items = json.get("items");
+        if (items == null || !items.isJsonArray()) return;
+        for (JsonElement item : (JsonArray) items) {
+            for (Map.Entry<String, JsonElement> action : item.getAsJsonObject().entrySet()) {
+                JsonObject status = action.getValue().getAsJsonObject();
+                if (!status.has("error")) continue;
+                if (status.has("status") && status.get("status").getAsInt() == BulkResponse.CONFLICT) {
+                    outdatedItems.incrementAndGet();
+                    continue;
+                }
+                failedItems.incrementAndGet();
+                indexError(status.has("_index") ? status.get("_index").getAsString() : "unknown");
+            }
+        }
+    }
+
+    void failed(long startNanos) {
+        requestNanos.record(System.nanoTime() - startNanos);
+        failedRequests.incrementAndGet();
+    }
+
+    /**
+     * Records an action that was given up on and written to the dead letters.
+     */
+    void deadLetter() {
+        deadLetters.incrementAndGet();
+    }
+
+    /**
+     * Records actions dropped because the queue was full.
+     */
+    void queueDropped(int actions) {
+        queueDroppedActions.addAndGet(actions);
+    }
+
+    /**
+     * Records the bulk size the sender lanes currently aim at.
+     */
+    void bulkTarget(int actions, long bytes) {
+        bulkTargetActions = actions;
+        bulkTargetBytes = bytes;
+    }
+
+    /**
+     * Records a request body that was sent compressed.
+     */
+    void compressed(long before, long after) {
+        uncompressedBytes.addAndGet(before);
+        compressedBytes.addAndGet(after);
+    }
+
+    void documentCacheHit() {
+        documentCacheHits.incrementAndGet();
+    }
+
+    void documentCacheMiss() {
+        documentCacheMisses.incrementAndGet();
+    }
+
+    void documentCacheEviction() {
+        documentCacheEvictions.incrementAndGet();
+    }
+
+    private void indexError(String indexName) {
+        AtomicLong count = indexErrors.get(indexName);
+        if (count == null) {
+            AtomicLong existing = indexErrors.putIfAbsent(indexName, count = new AtomicLong());
+            if (existing != null) count = existing;
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Wraps the handler so that the round trip of the request sent now is recorded when it completes.
+     */
+    <T extends JestResult> JestResultHandler<T> timing(final JestResultHandler<T> handler) {
+        final long start = System.nanoTime();
+        return new JestResultHandler<T>() {
+            @Override
+            public void completed(T result) {
+                ElasticSearchMetrics.this.completed(start, result);
+                handler.completed(result);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                ElasticSearchMetrics.this.failed(start);
+                handler.failed(e);
+            }
+        };
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    @Override
+    public long getTransactions() {
+        return beforeCommitNanos.count();
+    }
+
+    @Override
+    public long getBeforeCommitMicros50() {
+        return micros(beforeCommitNanos.percentile(50));
+    }
+
+    @Override
+    public long getBeforeCommitMicros99() {
+        return micros(beforeCommitNanos.percentile(99));
+    }
+
+    @Override
+    public long getBeforeCommitMicrosMax() {
+        return micros(beforeCommitNanos.max());
+    }
+
+    @Override
+    public long getAfterCommitMicros50() {
+        return micros(afterCommitNanos.percentile(50));
+    }
+
+    @Override
+    public long getAfterCommitMicros99() {
+        return micros(afterCommitNanos.percentile(99));
+    }
+
+    @Override
+    public long getAfterCommitMicrosMax() {
+        return micros(afterCommitNanos.max());
+    }
+
+    @Override
+    public double getActionsPerTransactionMean() {
+        return actionsPerTransaction.mean();
+    }
+
+    @Override
+    public long getActionsPerTransactionMax() {
+        return actionsPerTransaction.max();
+    }
+
+    @Override
+    public long getBulks() {
+        return bytesPerBulk.count();
+    }
+
+    @Override
+    public double getBytesPerBulkMean() {
+        return bytesPerBulk.mean();
+    }
+
+    @Override
+    public long getBytesPerBulkMax() {
+        return bytesPerBulk.max();
+    }
+
+    @Override
+    public long getRequestMillis50() {
+        return millis(requestNanos.percentile(50));
+    }
+
+    @Override
+    public long getRequestMillis99() {
+        return millis(requestNanos.percentile(99));
+    }
+
+    @Override
+    public long getRequestMillisMax() {
+        return millis(requestNanos.max());
+    }
+
+    @Override
+    public long getTookMillis50() {
+        return tookMillis.percentile(50);
+    }
+
+    @Override
+    public long getTookMillis99() {
+        return tookMillis.percentile(99);
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public long getFailedRequests() {
+        return failedRequests.get();
+    }
+
+    @Override
+    public long getFailedItems() {
+        return failedItems.get();
+    }
+
+    @Override
+    public long getOutdatedItems() {
+        return outdatedItems.get();
+    }
+
+    @Override
+    public long getDeadLetters() {
+        return deadLetters.get();
+    }
+
+    @Override
+    public long getQueueDroppedActions() {
+        return queueDroppedActions.get();
+    }
+
+    @Override
+    public int getBulkTargetActions() {
+        return bulkTargetActions;
+    }
+
+    @Override
+    public long getBulkTargetBytes() {
+        return bulkTargetBytes;
+    }
+
+    @Override
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    @Override
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    @Override
+    public long getDocumentCacheHits() {
+        return documentCacheHits.get();
+    }
+
+    @Override
+    public long getDocumentCacheMisses() {
+        return documentCacheMisses.get();
+    }
+
+    @Override
+    public long getDocumentCacheEvictions() {
+        return documentCacheEvictions.get();
+    }
+
+    @Override
+    public Map<String, Long> getIndexErrors() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : indexErrors.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        beforeCommitNanos.reset();
+        afterCommitNanos.reset();
+        actionsPerTransaction.reset();
+        bytesPerBulk.reset();
+        requestNanos.reset();
+        tookMillis.reset();
+        retries.set(0);
+        failedRequests.set(0);
+        failedItems.set(0);
+        outdatedItems.set(0);
+        deadLetters.set(0);
+        queueDroppedActions.set(0);
+        uncompressedBytes.set(0);
+        compressedBytes.set(0);
+        documentCacheHits.set(0);
+        documentCacheMisses.set(0);
+        documentCacheEvictions.set(0);
+        indexErrors.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "transactions=" + getTransactions()
+                + " beforeCommit(us) p50=" + getBeforeCommitMicros50() + " p99=" + getBeforeCommitMicros99() + " max=" + getBeforeCommitMicrosMax()
+                + " afterCommit(us) p50=" + getAfterCommitMicros50() + " p99=" + getAfterCommitMicros99() + " max=" + getAfterCommitMicrosMax()
+                + " actions/tx mean=" + String.format("%.1f", getActionsPerTransactionMean()) + " max=" + getActionsPerTransactionMax()
+                + " bulks=" + getBulks() + " bytes/bulk mean=" + String.format("%.0f", getBytesPerBulkMean()) + " max=" + getBytesPerBulkMax()
+                + " request(ms) p50=" + getRequestMillis50() + " p99=" + getRequestMillis99() + " max=" + getRequestMillisMax()
+                + " took(ms) p50=" + getTookMillis50() + " p99=" + getTookMillis99()
+                + " retries=" + getRetries() + " failedRequests=" + getFailedRequests() + " failedItems=" + getFailedItems()
+                + " outdatedItems=" + getOutdatedItems() + " deadLetters=" + getDeadLetters() + " queueDroppedActions=" + getQueueDroppedActions()
+                + " bulkTarget actions=" + getBulkTargetActions() + " bytes=" + getBulkTargetBytes()
+                + " compressed bytes before=" + getUncompressedBytes() + " after=" + getCompressedBytes()
+                + " documentCache hits=" + getDocumentCacheHits() + " misses=" + getDocumentCacheMisses()
+                + " evictions=" + getDocumentCacheEvictions()
+                + " indexErrors=" + getIndexErrors();
+    }
+}
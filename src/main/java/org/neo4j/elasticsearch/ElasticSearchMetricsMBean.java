@@ -0,0 +1,93 @@
+package org.neo4j.elasticsearch;
+
+import java.util.Map;
+
+/**
+ * Management view of the {@link ElasticSearchMetrics}: commit path timings, bulk sizes and ElasticSearch responses.
+ */
+public interface ElasticSearchMetricsMBean {
+    long getTransactions();
+
+    long getBeforeCommitMicros50();
+
+    long getBeforeCommitMicros99();
+
+    long getBeforeCommitMicrosMax();
+
+    long getAfterCommitMicros50();
+
+    long getAfterCommitMicros99();
+
+    long getAfterCommitMicrosMax();
+
+    double getActionsPerTransactionMean();
+
+    long getActionsPerTransactionMax();
+
+    long getBulks();
+
+    double getBytesPerBulkMean();
+
+    long getBytesPerBulkMax();
+
+    long getRequestMillis50();
+
+    long getRequestMillis99();
+
+    long getRequestMillisMax();
+
+    long getTookMillis50();
+
+    long getTookMillis99();
+
+    long getRetries();
+
+    long getFailedRequests();
+
+    long getFailedItems();
+
+    /**
+     * @return bulk items ElasticSearch ignored because it already had a later version of the document
+     */
+    long getOutdatedItems();
+
+    long getDeadLetters();
+
+    /**
+     * @return actions dropped because the queue was full
+     */
+    long getQueueDroppedActions();
+
+    /**
+     * @return the actions a bulk request of the sender lanes currently holds at most
+     */
+    int getBulkTargetActions();
+
+    long getBulkTargetBytes();
+
+    /**
+     * @return bytes of the request bodies that were sent compressed, before compression
+     */
+    long getUncompressedBytes();
+
+    long getCompressedBytes();
+
+    /**
+     * @return index actions skipped because the document was sent like this before
+     */
+    long getDocumentCacheHits();
+
+    long getDocumentCacheMisses();
+
+    long getDocumentCacheEvictions();
+
+    /**
+     * @return failed bulk items by index name
+     */
+    Map<String, Long> getIndexErrors();
+
+    /**
+     * Clears all histograms and counters.
+     */
+    void reset();
+}
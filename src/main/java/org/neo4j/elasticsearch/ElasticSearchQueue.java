@@ -0,0 +1,261 @@
+package org.neo4j.elasticsearch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Bounded, disk-backed append-only queue of replication records between the
+ * committing transactions and ElasticSearch.
+ *
+ * Records are appended to memory-mapped segment files of a fixed size, each record
+ * prefixed by its length and a CRC32 of its payload. Offsets are global byte positions
+ * ({@code segment * segmentSize + position}); the offset up to which records have been
+ * shipped to ElasticSearch is persisted in a separate file, and segments entirely before
+ * it are deleted. On open the write position is recovered by scanning forward from the
+ * acknowledged offset until the first missing or corrupt record.
+ */
+class ElasticSearchQueue implements Closeable {
+    static final String SEGMENT_SUFFIX = ".segment";
+    static final String ACK_FILE = "acknowledged";
+
+    private static final int HEADER_SIZE = 8; // length + crc32
+    private static final int END_OF_SEGMENT = -1;
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+    private final FileChannel ackChannel;
+    private final ByteBuffer ackBuffer = ByteBuffer.allocate(8);
+    private long writeOffset;
+    private volatile long committedOffset;
+    private volatile long acknowledgedOffset;
+
+    ElasticSearchQueue(File dir, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize <= HEADER_SIZE) throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        if (maxSegments < 1) throw new IllegalArgumentException("Need at least one segment: " + maxSegments);
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create queue directory " + dir);
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.ackChannel = new RandomAccessFile(new File(dir, ACK_FILE), "rw").getChannel();
+        this.acknowledgedOffset = readAcknowledged();
+        openSegments();
+        this.writeOffset = recover(acknowledgedOffset);
+        this.committedOffset = writeOffset;
+    }
+
+    /**
+     * Appends a record, returns false if the queue is full.
+     */
+    synchronized boolean append(byte[] payload) throws IOException {
+        int recordSize = HEADER_SIZE + payload.length;
+        if (payload.length == 0 || recordSize > segmentSize) {
+            throw new IllegalArgumentException("Can't queue record of " + payload.length + " bytes with segment size " + segmentSize);
+        }
+        int position = positionOf(writeOffset);
+        if (position + recordSize > segmentSize) {
+            MappedByteBuffer current = segments.get(segmentOf(writeOffset));
+            if (current != null && position + 4 <= segmentSize) current.putInt(position, END_OF_SEGMENT);
+            writeOffset = nextSegment(writeOffset);
+            position = 0;
+        }
+        long segmentNo = segmentOf(writeOffset);
+        MappedByteBuffer segment = segments.get(segmentNo);
+        if (segment == null) {
+            // once everything is acknowledged the acknowledged offset may still be in the last segment
+            if (acknowledgedOffset < committedOffset && segmentNo - segmentOf(acknowledgedOffset) >= maxSegments) return false;
+            segment = map(segmentNo);
+            segments.put(segmentNo, segment);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = segment.duplicate();
+        buffer.position(position + HEADER_SIZE);
+        buffer.put(payload);
+        segment.putInt(position + 4, (int) crc.getValue());
+        // the length goes last, a record is only visible to recovery once it is complete
+        segment.putInt(position, payload.length);
+
+        writeOffset += recordSize;
+        committedOffset = writeOffset;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * @return the first record at or after the given offset, or null if there is none yet
+     */
+    Record read(long offset) {
+        while (offset < committedOffset) {
+            MappedByteBuffer segment = segment(segmentOf(offset));
+            int position = positionOf(offset);
+            if (segment == null || position + HEADER_SIZE > segmentSize) {
+                offset = nextSegment(offset);
+                continue;
+            }
+            int length = segment.getInt(position);
+            if (length == END_OF_SEGMENT) {
+                offset = nextSegment(offset);
+                continue;
+            }
+            byte[] payload = new byte[length];
+            ByteBuffer buffer = segment.duplicate();
+            buffer.position(position + HEADER_SIZE);
+            buffer.get(payload);
+            return new Record(offset, offset + HEADER_SIZE + length, payload);
+        }
+        return null;
+    }
+
+    /**
+     * Waits up to the given time for records to be appended beyond the offset.
+     */
+    synchronized void awaitRecords(long offset, long timeoutMillis) throws InterruptedException {
+        if (committedOffset <= offset) wait(timeoutMillis);
+    }
+
+    /**
+     * Marks everything before the offset as shipped, persisting it and deleting segments no longer needed.
+     */
+    synchronized void acknowledge(long offset) throws IOException {
+        if (offset <= acknowledgedOffset) return;
+        acknowledgedOffset = offset;
+        ackBuffer.clear();
+        ackBuffer.putLong(offset).flip();
+        ackChannel.write(ackBuffer, 0);
+        ackChannel.force(false);
+
+        long firstNeeded = segmentOf(offset);
+        Iterator<Long> it = segments.keySet().iterator();
+        while (it.hasNext()) {
+            long segmentNo = it.next();
+            if (segmentNo >= firstNeeded) break;
+            it.remove();
+            segmentFile(segmentNo).delete();
+        }
+    }
+
+    long acknowledgedOffset() {
+        return acknowledgedOffset;
+    }
+
+    /**
+     * @return the offset after the last appended record
+     */
+    long committedOffset() {
+        return committedOffset;
+    }
+
+    long pendingBytes() {
+        return committedOffset - acknowledgedOffset;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (MappedByteBuffer segment : segments.values()) {
+            segment.force();
+        }
+        segments.clear();
+        ackChannel.close();
+    }
+
+    private synchronized MappedByteBuffer segment(long segmentNo) {
+        return segments.get(segmentNo);
+    }
+
+    private long readAcknowledged() throws IOException {
+        if (ackChannel.size() < 8) return 0;
+        ackBuffer.clear();
+        ackChannel.read(ackBuffer, 0);
+        ackBuffer.flip();
+        return ackBuffer.getLong();
+    }
+
+    private void openSegments() throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        long firstNeeded = segmentOf(acknowledgedOffset);
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SEGMENT_SUFFIX)) continue;
+            long segmentNo = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            if (segmentNo < firstNeeded) {
+                file.delete();
+            } else {
+                segments.put(segmentNo, map(segmentNo));
+            }
+        }
+        if (!segments.isEmpty() && segments.firstKey() > firstNeeded) {
+            acknowledgedOffset = segments.firstKey() * segmentSize;
+        }
+    }
+
+    private long recover(long offset) {
+        while (true) {
+            MappedByteBuffer segment = segments.get(segmentOf(offset));
+            if (segment == null) return offset;
+            int position = positionOf(offset);
+            if (position + HEADER_SIZE > segmentSize) {
+                offset = nextSegment(offset);
+                continue;
+            }
+            int length = segment.getInt(position);
+            if (length == END_OF_SEGMENT) {
+                offset = nextSegment(offset);
+                continue;
+            }
+            if (length <= 0 || position + HEADER_SIZE + length > segmentSize) return offset;
+            byte[] payload = new byte[length];
+            ByteBuffer buffer = segment.duplicate();
+            buffer.position(position + HEADER_SIZE);
+            buffer.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != segment.getInt(position + 4)) return offset;
+            offset += HEADER_SIZE + length;
+        }
+    }
+
+    private MappedByteBuffer map(long segmentNo) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile(segmentNo), "rw")) {
+            file.setLength(segmentSize);
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private File segmentFile(long segmentNo) {
+        return new File(dir, String.format("%019d%s", segmentNo, SEGMENT_SUFFIX));
+    }
+
+    private long segmentOf(long offset) {
+        return offset / segmentSize;
+    }
+
+    private int positionOf(long offset) {
+        return (int) (offset % segmentSize);
+    }
+
+    private long nextSegment(long offset) {
+        return (segmentOf(offset) + 1) * segmentSize;
+    }
+
+    static class Record {
+        final long offset, nextOffset;
+        final byte[] payload;
+
+        Record(long offset, long nextOffset, byte[] payload) {
+            this.offset = offset;
+            this.nextOffset = nextOffset;
+            this.payload = payload;
+        }
+    }
+}
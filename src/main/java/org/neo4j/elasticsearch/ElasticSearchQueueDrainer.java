@@ -0,0 +1,109 @@
+package org.neo4j.elasticsearch;
+
+import io.searchbox.client.JestClient;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Background worker that ships the records of an {@link ElasticSearchQueue} to ElasticSearch
+ * in bulk and acknowledges them once ElasticSearch accepted the request.
+ *
+ * The entries of each record are handed to one of several {@link BulkLane}s by the hash of
+ * their document, each lane batches and sends its entries on its own, so changes of the same
+ * document keep their order while bulk requests go out in parallel. A lane merges the entries
+ * of many transactions into one {@link BulkBatch}, which is sent once it holds as many actions
+ * or bytes as the {@link BulkSizer} allows, or when its first action has waited
+ * {@code lingerMillis}. Failed requests and rejected items are sent again by the lane, records
+ * are only acknowledged once all lanes settled their entries, so they survive both
+ * ElasticSearch outages and restarts.
+ */
+class ElasticSearchQueueDrainer implements Runnable {
+    private static final long IDLE_WAIT_MILLIS = 100;
+    private static final long ACKNOWLEDGE_INTERVAL_MILLIS = 100;
+
+    private final ElasticSearchQueue queue;
+    private final StringLogger logger;
+    private final BulkLane[] lanes;
+    private volatile boolean running;
+    private Thread thread;
+
+    ElasticSearchQueueDrainer(ElasticSearchQueue queue, JestClient client, StringLogger logger,
+                              BulkSizer sizer, long lingerMillis, ElasticSearchMetrics metrics,
+                              BulkRetrier retrier, int laneCount, int laneQueueDepth) {
+        this.queue = queue;
+        this.logger = logger;
+        this.lanes = new BulkLane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new BulkLane(i, laneQueueDepth, client, logger, sizer, lingerMillis, metrics, retrier);
+        }
+    }
+
+    synchronized void start() {
+        if (running) return;
+        running = true;
+        for (BulkLane lane : lanes) {
+            lane.start(queue.acknowledgedOffset());
+        }
+        thread = new Thread(this, "neo4j.ElasticSearch-queue-drainer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void stop() throws InterruptedException {
+        if (!running) return;
+        running = false;
+        thread.interrupt();
+        thread.join();
+        thread = null;
+        for (BulkLane lane : lanes) {
+            lane.stop();
+        }
+    }
+
+    @Override
+    public void run() {
+        long offset = queue.acknowledgedOffset();
+        long acknowledgedAt = System.currentTimeMillis();
+        try {
+            while (running) {
+                ElasticSearchQueue.Record record = queue.read(offset);
+                if (record == null) {
+                    queue.acknowledge(settled());
+                    acknowledgedAt = System.currentTimeMillis();
+                    queue.awaitRecords(offset, IDLE_WAIT_MILLIS);
+                    continue;
+                }
+                for (BulkEntry entry : BulkEntry.decode(new DataInputStream(new ByteArrayInputStream(record.payload)))) {
+                    entry.offset = record.offset;
+                    lanes[BulkLane.of(entry, lanes.length)].put(entry);
+                }
+                offset = record.nextOffset;
+                for (BulkLane lane : lanes) {
+                    lane.dispatched(offset);
+                }
+                if (System.currentTimeMillis() - acknowledgedAt >= ACKNOWLEDGE_INTERVAL_MILLIS) {
+                    queue.acknowledge(settled());
+                    acknowledgedAt = System.currentTimeMillis();
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (IOException e) {
+            logger.error("ElasticSearch queue drainer stopped", e);
+        }
+    }
+
+    /**
+     * @return the offset before which all lanes settled their entries
+     */
+    private long settled() {
+        long settled = Long.MAX_VALUE;
+        for (BulkLane lane : lanes) {
+            settled = Math.min(settled, lane.settled());
+        }
+        return settled;
+    }
+}
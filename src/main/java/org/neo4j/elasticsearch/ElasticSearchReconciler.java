@@ -0,0 +1,400 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import org.neo4j.elasticsearch.IndexPlan.IndexTarget;
+import org.neo4j.elasticsearch.IndexPlan.LabelPlan;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.AvailabilityGuard;
+import org.neo4j.kernel.api.exceptions.EntityNotFoundException;
+import org.neo4j.kernel.impl.transaction.state.NeoStoreProvider;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds and repairs node documents that drifted from the graph, without reindexing everything.
+ *
+ * The node id space is walked in ranges of {@code rangeSize} ids. For each range the number of
+ * documents and the sum of their checksums, which the event handler adds to every node document,
+ * are compared with a sum aggregation over the same ids in ElasticSearch. Only ranges that differ
+ * are looked at document by document: documents missing or with another checksum are sent again,
+ * documents of nodes that are gone or lost their label are deleted. A run reads at most
+ * {@code idsPerSecond} node ids per second and is repeated on a schedule.
+ */
+class ElasticSearchReconciler implements ElasticSearchReconcilerMBean {
+    /** the field of node documents holding the checksum of the rest of the document */
+    static final String CHECKSUM = "checksum";
+    private static final long AVAILABILITY_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final int MAX_ATTEMPTS = 5;
+    /** the default index.max_result_window */
+    private static final long MAX_RESULT_WINDOW = 10000;
+
+    private final GraphDatabaseService db;
+    private final ElasticSearchEventHandler handler;
+    private final JestClient client;
+    private final StringLogger logger;
+    private final int rangeSize;
+    private final int idsPerSecond;
+    private final ElasticSearchMetrics metrics;
+    private final BulkRetrier retrier;
+    private final JsonParser parser = new JsonParser();
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicLong checkedRanges = new AtomicLong();
+    private final AtomicLong differingRanges = new AtomicLong();
+    private final AtomicLong repairedDocuments = new AtomicLong();
+    private final AtomicLong deletedDocuments = new AtomicLong();
+    private volatile long ranges;
+    private volatile boolean stopped;
+    private ScheduledExecutorService scheduler;
+
+    ElasticSearchReconciler(GraphDatabaseService db, ElasticSearchEventHandler handler, JestClient client, StringLogger logger,
+                            int rangeSize, int idsPerSecond, ElasticSearchMetrics metrics, BulkRetrier retrier) {
+        this.db = db;
+        this.handler = handler;
+        this.client = client;
+        this.logger = logger;
+        this.rangeSize = rangeSize;
+        this.idsPerSecond = idsPerSecond;
+        this.metrics = metrics;
+        this.retrier = retrier;
+    }
+
+    /**
+     * @return the checksum of the document rendered between start and end, a positive int so that
+     * ElasticSearch sums it up exactly as a double
+     */
+    static int checksum(String type, byte[] buffer, int start, int end) {
+        return (int) DocumentCache.hash(type.hashCode(), buffer, start, end) & Integer.MAX_VALUE;
+    }
+
+    /**
+     * Runs the reconciliation every {@code intervalMillis}, the first after one interval.
+     */
+    synchronized void schedule(long intervalMillis) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "neo4j.ElasticSearch-reconcile");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reconcile();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    @Override
+    public boolean start() {
+        if (!running.compareAndSet(false, true)) return false;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runReconcile();
+                } finally {
+                    running.set(false);
+                }
+            }
+        }, "neo4j.ElasticSearch-reconcile");
+        thread.setDaemon(true);
+        try {
+            thread.start();
+        } catch (RuntimeException | Error e) {
+            running.set(false);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Runs the reconciliation on the calling thread.
+     *
+     * @return true if all ranges were checked
+     */
+    boolean reconcile() {
+        if (!running.compareAndSet(false, true)) return false;
+        try {
+            return runReconcile();
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private boolean runReconcile() {
+        try {
+            if (!ElasticSearchExtension.dependencies(db).resolveDependency(AvailabilityGuard.class).isAvailable(AVAILABILITY_TIMEOUT_MILLIS)) {
+                logger.warn("ElasticSearch Integration: Database not available, reconciliation not started");
+                return false;
+            }
+            Set<String> indices = new LinkedHashSet<>(), types = new LinkedHashSet<>();
+            Set<String> targets = new LinkedHashSet<>();
+            for (LabelPlan label : handler.plan().labels()) {
+                for (IndexTarget target : label.targets) {
+                    indices.add(target.indexName);
+                    types.add(target.type);
+                    targets.add(target.indexName + "/" + target.type);
+                }
+            }
+            if (targets.isEmpty()) return true;
+            long highestId = ElasticSearchExtension.dependencies(db).resolveDependency(NeoStoreProvider.class)
+                    .evaluate().getNodeStore().getHighestPossibleIdInUse();
+            ranges = highestId / rangeSize + 1;
+            checkedRanges.set(0);
+            differingRanges.set(0);
+            repairedDocuments.set(0);
+            deletedDocuments.set(0);
+
+            String indexNames = join(indices), typeNames = join(types);
+            long start = System.nanoTime();
+            for (long from = 0; from <= highestId && !stopped; from += rangeSize) {
+                if (reconcile(from, from + rangeSize, indexNames, typeNames, targets.size())) {
+                    differingRanges.incrementAndGet();
+                }
+                checkedRanges.incrementAndGet();
+                long due = start + (long) ((from + rangeSize) * 1e9 / idsPerSecond);
+                long wait = due - System.nanoTime();
+                if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            boolean done = checkedRanges.get() == ranges;
+            logger.info("ElasticSearch Integration: Reconciliation " + (done ? "finished" : "incomplete") + ", "
+                    + checkedRanges.get() + "/" + ranges + " ranges, " + differingRanges.get() + " differed, "
+                    + repairedDocuments.get() + " documents sent again, " + deletedDocuments.get() + " deleted");
+            return done;
+        } catch (InterruptedException e) {
+            return false;
+        } catch (Exception e) {
+            logger.warn("ElasticSearch Integration: Reconciliation stopped after " + checkedRanges.get() + "/" + ranges
+                    + " ranges, will be retried on the next run", e);
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the documents of the range differed and were repaired
+     */
+    private boolean reconcile(long from, long to, String indices, String types, int targets) throws Exception {
+        String ids = ids(from, to);
+        JsonObject summary = search(indices, types, "{\"size\":0,\"query\":{\"ids\":{\"values\":" + ids + "}},"
+                + "\"aggs\":{\"" + CHECKSUM + "\":{\"sum\":{\"field\":\"" + CHECKSUM + "\"}}}}");
+        long storedCount = total(summary.getAsJsonObject("hits"));
+        JsonObject aggregation = summary.has("aggregations")
+                ? summary.getAsJsonObject("aggregations").getAsJsonObject(CHECKSUM) : null;
+        long storedSum = aggregation == null || aggregation.get("value").isJsonNull() ? 0 : (long) aggregation.get("value").getAsDouble();
+
+        BulkWriter documents = BulkWriter.acquire();
+        BulkWriter repairs = BulkWriter.acquire();
+        try {
+            render(from, to, documents);
+            long sum = 0;
+            for (int entry = 0; entry < documents.entryCount(); entry++) {
+                sum += checksum(documents, entry);
+            }
+            if (storedCount == documents.entryCount() && storedSum == sum) return false;
+
+            // the stored documents are read before the graph, so that the document of a node
+            // created meanwhile is sent again rather than taken for one of a deleted node
+            // a search returns at most index.max_result_window hits, larger ranges are searched in parts
+            List<JsonObject> hits = new ArrayList<>();
+            long step = Math.max(1, MAX_RESULT_WINDOW / targets);
+            for (long part = from; part < to; part += step) {
+                long partTo = Math.min(to, part + step);
+                for (JsonElement hit : search(indices, types, "{\"size\":" + Math.min(MAX_RESULT_WINDOW, (partTo - part) * targets)
+                        + ",\"_source\":[\"" + CHECKSUM + "\"],\"query\":{\"ids\":{\"values\":" + ids(part, partTo) + "}}}")
+                        .getAsJsonObject("hits").getAsJsonArray("hits")) {
+                    hits.add(hit.getAsJsonObject());
+                }
+            }
+            Map<String, Long> stored = new HashMap<>();
+            for (JsonObject document : hits) {
+                JsonObject source = document.getAsJsonObject("_source");
+                JsonElement checksum = source == null ? null : source.get(CHECKSUM);
+                stored.put(key(document), checksum == null ? -1 : checksum.getAsLong());
+            }
+            documents.reset();
+            render(from, to, documents);
+            Set<String> current = new LinkedHashSet<>();
+            for (int entry = 0; entry < documents.entryCount(); entry++) {
+                String key = key(action(documents, entry));
+                current.add(key);
+                Long checksum = stored.get(key);
+                if (checksum == null || checksum != checksum(documents, entry)) repairs.copy(documents, entry);
+            }
+            int sent = repairs.entryCount();
+            for (JsonObject document : hits) {
+                if (current.contains(key(document))) continue;
+                String index = document.get("_index").getAsString();
+                repairs.action(BulkWriter.encodeAction("delete", index, document.get("_type").getAsString()), index,
+                        document.get("_id").getAsString()).endEntry();
+            }
+            send(repairs);
+            repairedDocuments.addAndGet(sent);
+            deletedDocuments.addAndGet(repairs.entryCount() - sent);
+            return true;
+        } finally {
+            repairs.release();
+            documents.release();
+        }
+    }
+
+    /**
+     * Renders the documents of the nodes of the range, as of now.
+     */
+    private void render(long from, long to, BulkWriter writer) {
+        try (Transaction tx = db.beginTx()) {
+            for (long id = from; id < to; id++) {
+                Node node;
+                try {
+                    node = db.getNodeById(id);
+                    handler.index(node, writer);
+                } catch (NotFoundException | EntityNotFoundException e) {
+                    // no such node, its documents are orphans
+                }
+            }
+            tx.success();
+        }
+    }
+
+    /**
+     * @return the checksum the event handler wrote as last field of the entry's document
+     */
+    private static long checksum(BulkWriter writer, int entry) {
+        byte[] buffer = writer.buffer();
+        int end = writer.entryEnd(entry) - 1;
+        while (end > 0 && (buffer[end] < '0' || buffer[end] > '9')) end--;
+        long checksum = 0;
+        for (long scale = 1; end > 0 && buffer[end] >= '0' && buffer[end] <= '9'; end--, scale *= 10) {
+            checksum += (buffer[end] - '0') * scale;
+        }
+        return checksum;
+    }
+
+    /**
+     * @return the action line of the entry, with index, type and id of its document
+     */
+    private JsonObject action(BulkWriter writer, int entry) {
+        byte[] buffer = writer.buffer();
+        int start = writer.entryStart(entry), end = start;
+        while (buffer[end] != '\n') end++;
+        JsonObject line = parser.parse(new String(buffer, start, end - start, BulkEntry.UTF_8)).getAsJsonObject();
+        return line.entrySet().iterator().next().getValue().getAsJsonObject();
+    }
+
+    private static String key(JsonObject document) {
+        return document.get("_index").getAsString() + "/" + document.get("_type").getAsString() + "/" + document.get("_id").getAsString();
+    }
+
+    private JsonObject search(String indices, String types, String query) throws Exception {
+        JestResult result = client.execute(new RawSearch(indices, types, query));
+        if (!result.isSucceeded()) throw new IOException("ElasticSearch Search Failed: " + result.getErrorMessage());
+        return result.getJsonObject();
+    }
+
+    private void send(BulkWriter writer) throws Exception {
+        if (writer.isEmpty()) return;
+        String body = writer.toString();
+        try {
+            for (int attempt = 1; ; attempt++) {
+                metrics.bulk(body.length());
+                long start = System.nanoTime();
+                JestResult result = client.execute(new RawBulk(body));
+                metrics.completed(start, result);
+                if (result.isSucceeded()) {
+                    body = retrier.retriable(body, result, attempt);
+                    if (body == null) return;
+                } else if (attempt == MAX_ATTEMPTS) {
+                    throw new IOException("ElasticSearch Update Failed: " + result.getErrorMessage());
+                }
+                metrics.retry();
+                Thread.sleep(BulkRetrier.backoff(attempt));
+            }
+        } catch (Exception e) {
+            retrier.forget(body);
+            throw e;
+        }
+    }
+
+    private static long total(JsonObject hits) {
+        JsonElement total = hits.get("total");
+        return total.isJsonObject() ? total.getAsJsonObject().get("value").getAsLong() : total.getAsLong();
+    }
+
+    private static String ids(long from, long to) {
+        StringBuilder ids = new StringBuilder("[");
+        for (long id = from; id < to; id++) {
+            if (id > from) ids.append(',');
+            ids.append('"').append(id).append('"');
+        }
+        return ids.append(']').toString();
+    }
+
+    private static String join(Set<String> names) {
+        StringBuilder joined = new StringBuilder();
+        for (String name : names) {
+            if (joined.length() > 0) joined.append(',');
+            joined.append(name);
+        }
+        return joined.toString();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    @Override
+    public long getRanges() {
+        return ranges;
+    }
+
+    @Override
+    public long getCheckedRanges() {
+        return checkedRanges.get();
+    }
+
+    @Override
+    public long getDifferingRanges() {
+        return differingRanges.get();
+    }
+
+    @Override
+    public long getRepairedDocuments() {
+        return repairedDocuments.get();
+    }
+
+    @Override
+    public long getDeletedDocuments() {
+        return deletedDocuments.get();
+    }
+}
@@ -0,0 +1,25 @@
+package org.neo4j.elasticsearch;
+
+/**
+ * Management view of the {@link ElasticSearchReconciler}, reports the last run and starts one.
+ */
+public interface ElasticSearchReconcilerMBean {
+    boolean isRunning();
+
+    long getRanges();
+
+    long getCheckedRanges();
+
+    long getDifferingRanges();
+
+    long getRepairedDocuments();
+
+    long getDeletedDocuments();
+
+    /**
+     * Starts reconciling all ranges in the background.
+     *
+     * @return false if a run is already in progress
+     */
+    boolean start();
+}
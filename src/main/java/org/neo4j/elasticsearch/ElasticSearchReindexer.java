@@ -0,0 +1,422 @@
+package org.neo4j.elasticsearch;
+
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
+import org.neo4j.elasticsearch.IndexPlan.IndexTarget;
+import org.neo4j.elasticsearch.IndexPlan.LabelPlan;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.AvailabilityGuard;
+import org.neo4j.kernel.impl.transaction.state.NeoStoreProvider;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends every node matching the index spec to ElasticSearch, without going through a transaction.
+ *
+ * The node id space is cut into partitions of {@code partitionSize} ids which are scanned in
+ * parallel on a fork-join pool, each in its own read transaction, and shipped in bulks of
+ * {@code bulkSize} actions. Completed partitions are recorded in a checkpoint file, so an
+ * interrupted reindex resumes where it left off; the file is removed once all partitions are done.
+ * With an {@link IndexAdmin} the indices are in bulk-load mode while the reindex runs.
+ *
+ * The documents an {@link InFlightLimiter} dropped are sent again as they are now, on a schedule.
+ */
+class ElasticSearchReindexer implements ElasticSearchReindexerMBean {
+    private static final long PROGRESS_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long AVAILABILITY_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final GraphDatabaseService db;
+    private final ElasticSearchEventHandler handler;
+    private final JestClient client;
+    private final StringLogger logger;
+    private final File checkpointFile;
+    private final int partitionSize;
+    private final int bulkSize;
+    private final int parallelism;
+    private final ElasticSearchMetrics metrics;
+    private final BulkRetrier retrier;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicLong scannedNodes = new AtomicLong();
+    private final AtomicLong indexedDocuments = new AtomicLong();
+    private volatile IndexPlan backfill;
+    private IndexAdmin bulkLoad;
+    private volatile int partitions;
+    private BitSet completed = new BitSet();
+    private long lastProgress;
+    private ScheduledExecutorService resync;
+
+    ElasticSearchReindexer(GraphDatabaseService db, ElasticSearchEventHandler handler, JestClient client, StringLogger logger,
+                           File checkpointFile, int partitionSize, int bulkSize, int parallelism, ElasticSearchMetrics metrics,
+                           BulkRetrier retrier) {
+        this.db = db;
+        this.handler = handler;
+        this.client = client;
+        this.logger = logger;
+        this.checkpointFile = checkpointFile;
+        this.partitionSize = partitionSize;
+        this.bulkSize = bulkSize;
+        this.parallelism = parallelism;
+        this.metrics = metrics;
+        this.retrier = retrier;
+    }
+
+    /**
+     * Switches the indices being reindexed to bulk-load mode for the time of the reindex, and
+     * merges their segments afterwards.
+     */
+    void setBulkLoad(IndexAdmin bulkLoad) {
+        this.bulkLoad = bulkLoad;
+    }
+
+    @Override
+    public boolean start() {
+        return start(null);
+    }
+
+    /**
+     * Starts sending only the documents of the given plan in the background, e.g. those of indices
+     * added to the spec at runtime. A backfill doesn't touch the checkpoint of the full reindex.
+     *
+     * @return false if a reindex is already running
+     */
+    boolean backfill(IndexPlan plan) {
+        return start(plan);
+    }
+
+    private boolean start(final IndexPlan plan) {
+        if (!running.compareAndSet(false, true)) return false;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runReindex(plan);
+            }
+        }, plan == null ? "neo4j.ElasticSearch-reindex" : "neo4j.ElasticSearch-backfill");
+        thread.setDaemon(true);
+        try {
+            thread.start();
+        } catch (RuntimeException | Error e) {
+            running.set(false);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Sends the documents the limiter dropped again every {@code intervalMillis}.
+     */
+    synchronized void resync(final InFlightLimiter limiter, long intervalMillis) {
+        resync = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "neo4j.ElasticSearch-resync");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        resync.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                resync(limiter);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (resync != null) {
+            resync.shutdownNow();
+            resync = null;
+        }
+    }
+
+    /**
+     * Sends the current state of the documents the limiter dropped, or starts a full reindex if it
+     * dropped more than it remembers. While a reindex runs the dropped documents are left for later,
+     * it may have passed them already.
+     *
+     * @return false if the documents could not be sent and are left for the next time
+     */
+    boolean resync(InFlightLimiter limiter) {
+        if (running.get()) return false;
+        if (limiter.isDirtyOverflow()) {
+            if (!start()) return false;
+            limiter.resetDirty();
+            logger.warn("ElasticSearch Integration: Too many documents dropped to send them one by one, reindexing");
+            return true;
+        }
+        List<IndexId> dirty = limiter.takeDirty();
+        if (dirty.isEmpty()) return true;
+        IndexPlan plan = handler.plan();
+        Set<String> nodeIndices = new HashSet<>(), relationshipIndices = new HashSet<>();
+        for (LabelPlan label : plan.labels()) {
+            for (IndexTarget target : label.targets) nodeIndices.add(target.indexName);
+        }
+        for (IndexTarget target : plan.relationships()) relationshipIndices.add(target.indexName);
+        PrimitiveLongSet nodeIds = Primitive.longSet(), relationshipIds = Primitive.longSet();
+        for (IndexId id : dirty) {
+            long entityId;
+            try {
+                entityId = Long.parseLong(id.id);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (nodeIndices.contains(id.indexName)) nodeIds.add(entityId);
+            if (relationshipIndices.contains(id.indexName)) relationshipIds.add(entityId);
+        }
+        BulkWriter writer = BulkWriter.acquire();
+        BulkWriter bulk = BulkWriter.acquire();
+        try (Transaction tx = db.beginTx()) {
+            handler.replay(nodeIds, relationshipIds, writer);
+            for (int i = 0; i < writer.entryCount(); i++) {
+                bulk.copy(writer, i);
+                if (bulk.entryCount() >= bulkSize) {
+                    send(bulk);
+                    bulk.reset();
+                }
+            }
+            send(bulk);
+            tx.success();
+            logger.info("ElasticSearch Integration: Sent " + dirty.size() + " dropped documents again");
+            return true;
+        } catch (Exception e) {
+            logger.warn("ElasticSearch Integration: Could not send " + dirty.size() + " dropped documents again", e);
+            limiter.markDirty(dirty);
+            return false;
+        } finally {
+            bulk.release();
+            writer.release();
+        }
+    }
+
+    /**
+     * Runs the reindex on the calling thread.
+     *
+     * @return true if all partitions were shipped
+     */
+    boolean reindex() {
+        if (!running.compareAndSet(false, true)) return false;
+        return runReindex(null);
+    }
+
+    /**
+     * Runs a reindex the caller set {@code running} for, and clears it when done.
+     */
+    private boolean runReindex(IndexPlan plan) {
+        backfill = plan;
+        try {
+            if (!ElasticSearchExtension.dependencies(db).resolveDependency(AvailabilityGuard.class).isAvailable(AVAILABILITY_TIMEOUT_MILLIS)) {
+                logger.warn("ElasticSearch Integration: Database not available, reindex not started");
+                return false;
+            }
+            long highestId = ElasticSearchExtension.dependencies(db).resolveDependency(NeoStoreProvider.class)
+                    .evaluate().getNodeStore().getHighestPossibleIdInUse();
+            partitions = (int) (highestId / partitionSize) + 1;
+            synchronized (this) {
+                completed = plan == null ? readCheckpoint() : new BitSet(partitions);
+                lastProgress = System.currentTimeMillis();
+            }
+            scannedNodes.set(0);
+            indexedDocuments.set(0);
+            logger.info("ElasticSearch Integration: Reindexing " + (highestId + 1) + " node ids in " + partitions
+                    + " partitions, " + getCompletedPartitions() + " already done");
+
+            boolean bulkLoading = bulkLoad != null
+                    && bulkLoad.enterBulkLoad(IndexAdmin.nodeIndices(plan == null ? handler.plan() : plan));
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(new PartitionTask(0, partitions));
+            } finally {
+                pool.shutdown();
+                if (bulkLoading) bulkLoad.exitBulkLoad(getCompletedPartitions() == partitions);
+            }
+
+            boolean done = getCompletedPartitions() == partitions;
+            if (done && plan == null) checkpointFile.delete();
+            logger.info("ElasticSearch Integration: " + (plan == null ? "Reindex " : "Backfill ") + (done ? "finished" : "incomplete") + ", "
+                    + getCompletedPartitions() + "/" + partitions + " partitions, "
+                    + indexedDocuments.get() + " documents");
+            return done;
+        } catch (IOException e) {
+            logger.error("ElasticSearch Integration: Reindex failed", e);
+            return false;
+        } finally {
+            backfill = null;
+            running.set(false);
+        }
+    }
+
+    private void reindex(int partition) {
+        if (isCompleted(partition)) return;
+        long from = (long) partition * partitionSize, to = from + partitionSize;
+        BulkWriter writer = BulkWriter.acquire();
+        try (Transaction tx = db.beginTx()) {
+            for (long id = from; id < to; id++) {
+                Node node;
+                try {
+                    node = db.getNodeById(id);
+                } catch (NotFoundException e) {
+                    continue;
+                }
+                scannedNodes.incrementAndGet();
+                handler.index(node, backfill, writer);
+                if (writer.entryCount() >= bulkSize) {
+                    send(writer);
+                    writer.reset();
+                }
+            }
+            send(writer);
+            tx.success();
+        } catch (Exception e) {
+            logger.warn("ElasticSearch Integration: Reindex of node ids " + from + " to " + to + " failed, will be retried on the next run", e);
+            return;
+        } finally {
+            writer.release();
+        }
+        markCompleted(partition);
+    }
+
+    private void send(BulkWriter writer) throws Exception {
+        if (writer.isEmpty()) return;
+        String body = writer.toString();
+        try {
+            for (int attempt = 1; ; attempt++) {
+                metrics.bulk(body.length());
+                long start = System.nanoTime();
+                JestResult result = client.execute(new RawBulk(body));
+                metrics.completed(start, result);
+                if (result.isSucceeded()) {
+                    // only the items rejected for lack of resources are sent again
+                    body = retrier.retriable(body, result, attempt);
+                    if (body == null) break;
+                } else if (attempt == MAX_ATTEMPTS) {
+                    throw new IOException("ElasticSearch Update Failed: " + result.getErrorMessage());
+                }
+                metrics.retry();
+                Thread.sleep(BulkRetrier.backoff(attempt));
+            }
+            indexedDocuments.addAndGet(writer.entryCount());
+        } catch (Exception e) {
+            retrier.forget(body);
+            throw e;
+        }
+    }
+
+    private synchronized boolean isCompleted(int partition) {
+        return completed.get(partition);
+    }
+
+    private synchronized void markCompleted(int partition) {
+        completed.set(partition);
+        try {
+            if (backfill == null) writeCheckpoint();
+        } catch (IOException e) {
+            logger.warn("ElasticSearch Integration: Could not write reindex checkpoint " + checkpointFile, e);
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastProgress >= PROGRESS_INTERVAL_MILLIS) {
+            lastProgress = now;
+            logger.info("ElasticSearch Integration: Reindexed " + completed.cardinality() + "/" + partitions
+                    + " partitions, " + scannedNodes.get() + " nodes, " + indexedDocuments.get() + " documents");
+        }
+    }
+
+    private BitSet readCheckpoint() throws IOException {
+        if (!checkpointFile.exists()) return new BitSet(partitions);
+        try (DataInputStream in = new DataInputStream(new FileInputStream(checkpointFile))) {
+            if (in.readInt() != partitionSize) {
+                logger.info("ElasticSearch Integration: Partition size changed, ignoring reindex checkpoint");
+                return new BitSet(partitions);
+            }
+            long[] words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            return BitSet.valueOf(words);
+        }
+    }
+
+    private void writeCheckpoint() throws IOException {
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeInt(partitionSize);
+            long[] words = completed.toLongArray();
+            out.writeInt(words.length);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+        }
+        if (!tmp.renameTo(checkpointFile)) {
+            checkpointFile.delete();
+            if (!tmp.renameTo(checkpointFile)) throw new IOException("Could not replace " + checkpointFile);
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    @Override
+    public int getPartitions() {
+        return partitions;
+    }
+
+    @Override
+    public synchronized int getCompletedPartitions() {
+        return completed.cardinality();
+    }
+
+    @Override
+    public long getScannedNodes() {
+        return scannedNodes.get();
+    }
+
+    @Override
+    public long getIndexedDocuments() {
+        return indexedDocuments.get();
+    }
+
+    private class PartitionTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from, to;
+
+        PartitionTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                reindex(from);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new PartitionTask(from, middle), new PartitionTask(middle, to));
+        }
+    }
+}
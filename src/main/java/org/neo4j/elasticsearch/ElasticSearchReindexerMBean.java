@@ -0,0 +1,23 @@
+package org.neo4j.elasticsearch;
+
+/**
+ * Management view of the {@link ElasticSearchReindexer}, reports progress and starts a reindex.
+ */
+public interface ElasticSearchReindexerMBean {
+    boolean isRunning();
+
+    int getPartitions();
+
+    int getCompletedPartitions();
+
+    long getScannedNodes();
+
+    long getIndexedDocuments();
+
+    /**
+     * Starts a reindex in the background, resuming from the last checkpoint.
+     *
+     * @return false if a reindex is already running
+     */
+    boolean start();
+}
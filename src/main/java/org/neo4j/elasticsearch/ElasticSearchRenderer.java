@@ -0,0 +1,123 @@
+package org.neo4j.elasticsearch;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders the documents of committed transactions off the commit path.
+ *
+ * The committing thread only collects which documents changed and how, the renderer merges the
+ * {@link ChangeSet}s of the transactions committed meanwhile, so a document changed repeatedly is
+ * rendered once, and reads their committed state in its own read transaction. The rendered
+ * documents are handed on chunk by chunk, like a bulk rendered in {@code beforeCommit}, so a large
+ * transaction is never held rendered as a whole. Committing threads wait while
+ * {@code maxPending} documents are waiting to be rendered.
+ */
+class ElasticSearchRenderer implements Runnable {
+    private static final long IDLE_WAIT_MILLIS = 100;
+
+    private final ElasticSearchEventHandler handler;
+    private final GraphDatabaseService gds;
+    private final StringLogger logger;
+    private final int maxPending;
+    private final AtomicInteger backlog = new AtomicInteger();
+    private ChangeSet pending = new ChangeSet(), rendering = new ChangeSet();
+    private int pendingTransactions;
+    private volatile boolean running;
+    private Thread thread;
+
+    ElasticSearchRenderer(ElasticSearchEventHandler handler, GraphDatabaseService gds, StringLogger logger, int maxPending) {
+        this.handler = handler;
+        this.gds = gds;
+        this.logger = logger;
+        this.maxPending = maxPending;
+    }
+
+    synchronized void start() {
+        if (running) return;
+        running = true;
+        thread = new Thread(this, "neo4j.ElasticSearch-renderer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops once the changes merged so far are rendered.
+     */
+    void stop() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            if (!running) return;
+            running = false;
+            thread = this.thread;
+            this.thread = null;
+            notifyAll();
+        }
+        thread.join();
+    }
+
+    /**
+     * Merges the changes of a committed transaction into the pending ones.
+     */
+    synchronized void add(ChangeSet changes) throws InterruptedException {
+        while (running && pending.size() >= maxPending) {
+            wait();
+        }
+        pending.addAll(changes);
+        pendingTransactions++;
+        backlog.incrementAndGet();
+        notifyAll();
+    }
+
+    /**
+     * @return the transactions whose changes weren't handed on yet
+     */
+    int backlog() {
+        return backlog.get();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            int transactions;
+            synchronized (this) {
+                while (running && pending.isEmpty()) {
+                    try {
+                        wait(IDLE_WAIT_MILLIS);
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+                if (pending.isEmpty()) return;
+                ChangeSet swap = rendering;
+                rendering = pending;
+                pending = swap;
+                transactions = pendingTransactions;
+                pendingTransactions = 0;
+                notifyAll();
+            }
+            render(rendering);
+            rendering.clear();
+            backlog.addAndGet(-transactions);
+        }
+    }
+
+    private void render(ChangeSet changes) {
+        BulkWriter writer = BulkWriter.acquire();
+        try {
+            try (Transaction tx = gds.beginTx()) {
+                handler.render(changes, writer);
+                tx.success();
+            }
+            if (!writer.isEmpty()) handler.ship(writer);
+        } catch (Exception e) {
+            logger.warn("ElasticSearch Integration: Could not render " + changes.size() + " changed documents", e);
+            handler.lost();
+        } finally {
+            writer.release();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package org.neo4j.elasticsearch;
+
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.helpers.collection.Visitor;
+import org.neo4j.kernel.AvailabilityGuard;
+import org.neo4j.kernel.api.exceptions.EntityNotFoundException;
+import org.neo4j.kernel.impl.store.record.PropertyRecord;
+import org.neo4j.kernel.impl.transaction.CommittedTransactionRepresentation;
+import org.neo4j.kernel.impl.transaction.command.Command;
+import org.neo4j.kernel.impl.transaction.log.IOCursor;
+import org.neo4j.kernel.impl.transaction.log.LogicalTransactionStore;
+import org.neo4j.kernel.impl.transaction.log.NoSuchTransactionException;
+import org.neo4j.kernel.impl.transaction.log.TransactionIdStore;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Catches up on the transactions committed while the integration was down or disabled.
+ *
+ * The id of the last transaction whose changes ElasticSearch accepted is kept in a file. On start
+ * the transactions after it are read back from the Neo4j transaction log, the nodes and
+ * relationships their commands touched are collected and their current state is appended to the
+ * {@link ElasticSearchQueue}, a few thousand at a time. If the log doesn't reach back that far
+ * anymore a full reindex is started instead.
+ *
+ * The id is advanced in two steps: once no transaction is between {@code beforeCommit} and
+ * {@code afterCommit}, all transactions up to the last closed one are in the queue, and once the
+ * queue is acknowledged up to its end at that point, ElasticSearch has them too. If the handler
+ * gave up changes of a transaction meanwhile the id stays where it is and the transactions after
+ * it are replayed again. The replayed state is versioned like reindexed documents, so it doesn't
+ * overwrite changes queued while it was read.
+ */
+class ElasticSearchReplayer {
+    private static final long CHECKPOINT_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final long AVAILABILITY_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final long QUEUE_FULL_WAIT_MILLIS = 100;
+    private static final int BATCH_SIZE = 1000;
+    private static final long NONE = -1;
+
+    private final GraphDatabaseService db;
+    private final ElasticSearchEventHandler handler;
+    private final ElasticSearchQueue queue;
+    private final ElasticSearchReindexer reindexer;
+    private final File txIdFile;
+    private final StringLogger logger;
+    private long acknowledged = NONE;
+    private long candidate = NONE, candidateOffset;
+    private long lost;
+    private ScheduledExecutorService executor;
+
+    ElasticSearchReplayer(GraphDatabaseService db, ElasticSearchEventHandler handler, ElasticSearchQueue queue,
+                          ElasticSearchReindexer reindexer, File txIdFile, StringLogger logger) {
+        this.db = db;
+        this.handler = handler;
+        this.queue = queue;
+        this.reindexer = reindexer;
+        this.txIdFile = txIdFile;
+        this.logger = logger;
+    }
+
+    synchronized void start() {
+        if (executor != null) return;
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "neo4j.ElasticSearch-replay");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replay();
+                } catch (InterruptedException e) {
+                    // stopped
+                } catch (Exception e) {
+                    logger.error("ElasticSearch Integration: Replay of the transaction log failed", e);
+                }
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkpoint();
+                } catch (IOException e) {
+                    logger.warn("ElasticSearch Integration: Could not write " + txIdFile, e);
+                } catch (InterruptedException e) {
+                    // stopped
+                } catch (Exception e) {
+                    logger.error("ElasticSearch Integration: Replay of the transaction log failed", e);
+                }
+            }
+        }, CHECKPOINT_INTERVAL_MILLIS, CHECKPOINT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() throws InterruptedException {
+        if (executor == null) return;
+        executor.shutdownNow();
+        executor.awaitTermination(AVAILABILITY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        executor = null;
+    }
+
+    /**
+     * Queues the current state of everything changed by the transactions after the recorded one.
+     */
+    void replay() throws IOException, InterruptedException, EntityNotFoundException {
+        if (!ElasticSearchExtension.dependencies(db).resolveDependency(AvailabilityGuard.class).isAvailable(AVAILABILITY_TIMEOUT_MILLIS)) {
+            logger.warn("ElasticSearch Integration: Database not available, transaction log not replayed");
+            return;
+        }
+        TransactionIdStore txIdStore = ElasticSearchExtension.dependencies(db).resolveDependency(TransactionIdStore.class);
+        lost = handler.lostTransactions();
+        acknowledged = readTxId();
+        long lastCommitted = txIdStore.getLastCommittedTransactionId();
+        if (acknowledged == NONE) {
+            // nothing to catch up on the first time
+            acknowledged = txIdStore.getLastClosedTransactionId();
+            writeTxId(acknowledged);
+            return;
+        }
+        if (acknowledged >= lastCommitted) return;
+
+        logger.info("ElasticSearch Integration: Replaying transactions " + (acknowledged + 1) + " to " + lastCommitted);
+        LogicalTransactionStore txStore = ElasticSearchExtension.dependencies(db).resolveDependency(LogicalTransactionStore.class);
+        final PrimitiveLongSet nodeIds = Primitive.longSet(), relationshipIds = Primitive.longSet();
+        Visitor<Command, IOException> touched = new Visitor<Command, IOException>() {
+            @Override
+            public boolean visit(Command command) {
+                if (command instanceof Command.NodeCommand) {
+                    nodeIds.add(command.getKey());
+                } else if (command instanceof Command.RelationshipCommand) {
+                    relationshipIds.add(command.getKey());
+                } else if (command instanceof Command.PropertyCommand) {
+                    owner(((Command.PropertyCommand) command).getBefore(), nodeIds, relationshipIds);
+                    owner(((Command.PropertyCommand) command).getAfter(), nodeIds, relationshipIds);
+                }
+                return false;
+            }
+        };
+        long transactions = 0;
+        try (IOCursor<CommittedTransactionRepresentation> cursor = txStore.getTransactions(acknowledged + 1)) {
+            while (cursor.next()) {
+                if (Thread.interrupted()) throw new InterruptedException();
+                cursor.get().getTransactionRepresentation().accept(touched);
+                transactions++;
+                if (nodeIds.size() + relationshipIds.size() >= BATCH_SIZE) flush(nodeIds, relationshipIds);
+            }
+        } catch (NoSuchTransactionException e) {
+            logger.warn("ElasticSearch Integration: Transaction " + (acknowledged + 1)
+                    + " not in the transaction log anymore, reindexing instead");
+            reindexer.start();
+            return;
+        }
+        flush(nodeIds, relationshipIds);
+        logger.info("ElasticSearch Integration: Replayed " + transactions + " transactions");
+    }
+
+    private static void owner(PropertyRecord record, PrimitiveLongSet nodeIds, PrimitiveLongSet relationshipIds) {
+        if (record == null) return;
+        if (record.isNodeSet()) nodeIds.add(record.getNodeId());
+        if (record.isRelSet()) relationshipIds.add(record.getRelId());
+    }
+
+    private void flush(PrimitiveLongSet nodeIds, PrimitiveLongSet relationshipIds)
+            throws IOException, InterruptedException, EntityNotFoundException {
+        if (nodeIds.isEmpty() && relationshipIds.isEmpty()) return;
+        BulkWriter writer = BulkWriter.acquire();
+        try {
+            try (Transaction tx = db.beginTx()) {
+                handler.replay(nodeIds, relationshipIds, writer);
+                tx.success();
+            }
+            if (!writer.isEmpty()) {
+                byte[] payload = BulkEntry.encode(writer);
+                while (!queue.append(payload)) {
+                    Thread.sleep(QUEUE_FULL_WAIT_MILLIS);
+                }
+            }
+        } finally {
+            writer.release();
+        }
+        nodeIds.clear();
+        relationshipIds.clear();
+    }
+
+    /**
+     * Records the candidate transaction once the queue is acknowledged past it, then picks the next candidate.
+     */
+    synchronized void checkpoint() throws IOException, InterruptedException, EntityNotFoundException {
+        if (acknowledged == NONE) return;
+        if (handler.lostTransactions() != lost) {
+            // the candidate may cover the lost changes, and so may everything up to the last closed transaction
+            candidate = NONE;
+            logger.warn("ElasticSearch Integration: Changes were given up, replaying transactions after " + acknowledged);
+            replay();
+            return;
+        }
+        if (candidate != NONE && queue.acknowledgedOffset() >= candidateOffset) {
+            acknowledged = candidate;
+            writeTxId(acknowledged);
+            candidate = NONE;
+        }
+        if (candidate != NONE) return;
+        // read before checking for pending transactions, everything up to it is queued if there are none
+        long lastClosed = ElasticSearchExtension.dependencies(db).resolveDependency(TransactionIdStore.class).getLastClosedTransactionId();
+        // changes given up once none are pending belong to transactions after it
+        if (lastClosed > acknowledged && handler.pendingTransactions() == 0 && handler.lostTransactions() == lost) {
+            candidate = lastClosed;
+            candidateOffset = queue.committedOffset();
+        }
+    }
+
+    private long readTxId() throws IOException {
+        if (!txIdFile.exists()) return NONE;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(txIdFile))) {
+            return in.readLong();
+        }
+    }
+
+    private void writeTxId(long txId) throws IOException {
+        File tmp = new File(txIdFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeLong(txId);
+        }
+        if (!tmp.renameTo(txIdFile)) {
+            txIdFile.delete();
+            if (!tmp.renameTo(txIdFile)) throw new IOException("Could not replace " + txIdFile);
+        }
+    }
+}
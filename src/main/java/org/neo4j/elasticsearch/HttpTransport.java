@@ -0,0 +1,162 @@
+package org.neo4j.elasticsearch;
+
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestClientFactory;
+import io.searchbox.client.config.HttpClientConfig;
+import io.searchbox.client.http.JestHttpClient;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Creates the Jest client with connection pool, timeouts and keep-alive as configured.
+ *
+ * Connections are kept alive for at most {@code keepAliveMillis} when idle, less if ElasticSearch
+ * asks for it, so that connections dropped silently by load balancers or NAT in between aren't
+ * reused. Request bodies of at least {@code gzipMinBytes} sent synchronously, as the sender lanes
+ * of the queue and the reindexer do, are gzip compressed, which ElasticSearch decompresses on its
+ * own; the NDJSON of bulk requests compresses several times. The sync client is built by Jest
+ * itself from the {@link HttpClientConfig}, with its route planner, discovery and idle connection
+ * reaper. Jest builds the async client without pool or timeouts, it is replaced by one built from
+ * the same config.
+ */
+class HttpTransport extends JestClientFactory {
+    static final int NO_GZIP = -1;
+
+    private final HttpClientConfig config;
+    private final long keepAliveMillis;
+    private final int gzipMinBytes;
+    private final ElasticSearchMetrics metrics;
+
+    HttpTransport(HttpClientConfig config, long keepAliveMillis, int gzipMinBytes, ElasticSearchMetrics metrics) {
+        this.config = config;
+        this.keepAliveMillis = keepAliveMillis;
+        this.gzipMinBytes = gzipMinBytes;
+        this.metrics = metrics;
+        setHttpClientConfig(config);
+    }
+
+    @Override
+    public JestClient getObject() {
+        JestHttpClient client = (JestHttpClient) super.getObject();
+        CloseableHttpAsyncClient previous = client.getAsyncClient();
+        try {
+            client.setAsyncClient(asyncClient());
+            if (previous != null) previous.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not create the async HTTP client", e);
+        }
+        return client;
+    }
+
+    @Override
+    protected HttpClientBuilder configureHttpClient(HttpClientBuilder builder) {
+        builder.setKeepAliveStrategy(keepAlive());
+        // first, so that the content headers are set from the compressed body
+        if (gzipMinBytes != NO_GZIP) builder.addInterceptorFirst(new Gzip(gzipMinBytes, metrics));
+        return builder;
+    }
+
+    @Override
+    protected RequestConfig createRequestConfig() {
+        // Jest takes the connect timeout for the pool wait only
+        return RequestConfig.copy(super.createRequestConfig())
+                .setConnectTimeout(config.getConnTimeout())
+                .build();
+    }
+
+    CloseableHttpAsyncClient asyncClient() throws IOReactorException {
+        IOReactorConfig reactor = IOReactorConfig.custom()
+                .setConnectTimeout(config.getConnTimeout())
+                .setSoTimeout(config.getReadTimeout())
+                .build();
+        PoolingNHttpClientConnectionManager connections =
+                new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(reactor));
+        connections.setMaxTotal(config.getMaxTotalConnection());
+        connections.setDefaultMaxPerRoute(config.getDefaultMaxTotalConnectionPerRoute());
+        // not compressed: the async client streams the entity it was handed, an interceptor
+        // replacing it would only change the headers
+        return HttpAsyncClients.custom()
+                .setConnectionManager(connections)
+                .setRoutePlanner(getRoutePlanner())
+                .setDefaultRequestConfig(createRequestConfig())
+                .setKeepAliveStrategy(keepAlive())
+                .build();
+    }
+
+    private ConnectionKeepAliveStrategy keepAlive() {
+        return new ConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long asked = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                return asked <= 0 ? keepAliveMillis : Math.min(asked, keepAliveMillis);
+            }
+        };
+    }
+
+    /**
+     * Compresses request bodies of at least {@code minBytes}, recording the bytes before and after.
+     */
+    static class Gzip implements HttpRequestInterceptor {
+        private final int minBytes;
+        private final ElasticSearchMetrics metrics;
+
+        Gzip(int minBytes, ElasticSearchMetrics metrics) {
+            this.minBytes = minBytes;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void process(HttpRequest request, HttpContext context) throws IOException {
+            if (!(request instanceof HttpEntityEnclosingRequest)) return;
+            HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) request;
+            HttpEntity entity = enclosing.getEntity();
+            if (entity == null || entity.getContentEncoding() != null || request.containsHeader("Content-Encoding")) return;
+            long length = entity.getContentLength();
+            if (length >= 0 && length < minBytes) return;
+            byte[] body = EntityUtils.toByteArray(entity);
+            byte[] compressed = compress(body);
+            ByteArrayEntity gzipped = new ByteArrayEntity(compressed);
+            Header contentType = entity.getContentType();
+            if (contentType != null) gzipped.setContentType(contentType);
+            gzipped.setContentEncoding("gzip");
+            enclosing.setEntity(gzipped);
+            request.setHeader("Content-Encoding", "gzip");
+            metrics.compressed(body.length, compressed.length);
+        }
+
+        static byte[] compress(byte[] body) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 64);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+                {
+                    // bulk bodies are repetitive enough that the fastest level gets most of the gain
+                    def.setLevel(Deflater.BEST_SPEED);
+                }
+            }) {
+                gzip.write(body);
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.neo4j.elasticsearch;
+
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the number of asynchronous bulk requests in flight to ElasticSearch.
+ *
+ * A permit is taken before a request is sent and handed back when its response or
+ * failure arrives. When all permits are taken the {@link Policy} decides whether the
+ * committing thread waits for one or the request is handed elsewhere.
+ *
+ * Dropped documents are remembered as dirty until the {@link ElasticSearchReindexer} takes them
+ * to send them again. Past {@code maxDirty} of them they are forgotten and a full reindex is due.
+ */
+class InFlightLimiter implements InFlightLimiterMBean {
+
+    enum Policy {
+        /** the committing thread waits for a request to complete */
+        BLOCK,
+        /** the changes are appended to the durable queue and shipped later */
+        SPILL,
+        /** the changes are dropped and their documents remembered as dirty */
+        DROP
+    }
+
+    static final int DEFAULT_MAX_DIRTY = 100000;
+
+    private final int maxInFlight;
+    private final Policy policy;
+    private final Semaphore permits;
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong overflowCount = new AtomicLong();
+    private final Set<IndexId> dirty = Collections.newSetFromMap(new ConcurrentHashMap<IndexId, Boolean>());
+    private final int maxDirty;
+    private final AtomicBoolean dirtyOverflow = new AtomicBoolean();
+
+    InFlightLimiter(int maxInFlight, Policy policy) {
+        this(maxInFlight, policy, DEFAULT_MAX_DIRTY);
+    }
+
+    InFlightLimiter(int maxInFlight, Policy policy, int maxDirty) {
+        this.maxInFlight = maxInFlight;
+        this.policy = policy;
+        this.permits = new Semaphore(maxInFlight);
+        this.maxDirty = maxDirty;
+    }
+
+    Policy policy() {
+        return policy;
+    }
+
+    /**
+     * @return true if a permit was taken, false if the window is full and the policy doesn't block
+     */
+    boolean acquire() throws InterruptedException {
+        if (permits.tryAcquire()) return true;
+        if (policy != Policy.BLOCK) {
+            overflowCount.incrementAndGet();
+            return false;
+        }
+        long start = System.nanoTime();
+        permits.acquire();
+        waitCount.incrementAndGet();
+        waitNanos.addAndGet(System.nanoTime() - start);
+        return true;
+    }
+
+    /**
+     * @return true if a permit was taken, never waits and doesn't count as an overflow
+     */
+    boolean tryAcquire() {
+        return permits.tryAcquire();
+    }
+
+    void release() {
+        permits.release();
+    }
+
+    /**
+     * Wraps the handler so that the permit is released when the request completes.
+     */
+    <T extends JestResult> JestResultHandler<T> releasing(final JestResultHandler<T> handler) {
+        return new JestResultHandler<T>() {
+            @Override
+            public void completed(T result) {
+                try {
+                    handler.completed(result);
+                } finally {
+                    release();
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                try {
+                    handler.failed(e);
+                } finally {
+                    release();
+                }
+            }
+        };
+    }
+
+    void markDirty(Collection<IndexId> ids) {
+        if (dirtyOverflow.get()) return;
+        dirty.addAll(ids);
+        if (dirty.size() > maxDirty && dirtyOverflow.compareAndSet(false, true)) dirty.clear();
+    }
+
+    /**
+     * @return the dirty documents, which are no longer remembered
+     */
+    List<IndexId> takeDirty() {
+        List<IndexId> taken = new ArrayList<>();
+        for (Iterator<IndexId> it = dirty.iterator(); it.hasNext(); ) {
+            taken.add(it.next());
+            it.remove();
+        }
+        return taken;
+    }
+
+    /**
+     * Forgets all dirty documents, after a full reindex was started that sends them anyway.
+     */
+    void resetDirty() {
+        dirtyOverflow.set(false);
+        dirty.clear();
+    }
+
+    @Override
+    public int getInFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    @Override
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    @Override
+    public String getPolicy() {
+        return policy.name();
+    }
+
+    @Override
+    public long getWaitCount() {
+        return waitCount.get();
+    }
+
+    @Override
+    public long getWaitTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    @Override
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    @Override
+    public int getDirtyCount() {
+        return dirty.size();
+    }
+
+    @Override
+    public boolean isDirtyOverflow() {
+        return dirtyOverflow.get();
+    }
+}
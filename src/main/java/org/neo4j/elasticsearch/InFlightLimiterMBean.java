@@ -0,0 +1,22 @@
+package org.neo4j.elasticsearch;
+
+/**
+ * Management view of the {@link InFlightLimiter}, used to size the in-flight window.
+ */
+public interface InFlightLimiterMBean {
+    int getInFlight();
+
+    int getMaxInFlight();
+
+    String getPolicy();
+
+    long getWaitCount();
+
+    long getWaitTimeMillis();
+
+    long getOverflowCount();
+
+    int getDirtyCount();
+
+    boolean isDirtyOverflow();
+}
@@ -0,0 +1,224 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import org.neo4j.elasticsearch.IndexPlan.IndexTarget;
+import org.neo4j.elasticsearch.IndexPlan.LabelPlan;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Creates the indices of the spec up front and switches indices into bulk-load mode for a reindex and back.
+ *
+ * Indices are created with explicit mappings for the fields the extension itself writes, so the
+ * first bulk doesn't wait for ElasticSearch to derive and publish them. In bulk-load mode an index
+ * is not refreshed and has no replicas. The settings it had are kept in a state file until they
+ * are restored, so that indices left in bulk-load mode by a crash are restored on the next start.
+ */
+class IndexAdmin {
+    private static final String DEFAULT_REFRESH_INTERVAL = "1s";
+    private static final int MERGE_SEGMENTS = 5;
+    private static final String[] NODE_FIELDS = {"id", "labels"};
+    private static final String[] RELATIONSHIP_FIELDS = {"id", "type", "start", "end", "start_labels", "end_labels"};
+
+    private final JestClient client;
+    private final File stateFile;
+    private final StringLogger logger;
+
+    IndexAdmin(JestClient client, File stateFile, StringLogger logger) {
+        this.client = client;
+        this.stateFile = stateFile;
+        this.logger = logger;
+    }
+
+    /**
+     * Creates the indices of the plan that don't exist yet, with a mapping per label and relationship type.
+     */
+    void create(IndexPlan plan, boolean checksums) {
+        Map<String, JsonObject> mappings = new LinkedHashMap<>();
+        for (LabelPlan label : plan.labels()) {
+            for (IndexTarget target : label.targets) {
+                JsonObject properties = mapping(mappings, target);
+                for (String field : NODE_FIELDS) {
+                    properties.add(field, exact());
+                }
+                if (checksums) properties.add(ElasticSearchReconciler.CHECKSUM, type("long"));
+            }
+        }
+        for (IndexTarget target : plan.relationships()) {
+            JsonObject properties = mapping(mappings, target);
+            for (String field : RELATIONSHIP_FIELDS) {
+                properties.add(field, exact());
+            }
+        }
+        for (Map.Entry<String, JsonObject> index : mappings.entrySet()) {
+            JsonObject body = new JsonObject();
+            body.add("mappings", index.getValue());
+            try {
+                JestResult result = client.execute(new RawRequest("PUT", "/" + index.getKey(), body.toString()));
+                if (result.isSucceeded()) {
+                    logger.info("ElasticSearch Integration: Created index " + index.getKey());
+                } else if (!String.valueOf(result.getErrorMessage()).toLowerCase().contains("already")) {
+                    logger.warn("ElasticSearch Integration: Could not create index " + index.getKey() + ": " + result.getErrorMessage());
+                }
+            } catch (Exception e) {
+                logger.warn("ElasticSearch Integration: Could not create index " + index.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * @return the properties of the mapping of the target's type, added to the mappings of its index
+     */
+    private static JsonObject mapping(Map<String, JsonObject> mappings, IndexTarget target) {
+        JsonObject types = mappings.get(target.indexName);
+        if (types == null) {
+            types = new JsonObject();
+            mappings.put(target.indexName, types);
+        }
+        JsonObject mapping = types.getAsJsonObject(target.type);
+        if (mapping == null) {
+            mapping = new JsonObject();
+            mapping.add("properties", new JsonObject());
+            types.add(target.type, mapping);
+        }
+        return mapping.getAsJsonObject("properties");
+    }
+
+    private static JsonObject type(String type) {
+        JsonObject field = new JsonObject();
+        field.addProperty("type", type);
+        return field;
+    }
+
+    /**
+     * @return the mapping of a string that is matched as a whole, like ids and labels
+     */
+    private static JsonObject exact() {
+        JsonObject field = type("string");
+        field.addProperty("index", "not_analyzed");
+        return field;
+    }
+
+    /**
+     * @return the names of the indices of the labels of the plan
+     */
+    static Set<String> nodeIndices(IndexPlan plan) {
+        Set<String> indices = new LinkedHashSet<>();
+        for (LabelPlan label : plan.labels()) {
+            for (IndexTarget target : label.targets) {
+                indices.add(target.indexName);
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * Turns off refresh and replicas of the given indices, after saving their settings. Indices
+     * still in bulk-load mode keep the settings saved first.
+     *
+     * @return false if no index could be switched
+     */
+    synchronized boolean enterBulkLoad(Collection<String> indices) {
+        try {
+            JsonObject saved = readState();
+            for (String index : indices) {
+                if (saved.has(index)) continue;
+                JestResult result = client.execute(new RawRequest("GET", "/" + index + "/_settings", null));
+                if (!result.isSucceeded()) continue;
+                JsonObject settings = new JsonObject();
+                settings.addProperty("refresh_interval", setting(result.getJsonObject(), "refresh_interval", DEFAULT_REFRESH_INTERVAL));
+                settings.addProperty("number_of_replicas", setting(result.getJsonObject(), "number_of_replicas", "1"));
+                saved.add(index, settings);
+            }
+            if (saved.entrySet().isEmpty()) return false;
+            writeState(saved);
+            for (Map.Entry<String, JsonElement> index : saved.entrySet()) {
+                JestResult result = client.execute(new RawRequest("PUT", "/" + index.getKey() + "/_settings",
+                        "{\"index\":{\"refresh_interval\":\"-1\",\"number_of_replicas\":0}}"));
+                if (!result.isSucceeded()) {
+                    logger.warn("ElasticSearch Integration: Could not switch " + index.getKey() + " to bulk load: " + result.getErrorMessage());
+                }
+            }
+            logger.info("ElasticSearch Integration: Bulk loading " + saved.entrySet().size() + " indices");
+            return true;
+        } catch (Exception e) {
+            logger.warn("ElasticSearch Integration: Could not switch to bulk load", e);
+            return false;
+        }
+    }
+
+    /**
+     * Restores the saved settings of the indices in bulk-load mode, if any, and optionally merges
+     * their segments in the background. The state file is kept until all indices are restored.
+     */
+    synchronized void exitBulkLoad(boolean merge) {
+        if (!stateFile.exists()) return;
+        try {
+            JsonObject saved = readState();
+            JsonObject failed = new JsonObject();
+            for (Map.Entry<String, JsonElement> index : saved.entrySet()) {
+                JsonObject settings = new JsonObject();
+                settings.add("index", index.getValue());
+                JestResult result = client.execute(new RawRequest("PUT", "/" + index.getKey() + "/_settings", settings.toString()));
+                if (!result.isSucceeded() && !String.valueOf(result.getErrorMessage()).toLowerCase().contains("missing")) {
+                    logger.warn("ElasticSearch Integration: Could not restore settings of " + index.getKey() + ": " + result.getErrorMessage());
+                    failed.add(index.getKey(), index.getValue());
+                    continue;
+                }
+                if (merge) {
+                    client.execute(new RawRequest("POST", "/" + index.getKey()
+                            + "/_optimize?max_num_segments=" + MERGE_SEGMENTS + "&wait_for_merge=false", null));
+                }
+            }
+            if (failed.entrySet().isEmpty()) {
+                stateFile.delete();
+                logger.info("ElasticSearch Integration: Restored settings of " + saved.entrySet().size() + " indices after bulk load");
+            } else {
+                writeState(failed);
+            }
+        } catch (Exception e) {
+            logger.warn("ElasticSearch Integration: Could not restore settings after bulk load, will retry on the next start", e);
+        }
+    }
+
+    /**
+     * @return the setting from a get settings response, in its nested or its flat form
+     */
+    private static String setting(JsonObject response, String name, String defaultValue) {
+        if (response == null || response.entrySet().isEmpty()) return defaultValue;
+        JsonObject settings = response.entrySet().iterator().next().getValue().getAsJsonObject().getAsJsonObject("settings");
+        if (settings == null) return defaultValue;
+        JsonElement value = settings.has("index") ? settings.getAsJsonObject("index").get(name) : settings.get("index." + name);
+        return value == null ? defaultValue : value.getAsString();
+    }
+
+    private JsonObject readState() throws IOException {
+        if (!stateFile.exists()) return new JsonObject();
+        return new JsonParser().parse(new String(Files.readAllBytes(stateFile.toPath()), BulkEntry.UTF_8)).getAsJsonObject();
+    }
+
+    private void writeState(JsonObject state) throws IOException {
+        File tmp = new File(stateFile.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            out.write(state.toString().getBytes(BulkEntry.UTF_8));
+        }
+        if (!tmp.renameTo(stateFile)) {
+            stateFile.delete();
+            if (!tmp.renameTo(stateFile)) throw new IOException("Could not replace " + stateFile);
+        }
+    }
+}
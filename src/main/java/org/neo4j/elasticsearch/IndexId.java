@@ -0,0 +1,48 @@
+package org.neo4j.elasticsearch;
+
+/**
+ * Identifies a document by index name and id, used to collapse several actions for the same document into one.
+ */
+class IndexId {
+    final String indexName, id;
+
+    public IndexId(String indexName, String id) {
+        this.indexName = indexName;
+        this.id = id;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + ((id == null) ? 0 : id.hashCode());
+        result = prime * result
+                + ((indexName == null) ? 0 : indexName.hashCode());
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof IndexId))
+            return false;
+        IndexId other = (IndexId) obj;
+        if (id == null) {
+            if (other.id != null)
+                return false;
+        } else if (!id.equals(other.id))
+            return false;
+        if (indexName == null) {
+            if (other.indexName != null)
+                return false;
+        } else if (!indexName.equals(other.indexName))
+            return false;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "IndexId [indexName=" + indexName + ", id=" + id + "]";
+    }
+}
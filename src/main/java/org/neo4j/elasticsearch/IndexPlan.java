@@ -0,0 +1,283 @@
+package org.neo4j.elasticsearch;
+
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveIntObjectMap;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.kernel.api.ReadOperations;
+import org.neo4j.kernel.api.StatementConstants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The index spec compiled for the commit path.
+ *
+ * Spec labels and properties are bound to their token ids, so the labels of a node are matched
+ * with one primitive map lookup per label id and indexed properties are read by key id. The
+ * action lines and property names of each index are encoded once up front. Relationship
+ * indices are looked up by relationship type name.
+ *
+ * A plan never changes. Labels and property keys that don't exist yet when the spec is compiled
+ * are bound by {@link #resolve} once they have been created, which returns a new plan. The token
+ * count the plan was last resolved at is remembered, so resolving costs nothing until the next
+ * label or property key is created.
+ */
+class IndexPlan {
+    static final LabelPlan[] NONE = new LabelPlan[0];
+    /** a token count that never matches, the plan is resolved again */
+    static final long UNKNOWN_TOKENS = -1;
+    /** ordinals of all index names ever compiled, so changes keyed by ordinal merge across plans */
+    private static final Map<String, Integer> ORDINALS = new HashMap<>();
+
+    private final LabelPlan[] labels;
+    private final Map<String, LabelPlan> byName = new HashMap<>();
+    private final PrimitiveIntObjectMap<LabelPlan> byId;
+    private final IndexTarget[] relationships;
+    private final Map<String, IndexTarget[]> byType = new HashMap<>();
+    private final boolean resolved;
+    private volatile long resolvedTokens = UNKNOWN_TOKENS;
+
+    private IndexPlan(LabelPlan[] labels, IndexTarget[] relationships) {
+        this.labels = labels;
+        this.byId = Primitive.intObjectMap(Math.max(labels.length * 2, 4));
+        this.relationships = relationships;
+        boolean resolved = true;
+        for (LabelPlan label : labels) {
+            byName.put(label.name, label);
+            if (label.id != StatementConstants.NO_SUCH_LABEL) byId.put(label.id, label);
+            resolved &= label.isResolved();
+        }
+        for (IndexTarget target : relationships) {
+            IndexTarget[] targets = byType.get(target.type);
+            if (targets == null) {
+                targets = new IndexTarget[]{target};
+            } else {
+                targets = Arrays.copyOf(targets, targets.length + 1);
+                targets[targets.length - 1] = target;
+            }
+            byType.put(target.type, targets);
+            resolved &= target.isResolved();
+        }
+        this.resolved = resolved;
+    }
+
+    static IndexPlan compile(Map<Label, List<ElasticSearchIndexSpec>> indexSpecs) {
+        return compile(indexSpecs, Collections.<String, List<ElasticSearchIndexSpec>>emptyMap());
+    }
+
+    static IndexPlan compile(Map<Label, List<ElasticSearchIndexSpec>> indexSpecs,
+                             Map<String, List<ElasticSearchIndexSpec>> relationshipSpecs) {
+        LabelPlan[] labels = new LabelPlan[indexSpecs.size()];
+        int i = 0;
+        for (Map.Entry<Label, List<ElasticSearchIndexSpec>> entry : indexSpecs.entrySet()) {
+            String name = entry.getKey().name();
+            List<ElasticSearchIndexSpec> specs = entry.getValue();
+            IndexTarget[] targets = new IndexTarget[specs.size()];
+            for (int j = 0; j < targets.length; j++) {
+                targets[j] = new IndexTarget(specs.get(j).getIndexName(), ordinal(specs.get(j).getIndexName()), name,
+                        specs.get(j).getProperties().toArray(new String[0]), false, false);
+            }
+            labels[i++] = new LabelPlan(name, StatementConstants.NO_SUCH_LABEL, targets);
+        }
+        List<IndexTarget> relationships = new ArrayList<>();
+        for (Map.Entry<String, List<ElasticSearchIndexSpec>> entry : relationshipSpecs.entrySet()) {
+            for (ElasticSearchIndexSpec spec : entry.getValue()) {
+                relationships.add(new IndexTarget(spec.getIndexName(), ordinal(spec.getIndexName()), entry.getKey(),
+                        spec.getProperties().toArray(new String[0]), spec.hasEndpointIds(), spec.hasEndpointLabels()));
+            }
+        }
+        return new IndexPlan(labels, relationships.toArray(new IndexTarget[relationships.size()]));
+    }
+
+    private static int ordinal(String indexName) {
+        synchronized (ORDINALS) {
+            Integer ordinal = ORDINALS.get(indexName);
+            if (ordinal == null) {
+                ordinal = ORDINALS.size();
+                ORDINALS.put(indexName, ordinal);
+            }
+            return ordinal;
+        }
+    }
+
+    IndexPlan resolve(ReadOperations read) {
+        return resolve(read, UNKNOWN_TOKENS);
+    }
+
+    /**
+     * @param tokens a count of the labels and property keys, read before resolving, that only
+     *               grows and whose tokens can all be looked up by name, or {@link #UNKNOWN_TOKENS}
+     * @return this plan if all tokens are bound or none was created since, otherwise a plan with the new tokens bound
+     */
+    IndexPlan resolve(ReadOperations read, long tokens) {
+        if (resolved || (tokens != UNKNOWN_TOKENS && tokens == resolvedTokens)) return this;
+        IndexPlan plan = bind(read);
+        plan.resolvedTokens = tokens;
+        return plan;
+    }
+
+    private IndexPlan bind(ReadOperations read) {
+        LabelPlan[] bound = labels.clone();
+        boolean changed = false;
+        for (int i = 0; i < bound.length; i++) {
+            bound[i] = labels[i].resolve(read);
+            changed |= bound[i] != labels[i];
+        }
+        IndexTarget[] boundRelationships = relationships.clone();
+        for (int i = 0; i < boundRelationships.length; i++) {
+            boundRelationships[i] = relationships[i].resolve(read);
+            changed |= boundRelationships[i] != relationships[i];
+        }
+        return changed ? new IndexPlan(bound, boundRelationships) : this;
+    }
+
+    boolean isEmpty() {
+        return labels.length == 0 && relationships.length == 0;
+    }
+
+    /**
+     * @return the indices relationships of the type are sent to, null if there are none
+     */
+    IndexTarget[] get(RelationshipType type) {
+        return byType.get(type.name());
+    }
+
+    /**
+     * @return the indices of all relationship types
+     */
+    IndexTarget[] relationships() {
+        return relationships;
+    }
+
+    /**
+     * @return the indices of all labels
+     */
+    LabelPlan[] labels() {
+        return labels;
+    }
+
+    LabelPlan get(int labelId) {
+        return byId.get(labelId);
+    }
+
+    LabelPlan get(Label label) {
+        return byName.get(label.name());
+    }
+
+    /**
+     * The indices a label is sent to.
+     */
+    static class LabelPlan {
+        final String name;
+        final int id;
+        final IndexTarget[] targets;
+        /** the labels of a node with just this indexed label */
+        final LabelPlan[] alone;
+
+        LabelPlan(String name, int id, IndexTarget[] targets) {
+            this.name = name;
+            this.id = id;
+            this.targets = targets;
+            this.alone = new LabelPlan[]{this};
+        }
+
+        boolean isResolved() {
+            if (id == StatementConstants.NO_SUCH_LABEL) return false;
+            for (IndexTarget target : targets) {
+                if (!target.isResolved()) return false;
+            }
+            return true;
+        }
+
+        LabelPlan resolve(ReadOperations read) {
+            int id = this.id == StatementConstants.NO_SUCH_LABEL ? read.labelGetForName(name) : this.id;
+            IndexTarget[] bound = targets.clone();
+            boolean changed = id != this.id;
+            for (int i = 0; i < bound.length; i++) {
+                bound[i] = targets[i].resolve(read);
+                changed |= bound[i] != targets[i];
+            }
+            return changed ? new LabelPlan(name, id, bound) : this;
+        }
+    }
+
+    /**
+     * One index and type a document is written to, with the properties it takes. The type is
+     * the label of node documents and the relationship type of relationship documents. Targets
+     * writing to the same index share its ordinal, which stays the same across plans.
+     */
+    static class IndexTarget {
+        final String indexName, type;
+        final int index;
+        final byte[] indexAction, updateAction, deleteAction;
+        final String[] properties;
+        final byte[][] encodedProperties;
+        final int[] propertyKeys;
+        final boolean endpointIds, endpointLabels;
+
+        IndexTarget(String indexName, int index, String type, String[] properties, boolean endpointIds, boolean endpointLabels) {
+            this.endpointIds = endpointIds;
+            this.endpointLabels = endpointLabels;
+            this.indexName = indexName;
+            this.index = index;
+            this.type = type;
+            this.indexAction = BulkWriter.encodeAction("index", indexName, type);
+            this.updateAction = BulkWriter.encodeAction("update", indexName, type);
+            this.deleteAction = BulkWriter.encodeAction("delete", indexName, type);
+            this.properties = properties;
+            this.encodedProperties = new byte[properties.length][];
+            this.propertyKeys = new int[properties.length];
+            for (int i = 0; i < properties.length; i++) {
+                encodedProperties[i] = BulkWriter.encodeName(properties[i]);
+                propertyKeys[i] = StatementConstants.NO_SUCH_PROPERTY_KEY;
+            }
+        }
+
+        private IndexTarget(IndexTarget target, int[] propertyKeys) {
+            this.indexName = target.indexName;
+            this.index = target.index;
+            this.type = target.type;
+            this.indexAction = target.indexAction;
+            this.updateAction = target.updateAction;
+            this.deleteAction = target.deleteAction;
+            this.properties = target.properties;
+            this.encodedProperties = target.encodedProperties;
+            this.propertyKeys = propertyKeys;
+            this.endpointIds = target.endpointIds;
+            this.endpointLabels = target.endpointLabels;
+        }
+
+        /**
+         * @return the position of the property in {@link #properties}, -1 if it isn't indexed
+         */
+        int indexOf(String property) {
+            for (int i = 0; i < properties.length; i++) {
+                if (properties[i].equals(property)) return i;
+            }
+            return -1;
+        }
+
+        boolean isResolved() {
+            for (int key : propertyKeys) {
+                if (key == StatementConstants.NO_SUCH_PROPERTY_KEY) return false;
+            }
+            return true;
+        }
+
+        IndexTarget resolve(ReadOperations read) {
+            int[] keys = propertyKeys.clone();
+            boolean changed = false;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != StatementConstants.NO_SUCH_PROPERTY_KEY) continue;
+                keys[i] = read.propertyKeyGetForName(properties[i]);
+                changed |= keys[i] != StatementConstants.NO_SUCH_PROPERTY_KEY;
+            }
+            return changed ? new IndexTarget(this, keys) : this;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.neo4j.elasticsearch;
+
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveIntObjectMap;
+import org.neo4j.kernel.api.ReadOperations;
+import org.neo4j.kernel.api.exceptions.EntityNotFoundException;
+import org.neo4j.kernel.api.properties.DefinedProperty;
+
+import java.util.Iterator;
+
+/**
+ * The properties of the node rendered last, read in one pass over its property chain.
+ *
+ * A node sent to several indices, by several labels or several specs of a label, is rendered
+ * once per index; reading each indexed property by key would walk the chain again for every
+ * property of every index. The values of properties no index asks for are not materialized.
+ */
+class NodeProperties {
+    private static final long NONE = -1;
+
+    private final PrimitiveIntObjectMap<DefinedProperty> properties = Primitive.intObjectMap();
+    private long nodeId = NONE;
+
+    /**
+     * @return the value of the property of the node as of the statement, null if it has none
+     */
+    Object get(long nodeId, int propertyKey, ReadOperations read) throws EntityNotFoundException {
+        if (nodeId != this.nodeId) {
+            clear();
+            for (Iterator<DefinedProperty> it = read.nodeGetAllProperties(nodeId); it.hasNext(); ) {
+                DefinedProperty property = it.next();
+                properties.put(property.propertyKeyId(), property);
+            }
+            this.nodeId = nodeId;
+        }
+        DefinedProperty property = properties.get(propertyKey);
+        return property == null ? null : property.value();
+    }
+
+    /**
+     * Forgets the node, to be called whenever the state it was read from may have changed.
+     */
+    void clear() {
+        properties.clear();
+        nodeId = NONE;
+    }
+}
@@ -0,0 +1,37 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import io.searchbox.action.GenericResultAbstractAction;
+
+/**
+ * A bulk request whose NDJSON body has already been rendered, so it is shipped
+ * as-is instead of being re-serialized from individual actions like {@link io.searchbox.core.Bulk}.
+ */
+class RawBulk extends GenericResultAbstractAction {
+    private final String body;
+
+    RawBulk(String body) {
+        this.body = body;
+        setURI(buildURI());
+    }
+
+    @Override
+    public String getRestMethodName() {
+        return "POST";
+    }
+
+    @Override
+    public Object getData(Gson gson) {
+        return body;
+    }
+
+    @Override
+    public String getPathToResult() {
+        return "ok";
+    }
+
+    @Override
+    protected String buildURI() {
+        return super.buildURI() + "/_bulk";
+    }
+}
@@ -0,0 +1,39 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import io.searchbox.action.GenericResultAbstractAction;
+
+/**
+ * A request to an index administration endpoint, e.g. {@code PUT /people/_settings}, with an
+ * already rendered JSON body or none.
+ */
+class RawRequest extends GenericResultAbstractAction {
+    private final String method, path, body;
+
+    RawRequest(String method, String path, String body) {
+        this.method = method;
+        this.path = path;
+        this.body = body;
+        setURI(buildURI());
+    }
+
+    @Override
+    public String getRestMethodName() {
+        return method;
+    }
+
+    @Override
+    public Object getData(Gson gson) {
+        return body;
+    }
+
+    @Override
+    public String getPathToResult() {
+        return null;
+    }
+
+    @Override
+    protected String buildURI() {
+        return super.buildURI() + path;
+    }
+}
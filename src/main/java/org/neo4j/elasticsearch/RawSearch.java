@@ -0,0 +1,40 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import io.searchbox.action.GenericResultAbstractAction;
+
+/**
+ * A search whose query has already been rendered, over the given indices and types. Indices that
+ * don't exist (yet) are skipped instead of failing the search.
+ */
+class RawSearch extends GenericResultAbstractAction {
+    private final String indices, types;
+    private final String body;
+
+    RawSearch(String indices, String types, String body) {
+        this.indices = indices;
+        this.types = types;
+        this.body = body;
+        setURI(buildURI());
+    }
+
+    @Override
+    public String getRestMethodName() {
+        return "POST";
+    }
+
+    @Override
+    public Object getData(Gson gson) {
+        return body;
+    }
+
+    @Override
+    public String getPathToResult() {
+        return "hits/hits";
+    }
+
+    @Override
+    protected String buildURI() {
+        return super.buildURI() + "/" + indices + "/" + types + "/_search?ignore_unavailable=true";
+    }
+}
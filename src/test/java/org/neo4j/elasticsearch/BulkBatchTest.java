@@ -0,0 +1,83 @@
+package org.neo4j.elasticsearch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BulkBatchTest {
+
+    @Test
+    public void testLaterEntrySupersedesEarlierOne() {
+        BulkBatch batch = new BulkBatch();
+        batch.add(entry("people", "1", "{\"index\":{}}\n{\"name\":\"foo\"}\n"));
+        batch.add(entry("people", "2", "{\"index\":{}}\n{\"name\":\"bar\"}\n"));
+        batch.add(entry("people", "1", "{\"index\":{}}\n{\"name\":\"quux\"}\n"));
+        batch.add(entry("places", "1", "{\"index\":{}}\n{\"name\":\"baz\"}\n"));
+
+        assertEquals(3, batch.size());
+        assertEquals("{\"index\":{}}\n{\"name\":\"quux\"}\n" +
+                     "{\"index\":{}}\n{\"name\":\"bar\"}\n" +
+                     "{\"index\":{}}\n{\"name\":\"baz\"}\n", batch.body());
+        assertEquals(batch.body().length(), batch.bytes());
+    }
+
+    @Test
+    public void testUpdateIsSentAfterEarlierEntry() {
+        BulkBatch batch = new BulkBatch();
+        batch.add(entry("people", "1", "{\"index\":{}}\n{\"name\":\"foo\"}\n"));
+        batch.add(entry("people", "1", "{\"update\":{}}\n{\"doc\":{\"name\":\"bar\"}}\n"));
+
+        assertEquals(1, batch.size());
+        assertEquals("{\"index\":{}}\n{\"name\":\"foo\"}\n" +
+                     "{\"update\":{}}\n{\"doc\":{\"name\":\"bar\"}}\n", batch.body());
+        assertEquals(batch.body().length(), batch.bytes());
+
+        batch.add(entry("people", "1", "{\"delete\":{}}\n"));
+        assertEquals("{\"delete\":{}}\n", batch.body());
+    }
+
+    @Test
+    public void testMinOffsetKeepsOffsetOfUpdatedEntry() {
+        BulkBatch batch = new BulkBatch();
+        assertEquals(Long.MAX_VALUE, batch.minOffset());
+        batch.add(entry("people", "1", "{\"index\":{}}\n{\"name\":\"foo\"}\n", 10));
+        batch.add(entry("people", "2", "{\"index\":{}}\n{\"name\":\"bar\"}\n", 20));
+        batch.add(entry("people", "1", "{\"update\":{}}\n{\"doc\":{\"name\":\"baz\"}}\n", 30));
+        assertEquals(10, batch.minOffset());
+
+        batch.add(entry("people", "1", "{\"delete\":{}}\n", 40));
+        assertEquals(20, batch.minOffset());
+    }
+
+    @Test
+    public void testLaneOfDocumentIsStable() {
+        BulkEntry entry = entry("people", "1", "{\"delete\":{}}\n");
+        int lane = BulkLane.of(entry, 4);
+        assertTrue(lane >= 0 && lane < 4);
+        assertEquals(lane, BulkLane.of(entry("people", "1", "{\"index\":{}}\n{}\n"), 4));
+        assertEquals(0, BulkLane.of(entry, 1));
+    }
+
+    @Test
+    public void testIsFull() {
+        BulkBatch batch = new BulkBatch();
+        batch.add(entry("people", "1", "0123456789"));
+        assertFalse(batch.isFull(2, 100));
+        assertTrue(batch.isFull(1, 100));
+        assertTrue(batch.isFull(2, 10));
+
+        batch.clear();
+        assertTrue(batch.isEmpty());
+        assertEquals(0, batch.bytes());
+    }
+
+    private BulkEntry entry(String indexName, String id, String lines) {
+        return new BulkEntry(indexName, id, lines.getBytes(BulkEntry.UTF_8));
+    }
+
+    private BulkEntry entry(String indexName, String id, String lines, long offset) {
+        BulkEntry entry = entry(indexName, id, lines);
+        entry.offset = offset;
+        return entry;
+    }
+}
@@ -0,0 +1,113 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import io.searchbox.client.JestResult;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.kernel.impl.util.TestLogger;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BulkRetrierTest {
+    private static final String BODY =
+            "{\"index\":{\"_index\":\"people\",\"_id\":\"1\"}}\n{\"name\":\"foo\"}\n" +
+            "{\"index\":{\"_index\":\"people\",\"_id\":\"2\"}}\n{\"name\":\"bar\"}\n" +
+            "{\"delete\":{\"_index\":\"people\",\"_id\":\"3\"}}\n";
+    private static final String RESPONSE = "{\"took\":3,\"errors\":true,\"items\":[" +
+            "{\"index\":{\"_index\":\"people\",\"_id\":\"1\",\"status\":201}}," +
+            "{\"index\":{\"_index\":\"people\",\"_id\":\"2\",\"status\":429,\"error\":\"EsRejectedExecutionException\"}}," +
+            "{\"delete\":{\"_index\":\"people\",\"_id\":\"3\",\"status\":400,\"error\":\"MapperParsingException\"}}]}";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File deadLetters;
+    private BulkRetrier retrier;
+
+    @Before
+    public void setUp() throws Exception {
+        deadLetters = new File(folder.getRoot(), "dead-letters");
+        retrier = new BulkRetrier(null, new DeadLetterFile(deadLetters), 2, new ElasticSearchMetrics(), new TestLogger());
+    }
+
+    @Test
+    public void testRetriesRejectedItemsAndDeadLettersFailedOnes() throws Exception {
+        String retry = retrier.retriable(BODY, result(RESPONSE), 1);
+
+        assertEquals("{\"index\":{\"_index\":\"people\",\"_id\":\"2\"}}\n{\"name\":\"bar\"}\n", retry);
+        List<String> letters = Files.readAllLines(deadLetters.toPath(), BulkEntry.UTF_8);
+        assertEquals(1, letters.size());
+        assertTrue(letters.get(0), letters.get(0).contains("\"_id\":\"3\""));
+        assertTrue(letters.get(0), letters.get(0).contains("MapperParsingException"));
+    }
+
+    @Test
+    public void testGivesUpAfterMaxAttempts() throws Exception {
+        assertNull(retrier.retriable(BODY, result(RESPONSE), 2));
+        assertEquals(2, Files.readAllLines(deadLetters.toPath(), BulkEntry.UTF_8).size());
+    }
+
+    @Test
+    public void testDeadLettersActionsMissingFromTruncatedResponse() throws Exception {
+        ElasticSearchMetrics metrics = new ElasticSearchMetrics();
+        retrier = new BulkRetrier(null, new DeadLetterFile(deadLetters), 2, metrics, new TestLogger());
+        String truncated = "{\"took\":3,\"errors\":true,\"items\":[" +
+                "{\"index\":{\"_index\":\"people\",\"_id\":\"1\",\"status\":201}}]}";
+
+        assertEquals(BODY.substring(BODY.indexOf("{\"index\":{\"_index\":\"people\",\"_id\":\"2\"")),
+                retrier.retriable(BODY, result(truncated), 1));
+        assertNull(retrier.retriable(BODY, result(truncated), 2));
+
+        List<String> letters = Files.readAllLines(deadLetters.toPath(), BulkEntry.UTF_8);
+        assertEquals(2, letters.size());
+        assertTrue(letters.get(0), letters.get(0).contains("\"_id\":\"2\""));
+        assertTrue(letters.get(1), letters.get(1).contains("\"_id\":\"3\""));
+        assertEquals(2, metrics.getDeadLetters());
+    }
+
+    @Test
+    public void testKeepsRejectedEntriesInBatch() throws Exception {
+        BulkBatch batch = new BulkBatch();
+        for (String id : new String[]{"1", "2", "3"}) {
+            int start = BODY.indexOf("{\"" + (id.equals("3") ? "delete" : "index") + "\":{\"_index\":\"people\",\"_id\":\"" + id + "\"");
+            int end = BulkEntry.actionEnd(BODY.getBytes(BulkEntry.UTF_8), start);
+            batch.add(new BulkEntry("people", id, BODY.substring(start, end).getBytes(BulkEntry.UTF_8)));
+        }
+        batch.retain(BulkResponse.of(result(RESPONSE)), retrier);
+
+        assertEquals(1, batch.size());
+        assertTrue(batch.body().startsWith("{\"index\":{\"_index\":\"people\",\"_id\":\"2\""));
+        assertEquals(1, Files.readAllLines(deadLetters.toPath(), BulkEntry.UTF_8).size());
+    }
+
+    @Test
+    public void testForgetsDocumentsOfRequestGivenUpOn() throws Exception {
+        DocumentCache cache = new DocumentCache(1024, new ElasticSearchMetrics());
+        retrier.setDocumentCache(cache);
+        cache.update("people", 1, 42);
+        cache.update("people", 2, 42);
+
+        retrier.forget(BODY);
+
+        assertFalse(cache.update("people", 1, 42));
+        assertFalse(cache.update("people", 2, 42));
+    }
+
+    @Test
+    public void testBackoffGrowsWithJitter() {
+        for (int attempt = 1; attempt < 10; attempt++) {
+            long backoff = BulkRetrier.backoff(attempt);
+            long max = Math.min(100L << attempt, 30000);
+            assertTrue(backoff + " in " + max, backoff >= max / 2 && backoff <= max);
+        }
+    }
+
+    private JestResult result(String json) {
+        return new RawBulk("").createNewElasticSearchResult(json, 200, "OK", new Gson());
+    }
+}
@@ -0,0 +1,60 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import io.searchbox.client.JestResult;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BulkSizerTest {
+    private static final String FAST = "{\"took\":100,\"errors\":false,\"items\":[]}";
+    private static final String SLOW = "{\"took\":5000,\"errors\":false,\"items\":[]}";
+    private static final String REJECTED = "{\"took\":100,\"errors\":true,\"items\":["
+            + "{\"index\":{\"_index\":\"people\",\"_id\":\"1\",\"status\":429,\"error\":\"EsRejectedExecutionException\"}}]}";
+
+    private final ElasticSearchMetrics metrics = new ElasticSearchMetrics();
+    private final BulkSizer sizer = new BulkSizer(100, 1100, 1000, 11000, 1000, metrics);
+
+    @Test
+    public void testGrowsAdditivelyAfterFullFastBulks() {
+        assertEquals(100, sizer.actions());
+        sizer.completed(100, 0, result(FAST));
+        assertEquals(200, sizer.actions());
+        assertEquals(2000, sizer.bytes());
+        // not full, no signal
+        sizer.completed(10, 10, result(FAST));
+        assertEquals(200, sizer.actions());
+        for (int i = 0; i < 20; i++) {
+            sizer.completed(sizer.actions(), 0, result(FAST));
+        }
+        assertEquals(1100, sizer.actions());
+        assertEquals(1100, metrics.getBulkTargetActions());
+    }
+
+    @Test
+    public void testHalvesAfterSlowOrRejectedBulks() {
+        for (int i = 0; i < 10; i++) {
+            sizer.completed(sizer.actions(), 0, result(FAST));
+        }
+        sizer.completed(10, 10, result(SLOW));
+        assertEquals(600, sizer.actions());
+        sizer.completed(10, 10, result(REJECTED));
+        assertEquals(350, sizer.actions());
+        sizer.failed();
+        assertEquals(225, sizer.actions());
+        assertEquals(2250, metrics.getBulkTargetBytes());
+    }
+
+    @Test
+    public void testFixedSizeStays() {
+        BulkSizer fixed = BulkSizer.fixed(1000, 5000, metrics);
+        fixed.completed(10, 10, result(SLOW));
+        fixed.failed();
+        assertEquals(1000, fixed.actions());
+        assertEquals(5000, fixed.bytes());
+    }
+
+    private JestResult result(String json) {
+        return new RawBulk("").createNewElasticSearchResult(json, 200, "OK", new Gson());
+    }
+}
@@ -0,0 +1,114 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BulkWriterTest {
+
+    @Test
+    public void testWritesActionAndSourceLines() {
+        BulkWriter writer = new BulkWriter();
+        writer.action(BulkWriter.encodeAction("index", "people", "Person"), "people", "1").startObject()
+                .field("id", "1")
+                .field("labels", new String[]{"Person"})
+                .field("name", "Jo \"the\" \\ \n é€😀")
+                .field("age", 42)
+                .endObject().endEntry();
+        writer.action(BulkWriter.encodeAction("delete", "people", "Person"), "people", "2").endEntry();
+
+        assertEquals("{\"index\":{\"_index\":\"people\",\"_type\":\"Person\",\"_id\":\"1\"}}\n" +
+                     "{\"id\":\"1\",\"labels\":[\"Person\"],\"name\":\"Jo \\\"the\\\" \\\\ \\n é€😀\",\"age\":42}\n" +
+                     "{\"delete\":{\"_index\":\"people\",\"_type\":\"Person\",\"_id\":\"2\"}}\n", writer.toString());
+        assertEquals(2, writer.entryCount());
+        assertEquals(new IndexId("people", "2"), writer.id(1));
+        assertEquals(writer.entryEnd(0), writer.entryStart(1));
+        assertEquals(writer.size(), writer.entryEnd(1));
+    }
+
+    @Test
+    public void testWritesPrimitiveArraysAndNumbers() {
+        BulkWriter writer = new BulkWriter();
+        writer.action(BulkWriter.encodeAction("update", "people", null), "people", "1").startObject().startObject("doc")
+                .field("longs", new long[]{Long.MIN_VALUE, -1, 0, 1234567890123L})
+                .field("ints", new int[]{1, -2})
+                .field("doubles", new double[]{1.5, Double.NaN})
+                .field("flags", new boolean[]{true, false})
+                .field("chars", new char[]{'a'})
+                .field("empty", new String[0])
+                .endObject().endObject().endEntry();
+
+        assertEquals("{\"update\":{\"_index\":\"people\",\"_id\":\"1\"}}\n" +
+                     "{\"doc\":{\"longs\":[-9223372036854775808,-1,0,1234567890123],\"ints\":[1,-2]," +
+                     "\"doubles\":[1.5,null],\"flags\":[true,false],\"chars\":[\"a\"],\"empty\":[]}}\n", writer.toString());
+    }
+
+    @Test
+    public void testWritesPreEncodedActionsAndNames() {
+        BulkWriter writer = new BulkWriter();
+        writer.action(BulkWriter.encodeAction("index", "people", "Person"), "people", "1").startObject()
+                .field(BulkWriter.encodeName("name"), "Jo")
+                .field(BulkWriter.encodeName("age"), 42)
+                .endObject().endEntry();
+        writer.action(BulkWriter.encodeAction("delete", "people", null), "people", "2").endEntry();
+
+        assertEquals("{\"index\":{\"_index\":\"people\",\"_type\":\"Person\",\"_id\":\"1\"}}\n" +
+                     "{\"name\":\"Jo\",\"age\":42}\n" +
+                     "{\"delete\":{\"_index\":\"people\",\"_id\":\"2\"}}\n", writer.toString());
+        assertEquals(new IndexId("people", "1"), writer.id(0));
+    }
+
+    @Test
+    public void testWritesExternalVersion() {
+        BulkWriter writer = new BulkWriter();
+        writer.action(BulkWriter.encodeAction("delete", "people", null), "people", "1", 1431000000000000L).endEntry();
+        writer.action(BulkWriter.encodeAction("delete", "people", null), "people", "2", BulkWriter.NO_VERSION).endEntry();
+
+        assertEquals("{\"delete\":{\"_index\":\"people\",\"_id\":\"1\",\"_version\":1431000000000000,\"_version_type\":\"external\"}}\n" +
+                     "{\"delete\":{\"_index\":\"people\",\"_id\":\"2\"}}\n", writer.toString());
+    }
+
+    @Test
+    public void testFillsInCommitVersion() {
+        BulkWriter writer = new BulkWriter();
+        writer.action(BulkWriter.encodeAction("delete", "people", null), "people", "1", BulkWriter.COMMIT_VERSION).endEntry();
+        writer.action(BulkWriter.encodeAction("delete", "people", null), "people", "2", BulkWriter.COMMIT_VERSION).endEntry();
+        writer.truncate(1);
+        writer.commitVersion(42);
+
+        assertEquals("{\"delete\":{\"_index\":\"people\",\"_id\":\"1\",\"_version\":42                 ,\"_version_type\":\"external\"}}\n",
+                writer.toString());
+        assertEquals(42, new JsonParser().parse(writer.toString()).getAsJsonObject()
+                .getAsJsonObject("delete").get("_version").getAsLong());
+    }
+
+    @Test
+    public void testCopiesEntries() {
+        BulkWriter writer = new BulkWriter();
+        writer.action(BulkWriter.encodeAction("index", "people", "Person"), "people", "1").startObject().field("id", "1").endObject().endEntry();
+        writer.action(BulkWriter.encodeAction("delete", "people", "Person"), "people", "2").endEntry();
+        BulkWriter chunk = new BulkWriter();
+        chunk.copy(writer, 1).copy(writer, 0);
+
+        assertEquals(2, chunk.entryCount());
+        assertEquals(new IndexId("people", "2"), chunk.id(0));
+        assertEquals("{\"delete\":{\"_index\":\"people\",\"_type\":\"Person\",\"_id\":\"2\"}}\n" +
+                     "{\"index\":{\"_index\":\"people\",\"_type\":\"Person\",\"_id\":\"1\"}}\n" +
+                     "{\"id\":\"1\"}\n", chunk.toString());
+    }
+
+    @Test
+    public void testPooledWriterIsReused() {
+        BulkWriter writer = BulkWriter.acquire();
+        writer.action(BulkWriter.encodeAction("delete", "people", "Person"), "people", "1").endEntry();
+        assertNotSame(writer, BulkWriter.acquire());
+        writer.release();
+
+        BulkWriter again = BulkWriter.acquire();
+        assertSame(writer, again);
+        assertTrue(again.isEmpty());
+        assertEquals(0, again.size());
+        again.release();
+    }
+}
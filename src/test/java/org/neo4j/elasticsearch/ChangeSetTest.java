@@ -0,0 +1,99 @@
+package org.neo4j.elasticsearch;
+
+import org.junit.Test;
+import org.neo4j.elasticsearch.IndexPlan.IndexTarget;
+import org.neo4j.graphdb.DynamicLabel;
+
+import static org.junit.Assert.*;
+
+public class ChangeSetTest {
+    private final IndexTarget people = new IndexTarget("people", 0, "Person", new String[]{"name", "age"}, false, false);
+    private final IndexTarget staff = new IndexTarget("people", 0, "Employee", new String[]{"name"}, false, false);
+    private final IndexTarget places = new IndexTarget("places", 1, "Place", new String[]{"name"}, false, false);
+
+    @Test
+    public void testKeepsOneChangePerDocumentInFirstOrder() {
+        ChangeSet changes = new ChangeSet();
+        changes.put(ChangeSet.INDEX, null, 1, people);
+        changes.put(ChangeSet.INDEX, null, 2, people);
+        changes.put(ChangeSet.INDEX, null, 1, places);
+        changes.put(ChangeSet.DELETE, null, 1, staff);
+
+        assertEquals(3, changes.size());
+        assertEquals(1, changes.id(0));
+        assertEquals(ChangeSet.DELETE, changes.kind(0));
+        assertSame(staff, changes.target(0));
+        assertEquals(2, changes.id(1));
+        assertSame(places, changes.target(2));
+    }
+
+    @Test
+    public void testUpdatesCollectPropertiesUnlessIndexed() {
+        ChangeSet changes = new ChangeSet();
+        changes.update(null, 1, people, 0);
+        changes.update(null, 1, people, 1);
+        changes.put(ChangeSet.INDEX, null, 2, people);
+        changes.update(null, 2, people, 1);
+
+        assertEquals(ChangeSet.UPDATE, changes.kind(0));
+        assertEquals(3L, changes.changed(0));
+        assertEquals(ChangeSet.INDEX, changes.kind(1));
+        assertEquals(0L, changes.changed(1));
+    }
+
+    @Test
+    public void testMergesLaterTransactions() {
+        ChangeSet earlier = new ChangeSet(), later = new ChangeSet();
+        earlier.update(null, 1, people, 0);
+        earlier.put(ChangeSet.INDEX, null, 2, people);
+        later.update(null, 1, people, 1);
+        later.update(null, 2, people, 1);
+        later.put(ChangeSet.DELETE, null, 3, places);
+        earlier.addAll(later);
+
+        assertEquals(3, earlier.size());
+        assertEquals(ChangeSet.UPDATE, earlier.kind(0));
+        assertEquals(3L, earlier.changed(0));
+        assertEquals(ChangeSet.INDEX, earlier.kind(1));
+        assertEquals(ChangeSet.DELETE, earlier.kind(2));
+        assertSame(places, earlier.target(2));
+    }
+
+    @Test
+    public void testMergesChangesOfPlansCompiledFromDifferentSpecs() throws Exception {
+        IndexTarget before = IndexPlan.compile(ElasticSearchIndexSpecParser.parseIndexSpec("people:Person(name,age)"))
+                .labels()[0].targets[0];
+        IndexTarget after = IndexPlan.compile(ElasticSearchIndexSpecParser.parseIndexSpec("places:Place(name),people:Person(age)"))
+                .get(DynamicLabel.label("Person")).targets[0];
+        assertEquals(before.index, after.index);
+        ChangeSet earlier = new ChangeSet(), later = new ChangeSet();
+        earlier.update(null, 1, before, 1);
+        later.update(null, 1, after, 0);
+        earlier.addAll(later);
+
+        // one change for the document, indexed as a whole as the properties of its index changed
+        assertEquals(1, earlier.size());
+        assertEquals(ChangeSet.INDEX, earlier.kind(0));
+        assertSame(after, earlier.target(0));
+    }
+
+    @Test
+    public void testGrowsAndIsReusable() {
+        ChangeSet changes = ChangeSet.acquire();
+        for (int i = 0; i < 10000; i++) {
+            changes.put(ChangeSet.INDEX, null, i, i % 2 == 0 ? people : places);
+        }
+        assertEquals(10000, changes.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, changes.id(i));
+        }
+        changes.release();
+
+        assertSame(changes, ChangeSet.acquire());
+        assertTrue(changes.isEmpty());
+        changes.put(ChangeSet.INDEX, null, 42, people);
+        assertEquals(1, changes.size());
+        assertEquals(42, changes.id(0));
+        changes.release();
+    }
+}
@@ -0,0 +1,48 @@
+package org.neo4j.elasticsearch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DocumentCacheTest {
+
+    @Test
+    public void testRecognizesDocumentSentBefore() {
+        ElasticSearchMetrics metrics = new ElasticSearchMetrics();
+        DocumentCache cache = new DocumentCache(1024, metrics);
+        assertFalse(cache.update("people", 1, 42));
+        assertTrue(cache.update("people", 1, 42));
+        assertFalse(cache.update("places", 1, 42));
+        assertFalse(cache.update("people", 1, 43));
+        assertTrue(cache.update("people", 1, 43));
+
+        cache.invalidate(new IndexId("people", "1"));
+        assertFalse(cache.update("people", 1, 43));
+        assertEquals(2, metrics.getDocumentCacheHits());
+        assertEquals(4, metrics.getDocumentCacheMisses());
+    }
+
+    @Test
+    public void testEvictsEntriesNotHitSinceLastSweep() {
+        ElasticSearchMetrics metrics = new ElasticSearchMetrics();
+        // a single bucket
+        DocumentCache cache = new DocumentCache(DocumentCache.ENTRY_BYTES * DocumentCache.WAYS, metrics);
+        for (int id = 0; id < DocumentCache.WAYS; id++) {
+            cache.update("people", id, id);
+        }
+        assertTrue(cache.update("people", 0, 0));
+
+        cache.update("people", 100, 100);
+        assertEquals(1, metrics.getDocumentCacheEvictions());
+        assertTrue(cache.update("people", 0, 0));
+        assertTrue(cache.update("people", 100, 100));
+    }
+
+    @Test
+    public void testHashesContent() {
+        byte[] a = "{\"name\":\"Jo\"}".getBytes(BulkEntry.UTF_8), b = "{\"name\":\"Jim\"}".getBytes(BulkEntry.UTF_8);
+        assertEquals(DocumentCache.hash(1, a, 0, a.length), DocumentCache.hash(1, a.clone(), 0, a.length));
+        assertNotEquals(DocumentCache.hash(1, a, 0, a.length), DocumentCache.hash(1, b, 0, b.length));
+        assertNotEquals(DocumentCache.hash(1, a, 0, a.length), DocumentCache.hash(2, a, 0, a.length));
+    }
+}
@@ -0,0 +1,343 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.JsonParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.api.Statement;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.impl.transaction.log.TransactionIdStore;
+import org.neo4j.kernel.impl.util.TestLogger;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ElasticSearchEventHandlerChunkTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private GraphDatabaseAPI db;
+    private ElasticSearchEventHandler handler;
+    private ElasticSearchQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        db = (GraphDatabaseAPI) new TestGraphDatabaseFactory().newImpermanentDatabase();
+        handler = new ElasticSearchEventHandler(null,
+                ElasticSearchIndexSpecParser.parseIndexSpec("people:Person(name)"), new TestLogger(), db);
+        queue = new ElasticSearchQueue(folder.newFolder("queue"), 1024 * 1024, 4);
+        handler.setQueue(queue);
+        handler.setChunkSize(10, Long.MAX_VALUE);
+        db.registerTransactionEventHandler(handler);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.unregisterTransactionEventHandler(handler);
+        queue.close();
+        db.shutdown();
+    }
+
+    @Test
+    public void testQueuesLargeTransactionInChunks() throws Exception {
+        createPeople(25);
+
+        assertEquals(sizes(10, 10, 5), recordSizes());
+    }
+
+    @Test
+    public void testRendersLargeTransactionAfterCommitInChunks() throws Exception {
+        ElasticSearchRenderer renderer = new ElasticSearchRenderer(handler, db, new TestLogger(), 1000);
+        handler.setRenderer(renderer, 20);
+        renderer.start();
+        createPeople(5);
+        createPeople(25);
+        renderer.stop();
+
+        // the small transaction is rendered while committing, the large one by the renderer
+        assertEquals(sizes(5, 10, 10, 5), recordSizes());
+    }
+
+    @Test
+    public void testKeepsSmallTransactionBehindLargeOne() throws Exception {
+        ElasticSearchRenderer renderer = new ElasticSearchRenderer(handler, db, new TestLogger(), 1000);
+        handler.setRenderer(renderer, 20);
+        long id;
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(DynamicLabel.label("Person"));
+            node.setProperty("name", "Jo");
+            id = node.getId();
+            tx.success();
+        }
+        // a large transaction deleting the document, left to the renderer
+        try (Transaction tx = db.beginTx()) {
+            db.getNodeById(id).removeLabel(DynamicLabel.label("Person"));
+            for (int i = 0; i < 25; i++) {
+                db.createNode(DynamicLabel.label("Person")).setProperty("name", "name" + i);
+            }
+            tx.success();
+        }
+        // a small one indexing it again
+        try (Transaction tx = db.beginTx()) {
+            db.getNodeById(id).addLabel(DynamicLabel.label("Person"));
+            tx.success();
+        }
+        renderer.start();
+        renderer.stop();
+
+        List<String> actions = new ArrayList<>();
+        for (ElasticSearchQueue.Record record = queue.read(0); record != null; record = queue.read(record.nextOffset)) {
+            for (BulkEntry entry : BulkEntry.decode(new DataInputStream(new ByteArrayInputStream(record.payload)))) {
+                if (entry.id.equals(String.valueOf(id))) {
+                    actions.add(new JsonParser().parse(new String(entry.lines, BulkEntry.UTF_8).split("\n")[0])
+                            .getAsJsonObject().entrySet().iterator().next().getKey());
+                }
+            }
+        }
+        assertEquals(Arrays.asList("index", "index"), actions);
+    }
+
+    @Test
+    public void testCountsTransactionSkippedByDocumentCacheOnce() throws Exception {
+        handler.setDocumentCache(new DocumentCache(1024 * 1024, new ElasticSearchMetrics()));
+        // updates are rendered as whole documents
+        handler.setChecksums(true);
+        long id;
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(DynamicLabel.label("Person"));
+            node.setProperty("name", 1);
+            id = node.getId();
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            // a change that renders the same document
+            db.getNodeById(id).setProperty("name", 1L);
+            tx.success();
+        }
+
+        assertEquals(0, handler.pendingTransactions());
+        assertEquals(sizes(1), recordSizes());
+    }
+
+    @Test
+    public void testVersionsActionsWithCommittedTransactionId() throws Exception {
+        handler.setExternalVersioning(true);
+        createPeople(1);
+        long first = db.getDependencyResolver().resolveDependency(TransactionIdStore.class).getLastCommittedTransactionId();
+        createPeople(1);
+
+        List<Long> versions = new ArrayList<>();
+        for (ElasticSearchQueue.Record record = queue.read(0); record != null; record = queue.read(record.nextOffset)) {
+            for (BulkEntry entry : BulkEntry.decode(new DataInputStream(new ByteArrayInputStream(record.payload)))) {
+                String action = new String(entry.lines, BulkEntry.UTF_8).split("\n")[0];
+                versions.add(new JsonParser().parse(action).getAsJsonObject().getAsJsonObject("index").get("_version").getAsLong());
+            }
+        }
+        assertEquals(Arrays.asList(first, first + 1), versions);
+    }
+
+    @Test
+    public void testWaitsForSpaceInFullQueue() throws Exception {
+        ElasticSearchMetrics metrics = new ElasticSearchMetrics();
+        handler.setMetrics(metrics);
+        queue.close();
+        final ElasticSearchQueue small = new ElasticSearchQueue(folder.newFolder("small-queue"), 4096, 1);
+        queue = small;
+        handler.setQueue(small);
+        final AtomicInteger drained = new AtomicInteger();
+        Thread drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long offset = 0;
+                    while (drained.get() < 100) {
+                        ElasticSearchQueue.Record record = small.read(offset);
+                        if (record == null) {
+                            small.awaitRecords(offset, 10);
+                            continue;
+                        }
+                        drained.addAndGet(BulkEntry.decode(new DataInputStream(new ByteArrayInputStream(record.payload))).size());
+                        offset = record.nextOffset;
+                        // acknowledge slowly, so the queue fills up
+                        if (drained.get() % 20 == 0) Thread.sleep(200);
+                        small.acknowledge(offset);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        drainer.start();
+        for (int i = 0; i < 100; i++) {
+            createPeople(1);
+        }
+        drainer.join(10000);
+
+        assertEquals(100, drained.get());
+        assertEquals(0, metrics.getQueueDroppedActions());
+        assertEquals(0, handler.lostTransactions());
+    }
+
+    @Test
+    public void testCountsTransactionsLostToFullQueueOnStop() throws Exception {
+        ElasticSearchMetrics metrics = new ElasticSearchMetrics();
+        handler.setMetrics(metrics);
+        queue.close();
+        queue = new ElasticSearchQueue(folder.newFolder("small-queue"), 4096, 1);
+        handler.setQueue(queue);
+        handler.stop();
+        for (int i = 0; i < 100; i++) {
+            createPeople(1);
+        }
+
+        long queued = recordSizes().size();
+        assertTrue(queued < 100);
+        assertEquals(100 - queued, metrics.getQueueDroppedActions());
+        assertEquals(100 - queued, handler.lostTransactions());
+    }
+
+    @Test
+    public void testResolvesPlanOnlyOnceTokensAreCreated() throws Exception {
+        handler.setIndexSpec(ElasticSearchIndexSpecParser.parseIndexSpec("people:Person(name),places:Place(name)"),
+                Collections.<String, List<ElasticSearchIndexSpec>>emptyMap());
+        createPeople(1);
+        IndexPlan plan = handler.plan();
+        createPeople(1);
+        // Place doesn't exist, but no token was created since
+        assertSame(plan, handler.plan());
+        try (Transaction tx = db.beginTx();
+             Statement statement = db.getDependencyResolver().resolveDependency(ThreadToStatementContextBridge.class).instance()) {
+            IndexPlan resolved = plan.resolve(statement.readOperations(), 42);
+            // no lookups at the same token count
+            assertSame(resolved, resolved.resolve(null, 42));
+        }
+
+        try (Transaction tx = db.beginTx()) {
+            db.createNode(DynamicLabel.label("Place")).setProperty("name", "Berlin");
+            tx.success();
+        }
+        assertNotSame(plan, handler.plan());
+        assertEquals(sizes(1, 1, 1), recordSizes());
+    }
+
+    @Test
+    public void testUpdatesOnlyChangedIndexedProperties() throws Exception {
+        useSpec("people:Person(name,age,city)");
+        long id = createPerson();
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.getNodeById(id);
+            node.setProperty("age", 42);
+            node.setProperty("nickname", "J");
+            tx.success();
+        }
+
+        List<String> lines = lines(id);
+        assertEquals(2, lines.size());
+        String[] update = lines.get(1).split("\n");
+        assertTrue(update[0], update[0].startsWith("{\"update\":"));
+        assertEquals(new JsonParser().parse("{\"doc\":{\"age\":42}}"), new JsonParser().parse(update[1]));
+    }
+
+    @Test
+    public void testIndexesWholeDocumentWhenPropertyIsRemoved() throws Exception {
+        useSpec("people:Person(name,age,city)");
+        long id = createPerson();
+        try (Transaction tx = db.beginTx()) {
+            db.getNodeById(id).removeProperty("city");
+            tx.success();
+        }
+
+        List<String> lines = lines(id);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(1), lines.get(1).startsWith("{\"index\":"));
+        assertFalse(lines.get(1), lines.get(1).contains("\"city\""));
+        assertTrue(lines.get(1), lines.get(1).contains("\"age\":30"));
+    }
+
+    @Test
+    public void testIndexesWholeDocumentWhenLabelIsAdded() throws Exception {
+        useSpec("people:Person(name,age,city),staff:Employee(name)");
+        long id = createPerson();
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.getNodeById(id);
+            node.addLabel(DynamicLabel.label("Employee"));
+            node.setProperty("age", 31);
+            tx.success();
+        }
+
+        // the labels of the document changed, so it is sent whole rather than as an update of the age
+        List<String> lines = lines(id);
+        assertEquals(3, lines.size());
+        for (String line : lines.subList(1, 3)) {
+            assertTrue(line, line.startsWith("{\"index\":"));
+            assertTrue(line, line.contains("\"Employee\""));
+        }
+        String sent = lines.get(1) + lines.get(2);
+        assertTrue(sent, sent.contains("\"_index\":\"people\""));
+        assertTrue(sent, sent.contains("\"_index\":\"staff\""));
+    }
+
+    private void useSpec(String spec) throws Exception {
+        handler.setIndexSpec(ElasticSearchIndexSpecParser.parseIndexSpec(spec),
+                Collections.<String, List<ElasticSearchIndexSpec>>emptyMap());
+    }
+
+    private long createPerson() {
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(DynamicLabel.label("Person"));
+            node.setProperty("name", "Jo");
+            node.setProperty("age", 30);
+            node.setProperty("city", "Berlin");
+            tx.success();
+            return node.getId();
+        }
+    }
+
+    /**
+     * @return the action and document lines queued for the node, in order
+     */
+    private List<String> lines(long id) throws Exception {
+        List<String> lines = new ArrayList<>();
+        for (ElasticSearchQueue.Record record = queue.read(0); record != null; record = queue.read(record.nextOffset)) {
+            for (BulkEntry entry : BulkEntry.decode(new DataInputStream(new ByteArrayInputStream(record.payload)))) {
+                if (entry.id.equals(String.valueOf(id))) lines.add(new String(entry.lines, BulkEntry.UTF_8));
+            }
+        }
+        return lines;
+    }
+
+    private void createPeople(int count) {
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < count; i++) {
+                db.createNode(DynamicLabel.label("Person")).setProperty("name", "name" + i);
+            }
+            tx.success();
+        }
+    }
+
+    private List<Integer> recordSizes() throws Exception {
+        List<Integer> sizes = new ArrayList<>();
+        for (ElasticSearchQueue.Record record = queue.read(0); record != null; record = queue.read(record.nextOffset)) {
+            sizes.add(BulkEntry.decode(new DataInputStream(new ByteArrayInputStream(record.payload))).size());
+        }
+        return sizes;
+    }
+
+    private static List<Integer> sizes(Integer... sizes) {
+        return Arrays.asList(sizes);
+    }
+}
@@ -0,0 +1,35 @@
+package org.neo4j.elasticsearch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.kernel.impl.util.TestLogger;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+public class ElasticSearchExtensionTest {
+    private GraphDatabaseService db;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.shutdown();
+    }
+
+    @Test
+    public void testDisablesItselfWithoutHostName() throws Throwable {
+        TestLogger logger = new TestLogger();
+        ElasticSearchExtension extension = new ElasticSearchExtension(db, logger, null, "people:Person(name)");
+
+        extension.init();
+        extension.start();
+        extension.stop();
+        extension.shutdown();
+
+        logger.assertContainsMessageContaining("No host_name configured");
+    }
+}
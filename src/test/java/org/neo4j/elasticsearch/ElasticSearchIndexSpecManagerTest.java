@@ -0,0 +1,110 @@
+package org.neo4j.elasticsearch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.elasticsearch.IndexPlan.IndexTarget;
+import org.neo4j.elasticsearch.IndexPlan.LabelPlan;
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.Label;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.impl.util.TestLogger;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ElasticSearchIndexSpecManagerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private GraphDatabaseAPI db;
+    private ElasticSearchEventHandler handler;
+
+    @Before
+    public void setUp() throws Exception {
+        db = (GraphDatabaseAPI) new TestGraphDatabaseFactory().newImpermanentDatabase();
+        handler = new ElasticSearchEventHandler(null,
+                ElasticSearchIndexSpecParser.parseIndexSpec("people:Person(name)"), new TestLogger(), db);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.shutdown();
+    }
+
+    @Test
+    public void testAddedSpecs() throws Exception {
+        Map<Label, List<ElasticSearchIndexSpec>> before = ElasticSearchIndexSpecParser.parseIndexSpec("people:Person(name),places:Place(name)");
+        Map<Label, List<ElasticSearchIndexSpec>> after = ElasticSearchIndexSpecParser.parseIndexSpec("people:Person(name,age),places:Place(name),things:Thing(id)");
+        Map<Label, List<ElasticSearchIndexSpec>> added = ElasticSearchIndexSpecManager.added(before, after);
+        assertEquals(2, added.size());
+        assertEquals("people", added.get(DynamicLabel.label("Person")).get(0).getIndexName());
+        assertEquals("things", added.get(DynamicLabel.label("Thing")).get(0).getIndexName());
+    }
+
+    @Test
+    public void testRemovedPropertiesAddNothing() throws Exception {
+        Map<Label, List<ElasticSearchIndexSpec>> before = ElasticSearchIndexSpecParser.parseIndexSpec("people:Person(name,age)");
+        Map<Label, List<ElasticSearchIndexSpec>> after = ElasticSearchIndexSpecParser.parseIndexSpec("people:Person(name)");
+        assertTrue(ElasticSearchIndexSpecManager.added(before, after).isEmpty());
+    }
+
+    @Test
+    public void testSwapsSpecOfHandler() throws Exception {
+        ElasticSearchIndexSpecManager manager = manager(null);
+
+        manager.setIndexSpec("places:Place(name),knows:[KNOWS](since)");
+
+        assertEquals("places:Place(name),knows:[KNOWS](since)", manager.getIndexSpec());
+        assertEquals(Arrays.asList("places"), indices(handler.plan().labels()));
+        assertEquals("knows", handler.plan().relationships()[0].indexName);
+    }
+
+    @Test
+    public void testReloadsSpecFile() throws Exception {
+        File specFile = folder.newFile("index-spec");
+        Files.write(specFile.toPath(), "people:Person(name)".getBytes(BulkEntry.UTF_8));
+        ElasticSearchIndexSpecManager manager = manager(specFile);
+        assertFalse(manager.reload());
+
+        Files.write(specFile.toPath(), "people:Person(name),places:Place(name)".getBytes(BulkEntry.UTF_8));
+        specFile.setLastModified(specFile.lastModified() + 2000);
+
+        assertTrue(manager.reload());
+        assertEquals(Arrays.asList("people", "places"), indices(handler.plan().labels()));
+    }
+
+    @Test
+    public void testRejectsDuplicateIndexWithItsEntry() throws Exception {
+        try {
+            manager(null).setIndexSpec("people:Person(name),people:Person(age)");
+            fail("should reject the spec");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Can't define index twice: people:Person(age)", e.getMessage());
+        }
+        assertEquals(Arrays.asList("people"), indices(handler.plan().labels()));
+    }
+
+    private ElasticSearchIndexSpecManager manager(File specFile) throws Exception {
+        return new ElasticSearchIndexSpecManager(handler, null, "people:Person(name)",
+                ElasticSearchIndexSpecParser.parseIndexSpec("people:Person(name)"), specFile, false, new TestLogger());
+    }
+
+    private static List<String> indices(LabelPlan[] labels) {
+        List<String> indices = new ArrayList<>();
+        for (LabelPlan label : labels) {
+            if (label == null) continue;
+            for (IndexTarget target : label.targets) indices.add(target.indexName);
+        }
+        return indices;
+    }
+}
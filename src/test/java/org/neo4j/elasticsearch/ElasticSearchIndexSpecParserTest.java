@@ -10,6 +10,7 @@ import org.junit.Test;
 
 import static org.junit.Assert.*;
 
+import org.neo4j.graphdb.DynamicLabel;
 import org.neo4j.graphdb.Label;
 
 public class ElasticSearchIndexSpecParserTest {
@@ -40,5 +41,41 @@ public class ElasticSearchIndexSpecParserTest {
     	Map rv = ElasticSearchIndexSpecParser.parseIndexSpec("index_name:Label(foo,bar),index_name:Label(quux)");
     }
 
+    @Test
+    public void testParseIndicesOfSameLabel() throws ParseException {
+        Map<Label, List<ElasticSearchIndexSpec>> rv =
+                ElasticSearchIndexSpecParser.parseIndexSpec("people:Person(name),analytics:Person(name,age)");
+        assertEquals(1, rv.size());
+        List<ElasticSearchIndexSpec> specs = rv.get(DynamicLabel.label("Person"));
+        assertEquals(2, specs.size());
+        assertEquals("people", specs.get(0).getIndexName());
+        assertEquals("analytics", specs.get(1).getIndexName());
+        assertEquals(2, specs.get(1).getProperties().size());
+    }
+
+    @Test
+    public void testParseRelationshipIndexSpec() throws ParseException {
+        String spec = "people:Person(name),knows:[KNOWS](since,weight){ids,labels},works:[WORKS_AT]()";
+        Map<String, List<ElasticSearchIndexSpec>> rv = ElasticSearchIndexSpecParser.parseRelationshipIndexSpec(spec);
+        assertEquals(2, rv.size());
+
+        ElasticSearchIndexSpec knows = rv.get("KNOWS").get(0);
+        assertEquals("knows", knows.getIndexName());
+        assertArrayEquals(new String[] { "since", "weight" }, knows.getProperties().toArray());
+        assertTrue(knows.hasEndpointIds());
+        assertTrue(knows.hasEndpointLabels());
+
+        ElasticSearchIndexSpec works = rv.get("WORKS_AT").get(0);
+        assertEquals(0, works.getProperties().size());
+        assertFalse(works.hasEndpointIds());
+
+        assertEquals(1, ElasticSearchIndexSpecParser.parseIndexSpec(spec).size());
+    }
+
+    @Test(expected=ParseException.class)
+    public void testRelationshipIndexSpecDuplicateType() throws ParseException {
+        ElasticSearchIndexSpecParser.parseRelationshipIndexSpec("knows:[KNOWS](since),other:[KNOWS](weight)");
+    }
+
 
 }
@@ -0,0 +1,106 @@
+package org.neo4j.elasticsearch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+
+import static org.junit.Assert.*;
+
+public class ElasticSearchQueueTest {
+
+    public static final int SEGMENT_SIZE = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File dir;
+    private ElasticSearchQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = folder.newFolder("queue");
+        queue = new ElasticSearchQueue(dir, SEGMENT_SIZE, 3);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        queue.close();
+    }
+
+    @Test
+    public void testAppendAndRead() throws Exception {
+        assertTrue(queue.append(bytes("foo")));
+        assertTrue(queue.append(bytes("bar")));
+
+        ElasticSearchQueue.Record first = queue.read(0);
+        assertEquals("foo", string(first.payload));
+        ElasticSearchQueue.Record second = queue.read(first.nextOffset);
+        assertEquals("bar", string(second.payload));
+        assertNull(queue.read(second.nextOffset));
+    }
+
+    @Test
+    public void testRollsOverToNextSegment() throws Exception {
+        byte[] payload = new byte[40];
+        assertTrue(queue.append(payload));
+        assertTrue(queue.append(payload));
+
+        ElasticSearchQueue.Record first = queue.read(0);
+        ElasticSearchQueue.Record second = queue.read(first.nextOffset);
+        assertEquals(SEGMENT_SIZE, second.offset);
+        assertEquals(2, segmentCount());
+    }
+
+    @Test
+    public void testIsBoundedUntilAcknowledged() throws Exception {
+        byte[] payload = new byte[40];
+        assertTrue(queue.append(payload));
+        assertTrue(queue.append(payload));
+        assertTrue(queue.append(payload));
+        assertFalse(queue.append(payload));
+
+        ElasticSearchQueue.Record second = queue.read(queue.read(0).nextOffset);
+        queue.acknowledge(second.offset);
+        assertEquals(2, segmentCount());
+        assertTrue(queue.append(payload));
+    }
+
+    @Test
+    public void testRecoversAfterReopen() throws Exception {
+        queue.append(bytes("foo"));
+        queue.append(bytes("bar"));
+        queue.append(bytes("baz"));
+        queue.acknowledge(queue.read(0).nextOffset);
+        queue.close();
+
+        queue = new ElasticSearchQueue(dir, SEGMENT_SIZE, 3);
+        ElasticSearchQueue.Record record = queue.read(queue.acknowledgedOffset());
+        assertEquals("bar", string(record.payload));
+        record = queue.read(record.nextOffset);
+        assertEquals("baz", string(record.payload));
+        assertNull(queue.read(record.nextOffset));
+
+        queue.append(bytes("quux"));
+        assertEquals("quux", string(queue.read(record.nextOffset).payload));
+    }
+
+    private int segmentCount() {
+        return dir.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(ElasticSearchQueue.SEGMENT_SUFFIX);
+            }
+        }).length;
+    }
+
+    private byte[] bytes(String s) {
+        return s.getBytes(BulkEntry.UTF_8);
+    }
+
+    private String string(byte[] bytes) {
+        return new String(bytes, BulkEntry.UTF_8);
+    }
+}
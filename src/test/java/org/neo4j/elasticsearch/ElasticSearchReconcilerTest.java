@@ -0,0 +1,190 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.impl.util.TestLogger;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class ElasticSearchReconcilerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private GraphDatabaseAPI db;
+    private IndexClient client;
+    private ElasticSearchReconciler reconciler;
+
+    @Before
+    public void setUp() throws Exception {
+        db = (GraphDatabaseAPI) new TestGraphDatabaseFactory().newImpermanentDatabase();
+        client = new IndexClient();
+        ElasticSearchEventHandler handler = new ElasticSearchEventHandler(client,
+                ElasticSearchIndexSpecParser.parseIndexSpec("people:Person(name)"), new TestLogger(), db);
+        handler.setChecksums(true);
+        ElasticSearchMetrics metrics = new ElasticSearchMetrics();
+        reconciler = new ElasticSearchReconciler(db, handler, client, new TestLogger(), 10, Integer.MAX_VALUE, metrics,
+                new BulkRetrier(client, new DeadLetterFile(new File(folder.getRoot(), "dead-letters")), 3, metrics, new TestLogger()));
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < 25; i++) {
+                Node node = i % 5 == 0 ? db.createNode() : db.createNode(DynamicLabel.label("Person"));
+                node.setProperty("name", "name" + i);
+            }
+            tx.success();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.shutdown();
+    }
+
+    @Test
+    public void testSendsMissingDocuments() throws Exception {
+        assertTrue(reconciler.reconcile());
+
+        assertEquals(3, reconciler.getRanges());
+        assertEquals(3, reconciler.getDifferingRanges());
+        assertEquals(20, reconciler.getRepairedDocuments());
+        assertEquals(20, client.documents.size());
+        assertTrue(client.documents.get("people/Person/1").has(ElasticSearchReconciler.CHECKSUM));
+    }
+
+    @Test
+    public void testOnlyRepairsRangesThatDiffer() throws Exception {
+        reconciler.reconcile();
+        client.documents.get("people/Person/12").addProperty("name", "edited");
+        client.documents.get("people/Person/12").addProperty(ElasticSearchReconciler.CHECKSUM, 42);
+        client.documents.remove("people/Person/13");
+        client.documents.put("people/Person/15", new JsonObject());
+        client.requests = 0;
+
+        assertTrue(reconciler.reconcile());
+
+        assertEquals(1, reconciler.getDifferingRanges());
+        assertEquals(2, reconciler.getRepairedDocuments());
+        assertEquals(1, reconciler.getDeletedDocuments());
+        assertEquals("name12", client.documents.get("people/Person/12").get("name").getAsString());
+        assertTrue(client.documents.containsKey("people/Person/13"));
+        assertFalse(client.documents.containsKey("people/Person/15"));
+        // one summary per range, the documents and the repair of the differing one
+        assertEquals(5, client.requests);
+
+        reconciler.reconcile();
+        assertEquals(0, reconciler.getDifferingRanges());
+    }
+
+    @Test
+    public void testSearchesLargeRangesInParts() throws Exception {
+        ElasticSearchEventHandler handler = new ElasticSearchEventHandler(client,
+                ElasticSearchIndexSpecParser.parseIndexSpec("people:Person(name)"), new TestLogger(), db);
+        handler.setChecksums(true);
+        ElasticSearchMetrics metrics = new ElasticSearchMetrics();
+        reconciler = new ElasticSearchReconciler(db, handler, client, new TestLogger(), 25000, Integer.MAX_VALUE, metrics,
+                new BulkRetrier(client, new DeadLetterFile(new File(folder.getRoot(), "dead-letters")), 3, metrics, new TestLogger()));
+        client.documents.put("people/Person/20000", new JsonObject());
+
+        assertTrue(reconciler.reconcile());
+
+        assertEquals(1, reconciler.getRanges());
+        assertEquals(20, reconciler.getRepairedDocuments());
+        assertEquals(1, reconciler.getDeletedDocuments());
+        assertEquals(20, client.documents.size());
+        assertTrue(client.maxSize <= 10000);
+    }
+
+    /**
+     * Holds the documents of bulk requests and answers the searches of the reconciler.
+     */
+    static class IndexClient implements JestClient {
+        final Map<String, JsonObject> documents = new TreeMap<>();
+        int requests;
+        int maxSize;
+        private final JsonParser parser = new JsonParser();
+
+        @Override
+        public synchronized <T extends JestResult> T execute(Action<T> action) throws Exception {
+            requests++;
+            String body = String.valueOf(action.getData(new Gson()));
+            if (action instanceof RawBulk) {
+                String[] lines = body.split("\n");
+                for (int i = 0; i < lines.length; i++) {
+                    Map.Entry<String, JsonElement> line = parser.parse(lines[i]).getAsJsonObject().entrySet().iterator().next();
+                    String key = key(line.getValue().getAsJsonObject());
+                    if (line.getKey().equals("delete")) {
+                        documents.remove(key);
+                    } else {
+                        documents.put(key, parser.parse(lines[++i]).getAsJsonObject());
+                    }
+                }
+                return action.createNewElasticSearchResult("{\"took\":1,\"errors\":false,\"items\":[]}", 200, "OK", new Gson());
+            }
+            String[] path = action.getURI().split("\\?")[0].split("/");
+            List<String> indices = Arrays.asList(path[path.length - 3].split(","));
+            List<String> types = Arrays.asList(path[path.length - 2].split(","));
+            JsonObject query = parser.parse(body).getAsJsonObject();
+            Set<String> ids = new HashSet<>();
+            for (JsonElement id : query.getAsJsonObject("query").getAsJsonObject("ids").getAsJsonArray("values")) {
+                ids.add(id.getAsString());
+            }
+            StringBuilder hits = new StringBuilder();
+            long total = 0, sum = 0;
+            for (Map.Entry<String, JsonObject> document : documents.entrySet()) {
+                String[] key = document.getKey().split("/");
+                if (!indices.contains(key[0]) || !types.contains(key[1]) || !ids.contains(key[2])) continue;
+                total++;
+                JsonElement checksum = document.getValue().get(ElasticSearchReconciler.CHECKSUM);
+                if (checksum != null) sum += checksum.getAsLong();
+                if (hits.length() > 0) hits.append(',');
+                hits.append("{\"_index\":\"").append(key[0]).append("\",\"_type\":\"").append(key[1])
+                        .append("\",\"_id\":\"").append(key[2]).append("\",\"_source\":{")
+                        .append(checksum == null ? "" : "\"checksum\":" + checksum).append("}}");
+            }
+            maxSize = Math.max(maxSize, query.get("size").getAsInt());
+            boolean summary = query.get("size").getAsInt() == 0;
+            String result = "{\"hits\":{\"total\":" + total + ",\"hits\":[" + (summary ? "" : hits) + "]},"
+                    + "\"aggregations\":{\"checksum\":{\"value\":" + (double) sum + "}}}";
+            return action.createNewElasticSearchResult(result, 200, "OK", new Gson());
+        }
+
+        private static String key(JsonObject action) {
+            return action.get("_index").getAsString() + "/" + action.get("_type").getAsString() + "/" + action.get("_id").getAsString();
+        }
+
+        @Override
+        public <T extends JestResult> void executeAsync(Action<T> action, JestResultHandler<T> handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void shutdownClient() {
+        }
+
+        @Override
+        public void setServers(Set<String> servers) {
+        }
+    }
+}
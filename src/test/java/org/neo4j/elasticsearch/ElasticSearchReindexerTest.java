@@ -0,0 +1,175 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.impl.util.TestLogger;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ElasticSearchReindexerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private GraphDatabaseAPI db;
+    private RecordingClient client;
+    private ElasticSearchEventHandler handler;
+
+    @Before
+    public void setUp() throws Exception {
+        db = (GraphDatabaseAPI) new TestGraphDatabaseFactory().newImpermanentDatabase();
+        client = new RecordingClient();
+        handler = new ElasticSearchEventHandler(client,
+                ElasticSearchIndexSpecParser.parseIndexSpec("people:Person(name)"), new TestLogger(), db);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.shutdown();
+    }
+
+    @Test
+    public void testReindexesAllLabeledNodes() throws Exception {
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < 250; i++) {
+                Node node = i % 2 == 0 ? db.createNode(DynamicLabel.label("Person")) : db.createNode();
+                node.setProperty("name", "name" + i);
+            }
+            tx.success();
+        }
+        File checkpoint = new File(folder.getRoot(), "checkpoint");
+        ElasticSearchMetrics metrics = new ElasticSearchMetrics();
+        ElasticSearchReindexer reindexer = new ElasticSearchReindexer(db, handler, client, new TestLogger(),
+                checkpoint, 100, 10, 2, metrics, new BulkRetrier(client,
+                new DeadLetterFile(new File(folder.getRoot(), "dead-letters")), 3, metrics, new TestLogger()));
+
+        assertTrue(reindexer.reindex());
+
+        assertEquals(3, reindexer.getPartitions());
+        assertEquals(3, reindexer.getCompletedPartitions());
+        assertEquals(250, reindexer.getScannedNodes());
+        assertEquals(125, reindexer.getIndexedDocuments());
+        assertEquals(125, client.documents.size());
+        assertFalse(checkpoint.exists());
+    }
+
+    @Test
+    public void testStartsOneReindexAtATime() throws Exception {
+        try (Transaction tx = db.beginTx()) {
+            db.createNode(DynamicLabel.label("Person")).setProperty("name", "Jo");
+            tx.success();
+        }
+        final CountDownLatch sending = new CountDownLatch(1), done = new CountDownLatch(1);
+        client = new RecordingClient() {
+            @Override
+            public <T extends JestResult> T execute(Action<T> action) throws Exception {
+                sending.countDown();
+                done.await();
+                return super.execute(action);
+            }
+        };
+        ElasticSearchMetrics metrics = new ElasticSearchMetrics();
+        ElasticSearchReindexer reindexer = new ElasticSearchReindexer(db, handler, client, new TestLogger(),
+                new File(folder.getRoot(), "checkpoint"), 100, 10, 2, metrics, new BulkRetrier(client,
+                new DeadLetterFile(new File(folder.getRoot(), "dead-letters")), 3, metrics, new TestLogger()));
+
+        assertTrue(reindexer.start());
+        assertFalse(reindexer.start());
+        assertTrue(sending.await(10, TimeUnit.SECONDS));
+        assertFalse(reindexer.reindex());
+        done.countDown();
+    }
+
+    @Test
+    public void testSendsDroppedDocumentsAgain() throws Exception {
+        long id;
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(DynamicLabel.label("Person"));
+            node.setProperty("name", "Jo");
+            id = node.getId();
+            tx.success();
+        }
+        ElasticSearchMetrics metrics = new ElasticSearchMetrics();
+        ElasticSearchReindexer reindexer = new ElasticSearchReindexer(db, handler, client, new TestLogger(),
+                new File(folder.getRoot(), "checkpoint"), 100, 10, 2, metrics, new BulkRetrier(client,
+                new DeadLetterFile(new File(folder.getRoot(), "dead-letters")), 3, metrics, new TestLogger()));
+        InFlightLimiter limiter = new InFlightLimiter(1, InFlightLimiter.Policy.DROP);
+        limiter.markDirty(Arrays.asList(new IndexId("people", String.valueOf(id))));
+
+        assertTrue(reindexer.resync(limiter));
+
+        assertEquals(0, limiter.getDirtyCount());
+        assertEquals(1, client.documents.size());
+        assertTrue(client.documents.get(0).contains("\"name\":\"Jo\""));
+    }
+
+    @Test
+    public void testSendsNodeToEveryIndexOfItsLabel() throws Exception {
+        handler = new ElasticSearchEventHandler(client,
+                ElasticSearchIndexSpecParser.parseIndexSpec("people:Person(name),analytics:Person(name,age)"), new TestLogger(), db);
+        BulkWriter writer = new BulkWriter();
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(DynamicLabel.label("Person"));
+            node.setProperty("name", "Jo");
+            node.setProperty("age", 42);
+            node.setProperty("email", "jo@example.com");
+            handler.index(node, writer);
+            tx.success();
+        }
+
+        assertEquals(2, writer.entryCount());
+        assertEquals("people", writer.id(0).indexName);
+        assertEquals("analytics", writer.id(1).indexName);
+        String[] lines = writer.toString().split("\n");
+        assertTrue(lines[1].contains("\"name\":\"Jo\"") && !lines[1].contains("age"));
+        assertTrue(lines[3].contains("\"name\":\"Jo\"") && lines[3].contains("\"age\":42"));
+        assertFalse(lines[3].contains("email"));
+    }
+
+    static class RecordingClient implements JestClient {
+        final List<String> documents = new ArrayList<>();
+
+        @Override
+        public synchronized <T extends JestResult> T execute(Action<T> action) throws Exception {
+            String body = String.valueOf(action.getData(new Gson()));
+            String[] lines = body.split("\n");
+            for (int i = 1; i < lines.length; i += 2) {
+                documents.add(lines[i]);
+            }
+            return action.createNewElasticSearchResult("{\"ok\":true}", 200, "OK", new Gson());
+        }
+
+        @Override
+        public <T extends JestResult> void executeAsync(Action<T> action, JestResultHandler<T> handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void shutdownClient() {
+        }
+
+        @Override
+        public void setServers(Set<String> servers) {
+        }
+    }
+}
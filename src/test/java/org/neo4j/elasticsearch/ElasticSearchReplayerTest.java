@@ -0,0 +1,141 @@
+package org.neo4j.elasticsearch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.impl.transaction.log.TransactionIdStore;
+import org.neo4j.kernel.impl.util.TestLogger;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ElasticSearchReplayerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private GraphDatabaseAPI db;
+    private ElasticSearchEventHandler handler;
+    private ElasticSearchQueue queue;
+    private File txIdFile;
+    private ElasticSearchReplayer replayer;
+
+    @Before
+    public void setUp() throws Exception {
+        db = (GraphDatabaseAPI) new TestGraphDatabaseFactory().newImpermanentDatabase();
+        handler = new ElasticSearchEventHandler(null,
+                ElasticSearchIndexSpecParser.parseIndexSpec("people:Person(name)"), new TestLogger(), db);
+        queue = new ElasticSearchQueue(folder.newFolder("queue"), 1024 * 1024, 4);
+        txIdFile = new File(folder.getRoot(), "txid");
+        replayer = new ElasticSearchReplayer(db, handler, queue, null, txIdFile, new TestLogger());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        queue.close();
+        db.shutdown();
+    }
+
+    @Test
+    public void testQueuesNodesChangedSinceRecordedTransaction() throws Exception {
+        replayer.replay();
+        assertEquals(lastClosed(), recordedTxId());
+        assertNull(queue.read(0));
+
+        long person, other;
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(DynamicLabel.label("Person"));
+            node.setProperty("name", "Jo");
+            person = node.getId();
+            other = db.createNode().getId();
+            tx.success();
+        }
+        replayer.replay();
+
+        List<BulkEntry> entries = BulkEntry.decode(new DataInputStream(new ByteArrayInputStream(queue.read(0).payload)));
+        assertEquals(2, entries.size());
+        assertTrue(lines(entries, person).startsWith("{\"index\":"));
+        assertTrue(lines(entries, person).contains("\"name\":\"Jo\""));
+        // the unlabeled node is taken out of the indices of labels it doesn't have
+        assertTrue(lines(entries, other).startsWith("{\"delete\":"));
+    }
+
+    @Test
+    public void testRecordsTransactionOnceQueueIsAcknowledged() throws Exception {
+        replayer.replay();
+        handler.setQueue(queue);
+        db.registerTransactionEventHandler(handler);
+        try (Transaction tx = db.beginTx()) {
+            db.createNode(DynamicLabel.label("Person")).setProperty("name", "Jo");
+            tx.success();
+        }
+        long before = recordedTxId();
+
+        replayer.checkpoint();
+        replayer.checkpoint();
+        assertEquals(before, recordedTxId());
+
+        queue.acknowledge(queue.committedOffset());
+        replayer.checkpoint();
+        assertEquals(lastClosed(), recordedTxId());
+        assertTrue(recordedTxId() > before);
+        db.unregisterTransactionEventHandler(handler);
+    }
+
+    @Test
+    public void testReplaysTransactionsWhoseChangesWereGivenUp() throws Exception {
+        replayer.replay();
+        handler.setQueue(queue);
+        db.registerTransactionEventHandler(handler);
+        long person;
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(DynamicLabel.label("Person"));
+            node.setProperty("name", "Jo");
+            person = node.getId();
+            tx.success();
+        }
+        long before = recordedTxId();
+        long queued = queue.committedOffset();
+        handler.lost();
+
+        replayer.checkpoint();
+        queue.acknowledge(queue.committedOffset());
+        replayer.checkpoint();
+        assertEquals(before, recordedTxId());
+        List<BulkEntry> replayed = BulkEntry.decode(new DataInputStream(new ByteArrayInputStream(queue.read(queued).payload)));
+        assertTrue(lines(replayed, person).contains("\"name\":\"Jo\""));
+
+        replayer.checkpoint();
+        assertEquals(lastClosed(), recordedTxId());
+        db.unregisterTransactionEventHandler(handler);
+    }
+
+    private String lines(List<BulkEntry> entries, long id) {
+        for (BulkEntry entry : entries) {
+            if (entry.id.equals(String.valueOf(id))) return new String(entry.lines, BulkEntry.UTF_8);
+        }
+        fail("No entry for " + id);
+        return null;
+    }
+
+    private long lastClosed() {
+        return db.getDependencyResolver().resolveDependency(TransactionIdStore.class).getLastClosedTransactionId();
+    }
+
+    private long recordedTxId() throws Exception {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(txIdFile))) {
+            return in.readLong();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.neo4j.elasticsearch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void testBucketsCoverAllValues() {
+        long[] values = {0, 1, 15, 16, 17, 31, 32, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            long lowerBound = Histogram.lowerBound(Histogram.bucket(value));
+            assertTrue(value + " >= " + lowerBound, lowerBound <= value);
+            assertTrue(value + " within 12.5% of " + lowerBound, value - lowerBound <= value / 8);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.count());
+        assertEquals(100, histogram.max());
+        assertEquals(50.5, histogram.mean(), 0.001);
+        assertEquals(48, histogram.percentile(50));
+        assertEquals(96, histogram.percentile(99));
+        assertEquals(100, histogram.percentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(99));
+    }
+}
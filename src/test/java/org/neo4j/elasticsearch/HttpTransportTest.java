@@ -0,0 +1,73 @@
+package org.neo4j.elasticsearch;
+
+import io.searchbox.client.config.HttpClientConfig;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class HttpTransportTest {
+
+    @Test
+    public void testCompressesLargeBodies() throws Exception {
+        ElasticSearchMetrics metrics = new ElasticSearchMetrics();
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            body.append("{\"index\":{\"_index\":\"people\",\"_type\":\"Person\",\"_id\":\"").append(i).append("\"}}\n")
+                    .append("{\"id\":\"").append(i).append("\",\"labels\":[\"Person\"],\"name\":\"Jo\"}\n");
+        }
+        BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest("POST", "/_bulk");
+        request.setEntity(new StringEntity(body.toString(), ContentType.APPLICATION_JSON));
+
+        new HttpTransport.Gzip(1024, metrics).process(request, new BasicHttpContext());
+
+        assertEquals("gzip", request.getFirstHeader("Content-Encoding").getValue());
+        byte[] sent = EntityUtils.toByteArray(request.getEntity());
+        assertEquals(body.toString(), new String(gunzip(sent), BulkEntry.UTF_8));
+        assertEquals(body.length(), metrics.getUncompressedBytes());
+        assertEquals(sent.length, metrics.getCompressedBytes());
+        assertTrue(sent.length * 4 < body.length());
+    }
+
+    @Test
+    public void testLeavesSmallBodies() throws Exception {
+        ElasticSearchMetrics metrics = new ElasticSearchMetrics();
+        BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest("POST", "/_bulk");
+        request.setEntity(new StringEntity("{}", ContentType.APPLICATION_JSON));
+
+        new HttpTransport.Gzip(1024, metrics).process(request, new BasicHttpContext());
+
+        assertFalse(request.containsHeader("Content-Encoding"));
+        assertEquals("{}", EntityUtils.toString(request.getEntity()));
+        assertEquals(0, metrics.getCompressedBytes());
+    }
+
+    @Test
+    public void testTakesTimeoutsFromClientConfig() throws Exception {
+        HttpTransport transport = new HttpTransport(new HttpClientConfig.Builder("http://localhost:9200")
+                .connTimeout(5000).readTimeout(60000).build(), 60000, HttpTransport.NO_GZIP, new ElasticSearchMetrics());
+
+        RequestConfig requestConfig = transport.createRequestConfig();
+        assertEquals(5000, requestConfig.getConnectTimeout());
+        assertEquals(60000, requestConfig.getSocketTimeout());
+    }
+
+    private byte[] gunzip(byte[] compressed) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] buffer = new byte[4096];
+            for (int read; (read = in.read(buffer)) > 0; ) out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,66 @@
+package org.neo4j.elasticsearch;
+
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class InFlightLimiterTest {
+
+    @Test
+    public void testRejectsWhenWindowIsFull() throws Exception {
+        InFlightLimiter limiter = new InFlightLimiter(2, InFlightLimiter.Policy.DROP);
+        assertTrue(limiter.acquire());
+        assertTrue(limiter.acquire());
+        assertEquals(2, limiter.getInFlight());
+
+        assertFalse(limiter.acquire());
+        assertEquals(1, limiter.getOverflowCount());
+
+        limiter.markDirty(Arrays.asList(new IndexId("people", "1"), new IndexId("people", "1")));
+        assertEquals(1, limiter.getDirtyCount());
+    }
+
+    @Test
+    public void testForgetsDirtyDocumentsPastTheCap() throws Exception {
+        InFlightLimiter limiter = new InFlightLimiter(1, InFlightLimiter.Policy.DROP, 2);
+        limiter.markDirty(Arrays.asList(new IndexId("people", "1"), new IndexId("people", "2")));
+        assertEquals(2, limiter.takeDirty().size());
+        assertEquals(0, limiter.getDirtyCount());
+
+        limiter.markDirty(Arrays.asList(new IndexId("people", "1"), new IndexId("people", "2"), new IndexId("people", "3")));
+        assertTrue(limiter.isDirtyOverflow());
+        assertEquals(0, limiter.getDirtyCount());
+        limiter.markDirty(Arrays.asList(new IndexId("people", "4")));
+        assertEquals(0, limiter.getDirtyCount());
+
+        limiter.resetDirty();
+        assertFalse(limiter.isDirtyOverflow());
+    }
+
+    @Test
+    public void testReleasesPermitOnCompletion() throws Exception {
+        InFlightLimiter limiter = new InFlightLimiter(1, InFlightLimiter.Policy.BLOCK);
+        assertTrue(limiter.acquire());
+        JestResultHandler<JestResult> handler = limiter.releasing(new JestResultHandler<JestResult>() {
+            public void completed(JestResult result) {
+            }
+
+            public void failed(Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        try {
+            handler.failed(new Exception("test"));
+            fail("should propagate");
+        } catch (RuntimeException expected) {
+            // ok
+        }
+        assertEquals(0, limiter.getInFlight());
+        assertTrue(limiter.acquire());
+        assertEquals(0, limiter.getWaitCount());
+    }
+}
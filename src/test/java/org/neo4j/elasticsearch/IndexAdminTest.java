@@ -0,0 +1,92 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.kernel.impl.util.TestLogger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class IndexAdminTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private final SettingsClient client = new SettingsClient();
+
+    @Test
+    public void testCreatesIndicesWithMappingsOfTheirTypes() throws Exception {
+        IndexAdmin admin = new IndexAdmin(client, new File(folder.getRoot(), "state"), new TestLogger());
+        admin.create(IndexPlan.compile(ElasticSearchIndexSpecParser.parseIndexSpec("people:Person(name),people:Employee(name),places:Place(name)"),
+                ElasticSearchIndexSpecParser.parseRelationshipIndexSpec("knows:[KNOWS](since)")), true);
+
+        assertEquals(3, client.requests.size());
+        String people = client.requests.get(0);
+        assertTrue(people.startsWith("PUT /people {\"mappings\":{\"Person\":{\"properties\":{\"id\":{\"type\":\"string\",\"index\":\"not_analyzed\"}"));
+        assertTrue(people.contains("\"Employee\":{"));
+        assertTrue(people.contains("\"checksum\":{\"type\":\"long\"}"));
+        assertTrue(client.requests.get(1).startsWith("PUT /places "));
+        assertTrue(client.requests.get(2).startsWith("PUT /knows {\"mappings\":{\"KNOWS\":"));
+        assertTrue(client.requests.get(2).contains("\"start_labels\""));
+    }
+
+    @Test
+    public void testRestoresSettingsAfterBulkLoad() throws Exception {
+        File state = new File(folder.getRoot(), "state");
+        IndexAdmin admin = new IndexAdmin(client, state, new TestLogger());
+
+        assertTrue(admin.enterBulkLoad(Arrays.asList("people")));
+        assertTrue(state.exists());
+        assertEquals("PUT /people/_settings {\"index\":{\"refresh_interval\":\"-1\",\"number_of_replicas\":0}}", client.requests.get(1));
+
+        // a crash in between, the saved settings are kept
+        new IndexAdmin(client, state, new TestLogger()).enterBulkLoad(Arrays.asList("people"));
+        client.requests.clear();
+        new IndexAdmin(client, state, new TestLogger()).exitBulkLoad(true);
+
+        assertEquals("PUT /people/_settings {\"index\":{\"refresh_interval\":\"30s\",\"number_of_replicas\":\"2\"}}", client.requests.get(0));
+        assertTrue(client.requests.get(1).startsWith("POST /people/_optimize?max_num_segments="));
+        assertFalse(state.exists());
+    }
+
+    /**
+     * Records the requests, answers settings of an index with a refresh interval of 30s and two replicas.
+     */
+    static class SettingsClient implements JestClient {
+        final List<String> requests = new ArrayList<>();
+
+        @Override
+        public synchronized <T extends JestResult> T execute(Action<T> action) throws Exception {
+            Object body = action.getData(new Gson());
+            requests.add(action.getRestMethodName() + " " + action.getURI() + (body == null ? "" : " " + body));
+            String response = "{\"acknowledged\":true}";
+            if (action.getRestMethodName().equals("GET")) {
+                response = "{\"people\":{\"settings\":{\"index\":{\"refresh_interval\":\"30s\",\"number_of_replicas\":\"2\"}}}}";
+            }
+            return action.createNewElasticSearchResult(response, 200, "OK", new Gson());
+        }
+
+        @Override
+        public <T extends JestResult> void executeAsync(Action<T> action, JestResultHandler<T> handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void shutdownClient() {
+        }
+
+        @Override
+        public void setServers(Set<String> servers) {
+        }
+    }
+}